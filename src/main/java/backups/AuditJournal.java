@@ -0,0 +1,209 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-file record of what do-backup and do-restore did, one JSON object per line (NDJSON) appended to a file:
+ * <pre>{"time":1623456789012,"action":"backup","path":"/home/a","bytes":1234,"micros":560,"result":"ok"}</pre>
+ * Records are queued and written in batches by a thread of their own, so the copies never wait on formatting or
+ * on the disk. With a journal the per-file log lines are only a sample (about one a second) since the journal
+ * already has every file; without one everything is logged as before.
+ */
+class AuditJournal implements AutoCloseable {
+    /**
+     * @param file The journal to append to; null for none.
+     * @throws IllegalArgumentException When the file cannot be opened.
+     */
+    static AuditJournal open(File file) {
+        if(file == null)
+            return new AuditJournal(null);
+        if(file.getAbsoluteFile().getParentFile() != null)
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        try {
+            return new AuditJournal(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8), BUFFER_SIZE));
+        } catch(FileNotFoundException e) {
+            throw new IllegalArgumentException("Cannot open the audit journal: " + file);
+        }
+    }
+
+    private AuditJournal(Writer out) {
+        out_ = out;
+        if(out_ != null) {
+            writer_ = new Thread(this::drain, "audit-journal");
+            writer_.setDaemon(true);
+            writer_.start();
+        } else
+            writer_ = null;
+    }
+
+    /**
+     * Queue a record; only blocks when the writer is far behind.
+     *
+     * @param action What was done ("backup", "unchanged", "restore", ...).
+     * @param path The source file (backup) or the file written (restore).
+     * @param bytes The size of the file or -1 when not known.
+     * @param nanos How long the copy took; 0 when nothing was copied.
+     * @param result "ok", "failed", ...
+     */
+    void record(String action, Object path, long bytes, long nanos, String result) {
+        if(writer_ == null)
+            return;
+        try {
+            queue_.put(new Record(System.currentTimeMillis(), action, String.valueOf(path), bytes, nanos / 1000L,
+                    result));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Whether to log this file: always without a journal, a sample with one...
+    boolean logEach() {
+        if(writer_ == null)
+            return true;
+        long now = System.currentTimeMillis();
+        long next = nextLog_.get();
+        return now >= next && nextLog_.compareAndSet(next, now + LOG_SAMPLE_MILLIS);
+    }
+
+    // True when records were lost (logged); known once closed...
+    boolean failed() { return error_ != null; }
+
+    /**
+     * Write what is queued and close the file.
+     */
+    @Override
+    public void close() {
+        if(writer_ == null || closed_)
+            return;
+        closed_ = true;
+        try {
+            queue_.put(END);
+            writer_.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out_.close();
+        } catch(IOException e) {
+            if(error_ == null)
+                error_ = e;
+        }
+        if(error_ != null) {
+            log_.error("Writing the audit journal failed, it is incomplete!");
+            log_.catching(Level.DEBUG, error_);
+        }
+    }
+
+    // A failed journal keeps taking records so the copies never block on it...
+    private void drain() {
+        List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder line = new StringBuilder(256);
+        try {
+            while(true) {
+                batch.add(queue_.take());
+                queue_.drainTo(batch, BATCH_SIZE - 1);
+                for(Record record: batch) {
+                    if(record == END)
+                        return;
+                    if(error_ == null)
+                        write(record, line);
+                }
+                if(error_ == null && queue_.isEmpty())
+                    flush();
+                batch.clear();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if(error_ == null)
+                flush();
+        }
+    }
+
+    private void write(Record record, StringBuilder line) {
+        line.setLength(0);
+        line.append("{\"time\":").append(record.time());
+        line.append(",\"action\":");
+        quote(line, record.action());
+        line.append(",\"path\":");
+        quote(line, record.path());
+        if(record.bytes() >= 0L)
+            line.append(",\"bytes\":").append(record.bytes());
+        if(record.micros() > 0L)
+            line.append(",\"micros\":").append(record.micros());
+        line.append(",\"result\":");
+        quote(line, record.result());
+        line.append("}\n");
+        try {
+            out_.append(line);
+        } catch(IOException e) {
+            error_ = e;
+        }
+    }
+
+    private void flush() {
+        try {
+            out_.flush();
+        } catch(IOException e) {
+            error_ = e;
+        }
+    }
+
+    private static void quote(StringBuilder line, String text) {
+        line.append('"');
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch(c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if(c < 0x20)
+                        line.append(String.format("\\u%04x", (int)c));
+                    else
+                        line.append(c);
+                }
+            }
+        }
+        line.append('"');
+    }
+
+    private record Record(long time, String action, String path, long bytes, long micros, String result) {}
+
+    private final Writer out_;
+    private final Thread writer_;
+    private final BlockingQueue<Record> queue_ = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong nextLog_ = new AtomicLong(0L);
+    private final Logger log_ = LogManager.getRootLogger();
+    private volatile IOException error_ = null;
+    private boolean closed_ = false;
+
+    private static final Record END = new Record(0L, "", "", -1L, 0L, "");
+    private static final int QUEUE_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long LOG_SAMPLE_MILLIS = 1000L;
+}
@@ -23,19 +23,29 @@ import java.util.jar.Manifest;
  *  # backup files in a backup set
  *  # restore a backup set in-place or into a new chroot
  *  # recover backup-ed up files from a key and index file
+ *  # migrate a backup set's destination to a new folder layout
+ *  # query a backup set's index or list what changed in its last backup
+ *  # prune the snapshots a backup set's retention policy no longer keeps
+ *  # benchmark all of the above against a generated data set
  */
-@Command(subcommands = {GenerateKey.class, CreateBackupSet.class, DoBackup.class, DoRestore.class, DoRecover.class}, name = "backups",
+@Command(subcommands = {GenerateKey.class, CreateBackupSet.class, DoBackup.class, DoRestore.class, DoRecover.class,
+        MigrateLayout.class, DoQuery.class, DoDiff.class, DoPrune.class, Benchmark.class}, name = "backups",
         versionProvider=Backup.Version.class, mixinStandardHelpOptions = true,
         description = "Tool to perform a compressed and encrypted backup.")
 public class Backup implements Callable<Integer> {
     public static void main(String[] args) {
+        System.exit(execute(args));
+    }
+
+    // Run a command line without exiting the JVM (also used by the benchmark phases)...
+    static int execute(String... args) {
         String logLevel = "WARN"; // Default logging level
         if(System.getenv().containsKey("LOG_LEVEL")) // Next, check environment...
             logLevel = System.getenv("LOG_LEVEL");
         logLevel = System.getProperty("logLevel", logLevel); // Finally, check command line property.
         ((org.apache.logging.log4j.core.Logger)LogManager.getRootLogger()).setLevel(Level.getLevel(logLevel));
 
-        System.exit(new CommandLine(new Backup()).execute(args));
+        return new CommandLine(new Backup()).execute(args);
     }
 
     private Backup() { log_ = LogManager.getRootLogger(); }
@@ -0,0 +1,323 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.crypto.CompressionDictionary;
+import com.amonson.crypto.Copier;
+import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A backup set (or a snapshot of it) as a read-only file system. The tree is the index: files are the backed up
+ * files at their source paths and folders are the folders above them. Listing a folder only loads the index shards
+ * that can hold its files. File contents are decrypted as they are read; decrypted blocks are kept in a small LRU
+ * so reading back a little (headers, indexes at the end of archives, ...) does not decrypt the file again from the
+ * start. Seeking forward decrypts the skipped part, seeking back past the cached blocks starts over.
+ */
+final class BackupFileSystem extends FileSystem {
+    BackupFileSystem(BackupFileSystemProvider provider, String name, StorageBackend storage, BackupIndex index,
+                     KeyData key, CompressionDictionary dictionary) {
+        provider_ = provider;
+        name_ = name;
+        storage_ = storage;
+        index_ = index;
+        key_ = key;
+        dictionary_ = dictionary;
+    }
+
+    @Override public BackupFileSystemProvider provider() { return provider_; }
+    @Override public boolean isOpen() { return open_; }
+    @Override public boolean isReadOnly() { return true; }
+    @Override public String getSeparator() { return BackupPath.SEPARATOR; }
+    @Override public Iterable<Path> getRootDirectories() { return List.of(getPath(BackupPath.SEPARATOR)); }
+    @Override public Iterable<FileStore> getFileStores() { return List.of(); }
+    @Override public Set<String> supportedFileAttributeViews() { return Set.of("basic"); }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(!open_)
+            return;
+        open_ = false;
+        provider_.closed(this);
+        blocks_.clear();
+        storage_.close();
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for(String name: more)
+            if(!name.isEmpty())
+                path.append(BackupPath.SEPARATOR).append(name);
+        return new BackupPath(this, path.toString());
+    }
+
+    // Glob and regex patterns mean the same as on the default file system...
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        return (path) -> matcher.matches(Path.of(path.toString()));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("A backup does not keep file owners!");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("A backup does not change, it cannot be watched!");
+    }
+
+    // The set file or index location the file system was opened from...
+    String getName() { return name_; }
+
+    URI toUri(String path) {
+        return URI.create(BackupFileSystemProvider.SCHEME + ":" + name_ + BackupFileSystemProvider.ENTRY_SEPARATOR +
+                path);
+    }
+
+    boolean exists(String path) throws IOException {
+        return entry(path) != null || isFolder(path);
+    }
+
+    /**
+     * @param path An absolute, normalized path.
+     * @return The backed up file or null when it is a folder, not in the backup or was gone from the source when
+     *         the snapshot was taken.
+     */
+    BackupIndexEntry entry(String path) throws IOException {
+        BackupIndexEntry entry = stored(path);
+        return (entry == null || entry.isDeleted()) ? null : entry;
+    }
+
+    boolean isFolder(String path) throws IOException {
+        return path.equals(BackupPath.SEPARATOR) || !list(path).isEmpty();
+    }
+
+    /**
+     * @param folder An absolute, normalized path.
+     * @return The names in the folder, sorted; empty when it is not a folder in the backup.
+     */
+    List<String> list(String folder) throws IOException {
+        checkOpen();
+        synchronized(listings_) {
+            List<String> names = listings_.get(folder);
+            if(names != null)
+                return names;
+        }
+        Set<String> names = new TreeSet<>();
+        String prefix = folder.equals(BackupPath.SEPARATOR) ? folder : folder + BackupPath.SEPARATOR;
+        synchronized(index_) {
+            // Sub-folders with shards of their own are known without loading those shards...
+            for(String shard: index_.shardFolders())
+                if(shard.startsWith(prefix) && index_.presentSize(shard) > 0)
+                    names.add(firstName(shard.substring(prefix.length())));
+            for(BackupIndexEntry entry: index_.entriesAbove(new File(folder))) {
+                String path = entry.getFile().getPath();
+                if(path.startsWith(prefix) && !entry.isDeleted())
+                    names.add(firstName(path.substring(prefix.length())));
+            }
+        }
+        List<String> listing = List.copyOf(names);
+        synchronized(listings_) {
+            listings_.put(folder, listing);
+        }
+        return listing;
+    }
+
+    BasicFileAttributes readAttributes(String path) throws IOException {
+        BackupIndexEntry entry = entry(path);
+        if(entry != null)
+            return new Attributes(FileTime.fromMillis(entry.getLastModifiedTs()), entry.getLastSize(), false,
+                    entry.getFile().getPath());
+        if(!isFolder(path))
+            throw new NoSuchFileException(path);
+        return new Attributes(FileTime.fromMillis(index_.getGeneration()), 0L, true, path);
+    }
+
+    SeekableByteChannel newChannel(String path) throws IOException {
+        BackupIndexEntry entry = entry(path);
+        if(entry == null)
+            throw new NoSuchFileException(path);
+        BackupIndexEntry data = entry;
+        if(entry.isLink()) {
+            data = stored(entry.getLinkTo()); // The file linked to may have been deleted since.
+            if(data == null)
+                throw new NoSuchFileException(path, entry.getLinkTo(), "Hard link to a file missing from the index");
+        }
+        return new BlobChannel(data, entry.getLastSize());
+    }
+
+    // Including the entries of deleted files...
+    private BackupIndexEntry stored(String path) throws IOException {
+        checkOpen();
+        if(path.equals(BackupPath.SEPARATOR))
+            return null;
+        synchronized(index_) { // It loads shards as they are needed...
+            return index_.getEntry(path);
+        }
+    }
+
+    private void checkOpen() {
+        if(!open_)
+            throw new ClosedFileSystemException();
+    }
+
+    private static String firstName(String rest) {
+        int slash = rest.indexOf('/');
+        return (slash < 0) ? rest : rest.substring(0, slash);
+    }
+
+    private byte[] cachedBlock(String blobKey, long block) {
+        synchronized(blocks_) {
+            return blocks_.get(blobKey + "#" + block);
+        }
+    }
+
+    private void cacheBlock(String blobKey, long block, byte[] data) {
+        synchronized(blocks_) {
+            blocks_.put(blobKey + "#" + block, data);
+        }
+    }
+
+    // Reads a backed up file through the block cache; only one decrypting stream per channel...
+    private final class BlobChannel implements SeekableByteChannel {
+        BlobChannel(BackupIndexEntry data, long size) {
+            data_ = data;
+            blobKey_ = index_.blobKey(data); // Also names the blocks of an inlined file.
+            size_ = size;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if(!open_)
+                throw new ClosedChannelException();
+            if(position_ >= size_)
+                return -1;
+            int total = 0;
+            while(dst.hasRemaining() && position_ < size_) {
+                long block = position_ / BLOCK_SIZE;
+                byte[] data = block(block);
+                int offset = (int)(position_ - block * BLOCK_SIZE);
+                if(offset >= data.length)
+                    break; // The blob is shorter than the index says.
+                int count = Math.min(dst.remaining(), data.length - offset);
+                dst.put(data, offset, count);
+                position_ += count;
+                total += count;
+            }
+            return (total == 0) ? -1 : total;
+        }
+
+        @Override public int write(ByteBuffer src) { throw new NonWritableChannelException(); }
+        @Override public synchronized long position() { return position_; }
+        @Override public long size() { return size_; }
+        @Override public SeekableByteChannel truncate(long size) { throw new NonWritableChannelException(); }
+        @Override public synchronized boolean isOpen() { return open_; }
+
+        @Override
+        public synchronized SeekableByteChannel position(long position) {
+            if(position < 0L)
+                throw new IllegalArgumentException("Negative position: " + position);
+            position_ = position;
+            return this;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            open_ = false;
+            if(stream_ != null)
+                stream_.close();
+            stream_ = null;
+        }
+
+        private byte[] block(long block) throws IOException {
+            byte[] data = cachedBlock(blobKey_, block);
+            if(data != null)
+                return data;
+            if(stream_ == null || block < next_) {
+                if(stream_ != null)
+                    stream_.close();
+                stream_ = Copier.openDecrypting(index_.openBlob(storage_, data_), key_, dictionary_);
+                next_ = 0L;
+            }
+            while(next_ <= block) {
+                data = stream_.readNBytes(BLOCK_SIZE);
+                cacheBlock(blobKey_, next_, data);
+                next_ += 1;
+                if(data.length < BLOCK_SIZE && next_ <= block)
+                    return new byte[0];
+            }
+            return data;
+        }
+
+        private final BackupIndexEntry data_;
+        private final String blobKey_;
+        private final long size_;
+        private long position_ = 0L;
+        private boolean open_ = true;
+        private InputStream stream_ = null;
+        private long next_ = 0L; // The block the stream reads next.
+    }
+
+    private record Attributes(FileTime modified, long size, boolean folder, String key) implements BasicFileAttributes {
+        @Override public FileTime lastModifiedTime() { return modified; }
+        @Override public FileTime lastAccessTime() { return modified; }
+        @Override public FileTime creationTime() { return modified; }
+        @Override public boolean isRegularFile() { return !folder; }
+        @Override public boolean isDirectory() { return folder; }
+        @Override public boolean isSymbolicLink() { return false; }
+        @Override public boolean isOther() { return false; }
+        @Override public Object fileKey() { return key; }
+    }
+
+    private final BackupFileSystemProvider provider_;
+    private final String name_;
+    private final StorageBackend storage_;
+    private final BackupIndex index_;
+    private final KeyData key_;
+    private final CompressionDictionary dictionary_;
+    private volatile boolean open_ = true;
+    private final Map<String,List<String>> listings_ = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String,List<String>> eldest) {
+            return size() > CACHED_LISTINGS;
+        }
+    };
+    private final Map<String,byte[]> blocks_ = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String,byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int CACHED_BLOCKS = 64; // 16 MB
+    private static final int CACHED_LISTINGS = 256;
+}
@@ -0,0 +1,377 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.crypto.CompressionDictionary;
+import com.amonson.crypto.Copier;
+import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
+import com.amonson.storage.StorageBackends;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Opens backups as read-only file systems (scheme "backup"), so a backed up file can be read where it is instead
+ * of being restored first:
+ * <pre>
+ *     try (FileSystem backup = FileSystems.newFileSystem(Path.of("home.set"))) {
+ *         Files.copy(backup.getPath("/home/me/notes.txt"), Path.of("notes.txt"));
+ *     }
+ * </pre>
+ * A backup set file opens its latest backup; with the "as-of" option (a time as for do-restore --as-of) the
+ * snapshot of that time. Without the set file, "backup:&lt;index&gt;" (a file or s3:// object as for do-recover)
+ * opens an index with the "key-file" option and any "storage-option.&lt;name&gt;" options. Paths in URIs follow
+ * a "!", as for jar file systems: "backup:/etc/home.set!/home/me/notes.txt".
+ */
+public final class BackupFileSystemProvider extends FileSystemProvider {
+    @Override public String getScheme() { return SCHEME; }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String,?> env) throws IOException {
+        String name = nameOf(uri);
+        synchronized(fileSystems_) {
+            if(fileSystems_.containsKey(name))
+                throw new FileSystemAlreadyExistsException(name);
+            BackupFileSystem fileSystem = (env.get("key-file") != null) ? openIndex(name, env) :
+                    openSet(new File(name), env);
+            fileSystems_.put(name, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    // FileSystems.newFileSystem(Path) offers every file to every provider; only backup set files are taken...
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String,?> env) throws IOException {
+        if(path.getFileSystem() != FileSystems.getDefault() || !Files.isRegularFile(path) ||
+                Files.size(path) > MAX_SET_FILE_SIZE)
+            throw new UnsupportedOperationException("Not a backup set file: " + path);
+        BackupSet set;
+        try {
+            set = newGson().fromJson(Files.readString(path, StandardCharsets.UTF_8), BackupSet.class);
+        } catch(IOException | RuntimeException e) {
+            throw new UnsupportedOperationException("Not a backup set file: " + path);
+        }
+        if(set == null || set.getKeyFile() == null || set.getDestination() == null)
+            throw new UnsupportedOperationException("Not a backup set file: " + path);
+        return open(set, path.toAbsolutePath().toString(), env); // Not registered, as for zip files...
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        synchronized(fileSystems_) {
+            BackupFileSystem fileSystem = fileSystems_.get(nameOf(uri));
+            if(fileSystem == null)
+                throw new FileSystemNotFoundException(uri.toString());
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String part = uri.getSchemeSpecificPart();
+        int separator = part.indexOf(ENTRY_SEPARATOR);
+        if(separator < 0)
+            throw new IllegalArgumentException("No path after '" + ENTRY_SEPARATOR + "' in: " + uri);
+        return getFileSystem(uri).getPath(part.substring(separator + ENTRY_SEPARATOR.length()));
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+                                              FileAttribute<?>... attrs) throws IOException {
+        for(OpenOption option: options)
+            if(option != StandardOpenOption.READ && option != LinkOption.NOFOLLOW_LINKS)
+                throw new ReadOnlyFileSystemException();
+        BackupPath file = check(path);
+        return file.getFileSystem().newChannel(absolute(file));
+    }
+
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        return Channels.newInputStream(newByteChannel(path, Set.of(options)));
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        BackupPath folder = check(dir);
+        String path = absolute(folder);
+        List<String> names = folder.getFileSystem().list(path);
+        if(names.isEmpty() && !folder.getFileSystem().isFolder(path)) {
+            if(folder.getFileSystem().entry(path) != null)
+                throw new NotDirectoryException(path);
+            throw new NoSuchFileException(path);
+        }
+        List<Path> paths = new ArrayList<>();
+        for(String name: names) {
+            Path child = folder.resolve(name);
+            if(filter == null || filter.accept(child))
+                paths.add(child);
+        }
+        return new DirectoryStream<>() {
+            @Override public Iterator<Path> iterator() { return paths.iterator(); }
+            @Override public void close() {}
+        };
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        BackupPath file = check(path);
+        String absolute = absolute(file);
+        if(!file.getFileSystem().exists(absolute))
+            throw new NoSuchFileException(absolute);
+        for(AccessMode mode: modes)
+            if(mode == AccessMode.WRITE || (mode == AccessMode.EXECUTE && !file.getFileSystem().isFolder(absolute)))
+                throw new AccessDeniedException(absolute);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+            throws IOException {
+        if(type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException("Only basic attributes are kept in a backup!");
+        BackupPath file = check(path);
+        return (A)file.getFileSystem().readAttributes(absolute(file));
+    }
+
+    @Override
+    public Map<String,Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        String names = attributes;
+        int colon = attributes.indexOf(':');
+        if(colon >= 0) {
+            if(!attributes.substring(0, colon).equals("basic"))
+                throw new UnsupportedOperationException("Only basic attributes are kept in a backup!");
+            names = attributes.substring(colon + 1);
+        }
+        BasicFileAttributes basic = readAttributes(path, BasicFileAttributes.class);
+        Map<String,Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", basic.lastModifiedTime());
+        all.put("lastAccessTime", basic.lastAccessTime());
+        all.put("creationTime", basic.creationTime());
+        all.put("size", basic.size());
+        all.put("isRegularFile", basic.isRegularFile());
+        all.put("isDirectory", basic.isDirectory());
+        all.put("isSymbolicLink", basic.isSymbolicLink());
+        all.put("isOther", basic.isOther());
+        all.put("fileKey", basic.fileKey());
+        if(names.equals("*"))
+            return all;
+        Map<String,Object> selected = new LinkedHashMap<>();
+        for(String name: names.split(",")) {
+            if(!all.containsKey(name))
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            selected.put(name, all.get(name));
+        }
+        return selected;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if(type != BasicFileAttributeView.class)
+            return null;
+        return (V)new BasicFileAttributeView() {
+            @Override public String name() { return "basic"; }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return BackupFileSystemProvider.this.readAttributes(path, BasicFileAttributes.class);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        return path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        Path name = check(path).getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException("A backup has no file store!");
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    void closed(BackupFileSystem fileSystem) {
+        synchronized(fileSystems_) {
+            fileSystems_.remove(fileSystem.getName(), fileSystem);
+        }
+    }
+
+    private BackupFileSystem openSet(File setFile, Map<String,?> env) throws IOException {
+        if(!setFile.isFile())
+            throw new NoSuchFileException(setFile.toString(), null, "No backup set file");
+        BackupSet set = newGson().fromJson(Files.readString(setFile.toPath(), StandardCharsets.UTF_8),
+                BackupSet.class);
+        return open(set, setFile.getAbsolutePath(), env);
+    }
+
+    private BackupFileSystem open(BackupSet set, String name, Map<String,?> env) throws IOException {
+        StorageBackend storage = set.openStorage();
+        try {
+            // A dry run factory never writes to the destination...
+            BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, true);
+            BackupIndex index = factory.loadOnly(set.getKeyFile());
+            if(env.get("as-of") != null) {
+                index = factory.loadAsOf(index, EntryFilter.parseTime(env.get("as-of").toString()), set.getKeyFile());
+                if(index == null)
+                    throw new NoSuchFileException(name, null, "No snapshot from " + env.get("as-of") + " or before");
+            }
+            KeyData key = loadKey(set.getKeyFile());
+            return new BackupFileSystem(this, name, storage, index, key, loadDictionary(storage,
+                    set.getDictionaryKey(), key));
+        } catch(IOException | RuntimeException e) {
+            storage.close();
+            throw e;
+        }
+    }
+
+    // As do-recover: the encrypted files are next to the index...
+    private BackupFileSystem openIndex(String location, Map<String,?> env) throws IOException {
+        String normalized = StorageBackends.isRemote(location) ? location :
+                new File(location).getAbsolutePath().replace(File.separatorChar, '/');
+        int slash = normalized.lastIndexOf('/');
+        if(slash < 0 || slash == normalized.length() - 1)
+            throw new IllegalArgumentException("The index file location must name a file: " + location);
+        Map<String,String> options = new TreeMap<>();
+        for(Map.Entry<String,?> option: env.entrySet())
+            if(option.getKey().startsWith(STORAGE_OPTION))
+                options.put(option.getKey().substring(STORAGE_OPTION.length()), String.valueOf(option.getValue()));
+        StorageBackend storage = StorageBackends.open(normalized.substring(0, slash), options);
+        try {
+            String indexKey = normalized.substring(slash + 1);
+            KeyData key = loadKey(new File(env.get("key-file").toString()));
+            BackupIndex index = newGson().fromJson(Copier.readStringDecrypted(storage.get(indexKey), key),
+                    BackupIndex.class);
+            index.attach(storage, indexKey, key);
+            if(index.getExtension() == null)
+                index.setExtension(env.get("extension") == null ? "aes" : env.get("extension").toString());
+            String dictionaryKey = (indexKey.endsWith(".index") ? indexKey.substring(0, indexKey.length() -
+                    ".index".length()) : indexKey) + ".dict";
+            return new BackupFileSystem(this, location, storage, index, key, loadDictionary(storage, dictionaryKey,
+                    key));
+        } catch(IOException | RuntimeException e) {
+            storage.close();
+            throw e;
+        }
+    }
+
+    private KeyData loadKey(File keyFile) throws IOException {
+        return newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
+    }
+
+    private static CompressionDictionary loadDictionary(StorageBackend storage, String dictionaryKey, KeyData key)
+            throws IOException {
+        return storage.exists(dictionaryKey) ? CompressionDictionary.load(storage.get(dictionaryKey), key) : null;
+    }
+
+    private static String nameOf(URI uri) {
+        if(!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("Not a backup URI: " + uri);
+        String part = uri.getSchemeSpecificPart();
+        int separator = part.indexOf(ENTRY_SEPARATOR);
+        return (separator < 0) ? part : part.substring(0, separator);
+    }
+
+    private static BackupPath check(Path path) {
+        if(!(path instanceof BackupPath backupPath))
+            throw new ProviderMismatchException("Not a path in a backup: " + path);
+        return backupPath;
+    }
+
+    private static String absolute(BackupPath path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private Gson newGson() {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
+        builder.registerTypeAdapter(KeyData.class, KeyData.getGSonAdapter());
+        builder.registerTypeAdapter(BackupIndex.class, BackupIndex.getGSonAdapter());
+        return builder.create();
+    }
+
+    private final Map<String,BackupFileSystem> fileSystems_ = new HashMap<>();
+
+    static final String SCHEME = "backup";
+    static final String ENTRY_SEPARATOR = "!";
+    private static final String STORAGE_OPTION = "storage-option.";
+    private static final long MAX_SET_FILE_SIZE = 1024L * 1024L;
+}
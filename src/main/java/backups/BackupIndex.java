@@ -6,37 +6,154 @@ package backups;
 
 import com.amonson.crypto.Copier;
 import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.TypeAdapter;
-import com.google.gson.annotations.SerializedName;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
 
-class BackupIndex implements Iterable<BackupIndexEntry> {
-    boolean isFileInList(File file) {
-        return entries_.containsKey(file.getAbsolutePath());
+/**
+ * The index of a backup set. It is stored as a small manifest ("&lt;set&gt;.index") plus one encrypted shard per
+ * source folder and top level sub-folder ("&lt;set&gt;.index.d/&lt;hash&gt;.shard"). Shards are only loaded when a
+ * path inside them is looked up or iterated and only shards whose contents changed are written back, so small
+ * operations on huge sets stay fast.
+ */
+class BackupIndex {
+    // Where lazily loaded shards come from; not needed for an index that was never saved...
+    void attach(StorageBackend storage, String indexKey, KeyData key) {
+        storage_ = storage;
+        indexKey_ = indexKey;
+        key_ = key;
     }
 
-    void addNewFile(File file) {
-        entries_.putIfAbsent(file.getAbsolutePath(), new BackupIndexEntry(file));
+    // New files go into the shard of their source folder (or its top level sub-folder)...
+    void setRoots(Iterable<File> roots) {
+        roots_.clear();
+        for(File root: roots)
+            roots_.add(root.getAbsolutePath());
     }
 
-    void saveIndex(File indexFile, File keyFile) throws IOException {
-        String json = newGson().toJson(this, BackupIndex.class);
+    boolean isFileInList(File file) throws IOException {
+        return getEntry(file.getAbsolutePath()) != null;
+    }
+
+    void addNewFile(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        if(getEntry(path) != null)
+            return;
+        String folder = shardFolder(path);
+        Shard shard = shards_.computeIfAbsent(folder, Shard::new);
+        load(shard).put(path, new BackupIndexEntry(file));
+    }
+
+    BackupIndexEntry getEntry(String absPath) throws IOException {
+        distributeLegacy();
+        // Entries live in the shard of one of their ancestor folders...
+        for(File folder = new File(absPath).getParentFile(); folder != null; folder = folder.getParentFile()) {
+            Shard shard = shards_.get(folder.getPath());
+            if(shard != null) {
+                BackupIndexEntry entry = load(shard).get(absPath);
+                if(entry != null)
+                    return entry;
+            }
+        }
+        return null;
+    }
+
+    void saveIndex(StorageBackend storage, String indexKey, File keyFile) throws IOException {
         KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
-        Copier.writeStringEncrypted(json, indexFile, key);
+        distributeLegacy();
+        boolean changed = !storage.exists(indexKey) || storage != storage_;
+        long generation = startSnapshot(storage, indexKey);
+        for(Shard shard: shards_.values()) {
+            if(shard.entries_ == null && storage == storage_)
+                continue; // Never loaded so unchanged.
+            String json = writeShard(shard.folder_, load(shard));
+            String digest = digest(json);
+            if(digest.equals(shard.digest_) && storage == storage_)
+                continue;
+            shard.generation_ = generation;
+            Copier.writeStringEncrypted(json, storage.put(shardKey(indexKey, shard)), key);
+            shard.digest_ = digest;
+            shard.count_ = shard.entries_.size();
+            shard.deleted_ = countDeleted(shard.entries_);
+            shard.sorted_ = true;
+            changed = true;
+        }
+        if(changed || manifestChanged_) {
+            storage.sync(); // The files and shards it references are on disk before the manifest...
+            generation_ = generation;
+            String json = newGson().toJson(this, BackupIndex.class);
+            Copier.writeStringEncrypted(json, storage.put(snapshotKey(indexKey, generation)), key);
+            Copier.writeStringEncrypted(json, storage.put(indexKey), key);
+            storage.sync();
+            manifestChanged_ = false;
+        }
+        attach(storage, indexKey, key);
+    }
+
+    // The first write of a run starts a new snapshot. Shards are never rewritten in place: a run writes the shards
+    // it changes under its own generation and keeps a copy of its manifest in "<set>.index.snapshots/", so the
+    // index as of every earlier run can still be read until it is pruned...
+    private long startSnapshot(StorageBackend storage, String indexKey) throws IOException {
+        if(runGeneration_ == 0L) {
+            if(generation_ == 0L && storage.exists(indexKey) && !storage.exists(snapshotKey(indexKey, 0L))) {
+                // Written before snapshots were kept; its shards still hold that state so it is the first one...
+                try (InputStream in = storage.get(indexKey); OutputStream out = storage.put(snapshotKey(indexKey,
+                        0L))) {
+                    in.transferTo(out);
+                }
+            }
+            runGeneration_ = Math.max(System.currentTimeMillis(), generation_ + 1L);
+        }
+        return runGeneration_;
+    }
+
+    /**
+     * Make an index read from a snapshot manifest readable: its shards are found next to the current index and its
+     * blobs with the current layout (migrate-layout moves the blobs of every snapshot).
+     *
+     * @param current The current index (attached to its storage).
+     */
+    void useSnapshotOf(BackupIndex current) {
+        attach(current.storage_, current.indexKey_, current.key_);
+        layout_ = current.layout_;
+        if(extension_ == null)
+            extension_ = current.extension_;
+    }
+
+    // True when both indexes hold the same stored shard for the folder...
+    boolean sameShard(BackupIndex other, String folder) {
+        Shard mine = shards_.get(folder);
+        Shard theirs = other.shards_.get(folder);
+        return mine != null && theirs != null && mine.entries_ == null && theirs.entries_ == null &&
+                mine.generation_ == theirs.generation_;
     }
 
+    // The key of the folder's shard, or null while it only exists in memory...
+    String storedShardKey(String folder) {
+        Shard shard = shards_.get(folder);
+        if(shard == null || (shard.entries_ != null && shard.digest_ == null))
+            return null;
+        return shardKey(indexKey_, shard);
+    }
+
+    static String snapshotKey(String indexKey, long generation) {
+        return String.format("%s%s%013d", indexKey, SNAPSHOTS, generation);
+    }
+
+    // The run that wrote the manifest (0 for indexes from before snapshots were kept)...
+    long getGeneration() { return generation_; }
+
     private Gson newGson() {
         GsonBuilder builder = new GsonBuilder();
         builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
@@ -45,88 +162,671 @@ class BackupIndex implements Iterable<BackupIndexEntry> {
         return builder.create();
     }
 
+    // Reads the manifest. Version 2 indexes (an object with all "entries") and the original bare array of entries
+    // are read whole and split into shards on the next save...
     public static TypeAdapter<BackupIndex> getGSonAdapter() {
         return new TypeAdapter<>() {
             @Override public BackupIndex read(JsonReader reader) throws IOException {
                 BackupIndex index = new BackupIndex();
-                reader.beginArray();
+                if(reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    index.legacy_ = new HashMap<>();
+                    readEntries(reader, index.legacy_);
+                    return index;
+                }
+                reader.beginObject();
                 while(reader.hasNext()) {
-                    reader.beginObject();
-                    String path = null;
-                    BackupIndexEntry entry = new BackupIndexEntry();
-                    while(reader.hasNext()) {
-                        JsonToken token = reader.peek();
-                        String fieldName = null;
-                        if (token.equals(JsonToken.NAME)) {
-                            //get the current token
-                            fieldName = reader.nextName();
-                        }
-                        if ("full-name".equals(fieldName)) {
-                            //move to next token
-                            token = reader.peek();
-                            path = reader.nextString();
-                        }
-                        if ("file".equals(fieldName)) {
-                            //move to next token
-                            token = reader.peek();
-                            entry.file_ = new File(reader.nextString());
+                    String fieldName = reader.nextName();
+                    if("version".equals(fieldName)) {
+                        int version = reader.nextInt();
+                        if(version > FORMAT_VERSION)
+                            throw new IOException("Index file format is newer than this tool: " + version);
+                    } else if("extension".equals(fieldName)) {
+                        index.extension_ = reader.nextString();
+                    } else if("generation".equals(fieldName)) {
+                        index.generation_ = reader.nextLong();
+                    } else if("resume-folder".equals(fieldName)) {
+                        index.resumeFolder_ = reader.nextString();
+                    } else if("fan-out-levels".equals(fieldName)) {
+                        index.layout_ = new BlobLayout(reader.nextInt());
+                    } else if("entries".equals(fieldName)) {
+                        index.legacy_ = new HashMap<>();
+                        readEntries(reader, index.legacy_);
+                    } else if("shards".equals(fieldName)) {
+                        reader.beginArray();
+                        while(reader.hasNext()) {
+                            Shard shard = readShardInfo(reader);
+                            index.shards_.put(shard.folder_, shard);
                         }
-                        if ("id".equals(fieldName)) {
-                            //move to next token
-                            token = reader.peek();
-                            entry.fileId_ = reader.nextString();
-                        }
-                        if ("last-modified".equals(fieldName)) {
-                            //move to next token
-                            token = reader.peek();
-                            entry.lastModified_ = reader.nextLong();
-                        }
-                        if ("last-size".equals(fieldName)) {
-                            //move to next token
-                            token = reader.peek();
-                            entry.lastSize_ = reader.nextLong();
-                        }
-                    }
-                    reader.endObject();
-                    index.entries_.put(path, entry);
+                        reader.endArray();
+                    } else
+                        reader.skipValue();
                 }
-                reader.endArray();
+                reader.endObject();
                 return index;
             }
             @Override public void write(JsonWriter writer, BackupIndex data) throws IOException {
+                writer.beginObject();
+                writer.name("version");
+                writer.value(FORMAT_VERSION);
+                writer.name("extension");
+                writer.value(data.extension_);
+                writer.name("generation");
+                writer.value(data.generation_);
+                writer.name("fan-out-levels");
+                writer.value(data.layout_.getFanOutLevels());
+                if(data.resumeFolder_ != null) {
+                    writer.name("resume-folder");
+                    writer.value(data.resumeFolder_);
+                }
+                writer.name("shards");
                 writer.beginArray();
-                for(Map.Entry<String,BackupIndexEntry> entry: data.entries_.entrySet()) {
+                for(Shard shard: data.shards_.values()) {
                     writer.beginObject();
-                    writer.name("full-name");
-                    writer.value(entry.getKey());
-                    writer.name("file");
-                    writer.value(entry.getValue().file_.toString());
-                    writer.name("id");
-                    writer.value(entry.getValue().fileId_);
-                    writer.name("last-modified");
-                    writer.value(entry.getValue().lastModified_);
-                    writer.name("last-size");
-                    writer.value(entry.getValue().lastSize_);
+                    writer.name("folder");
+                    writer.value(shard.folder_);
+                    writer.name("name");
+                    writer.value(shard.name_);
+                    writer.name("entries");
+                    writer.value(shard.count_);
+                    if(shard.deleted_ > 0) {
+                        writer.name("deleted");
+                        writer.value(shard.deleted_);
+                    }
+                    writer.name("sorted");
+                    writer.value(shard.sorted_);
+                    writer.name("generation");
+                    writer.value(shard.generation_);
                     writer.endObject();
                 }
                 writer.endArray();
+                writer.endObject();
             }
         };
     }
 
-    BackupIndexEntry getEntry(String absPath) {
-        return entries_.get(absPath);
+    private static Shard readShardInfo(JsonReader reader) throws IOException {
+        String folder = null;
+        String name = null;
+        int count = 0;
+        int deleted = 0;
+        boolean sorted = false;
+        long generation = 0L;
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String fieldName = reader.nextName();
+            if("folder".equals(fieldName))
+                folder = reader.nextString();
+            else if("name".equals(fieldName))
+                name = reader.nextString();
+            else if("entries".equals(fieldName))
+                count = reader.nextInt();
+            else if("deleted".equals(fieldName))
+                deleted = reader.nextInt();
+            else if("sorted".equals(fieldName))
+                sorted = reader.nextBoolean();
+            else if("generation".equals(fieldName))
+                generation = reader.nextLong();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        if(folder == null || name == null)
+            throw new IOException("Index manifest has a shard without a folder or name!");
+        Shard shard = new Shard(folder, name);
+        shard.count_ = count;
+        shard.deleted_ = deleted;
+        shard.sorted_ = sorted;
+        shard.generation_ = generation;
+        return shard;
     }
 
-    @Override  public Iterator<BackupIndexEntry> iterator() {
-        return entries_.values().iterator();
+    private static void readEntries(JsonReader reader, Map<String,BackupIndexEntry> entries) throws IOException {
+        reader.beginArray();
+        while(reader.hasNext()) {
+            Map.Entry<String,BackupIndexEntry> entry = readEntry(reader);
+            entries.put(entry.getKey(), entry.getValue());
+        }
+        reader.endArray();
     }
 
-    int size() { return entries_.size(); }
+    private static Map.Entry<String,BackupIndexEntry> readEntry(JsonReader reader) throws IOException {
+        reader.beginObject();
+        String path = null;
+        BackupIndexEntry entry = new BackupIndexEntry();
+        while(reader.hasNext()) {
+            JsonToken token = reader.peek();
+            String fieldName = null;
+            if (token.equals(JsonToken.NAME)) {
+                //get the current token
+                fieldName = reader.nextName();
+            }
+            if ("full-name".equals(fieldName)) {
+                //move to next token
+                token = reader.peek();
+                path = reader.nextString();
+            }
+            if ("file".equals(fieldName)) {
+                //move to next token
+                token = reader.peek();
+                entry.file_ = new File(reader.nextString());
+            }
+            if ("id".equals(fieldName)) {
+                //move to next token
+                token = reader.peek();
+                entry.fileId_ = reader.nextString();
+            }
+            if ("last-modified".equals(fieldName)) {
+                //move to next token
+                token = reader.peek();
+                entry.lastModified_ = reader.nextLong();
+            }
+            if ("last-size".equals(fieldName)) {
+                //move to next token
+                token = reader.peek();
+                entry.lastSize_ = reader.nextLong();
+            }
+            if ("link-to".equals(fieldName)) {
+                entry.linkTo_ = reader.nextString();
+            }
+            if ("version".equals(fieldName)) {
+                entry.version_ = reader.nextInt();
+            }
+            if ("sha-256".equals(fieldName)) {
+                entry.hash_ = reader.nextString();
+            }
+            if ("pending".equals(fieldName)) {
+                entry.pending_ = reader.nextBoolean();
+            }
+            if ("inline".equals(fieldName)) {
+                entry.inline_ = Base64.getDecoder().decode(reader.nextString());
+            }
+            if ("inode".equals(fieldName)) {
+                entry.inode_ = reader.nextString();
+            }
+            if ("changed".equals(fieldName)) {
+                entry.changed_ = reader.nextLong();
+            }
+            if ("fingerprint".equals(fieldName)) {
+                entry.fingerprint_ = reader.nextString();
+            }
+            if ("deleted".equals(fieldName)) {
+                entry.deleted_ = reader.nextBoolean();
+            }
+        }
+        reader.endObject();
+        return Map.entry(path, entry);
+    }
+
+    private static void writeEntries(JsonWriter writer, Map<String,BackupIndexEntry> entries) throws IOException {
+        writer.beginArray();
+        for(Map.Entry<String,BackupIndexEntry> entry: entries.entrySet())
+            writeEntry(writer, entry.getKey(), entry.getValue());
+        writer.endArray();
+    }
+
+    private static void writeEntry(JsonWriter writer, String path, BackupIndexEntry entry) throws IOException {
+        writer.beginObject();
+        writer.name("full-name");
+        writer.value(path);
+        writer.name("file");
+        writer.value(entry.file_.toString());
+        writer.name("id");
+        writer.value(entry.fileId_);
+        writer.name("last-modified");
+        writer.value(entry.lastModified_);
+        writer.name("last-size");
+        writer.value(entry.lastSize_);
+        if(entry.linkTo_ != null) {
+            writer.name("link-to");
+            writer.value(entry.linkTo_);
+        }
+        if(entry.version_ != 0) {
+            writer.name("version");
+            writer.value(entry.version_);
+        }
+        if(entry.hash_ != null) {
+            writer.name("sha-256");
+            writer.value(entry.hash_);
+        }
+        if(entry.pending_) {
+            writer.name("pending");
+            writer.value(true);
+        }
+        if(entry.inline_ != null) {
+            writer.name("inline");
+            writer.value(Base64.getEncoder().encodeToString(entry.inline_));
+        }
+        if(entry.inode_ != null) {
+            writer.name("inode");
+            writer.value(entry.inode_);
+            writer.name("changed");
+            writer.value(entry.changed_);
+        }
+        if(entry.fingerprint_ != null) {
+            writer.name("fingerprint");
+            writer.value(entry.fingerprint_);
+        }
+        if(entry.deleted_) {
+            writer.name("deleted");
+            writer.value(true);
+        }
+        writer.endObject();
+    }
+
+    private static String writeShard(String folder, Map<String,BackupIndexEntry> entries) throws IOException {
+        StringWriter json = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(json)) {
+            writer.beginObject();
+            writer.name("version");
+            writer.value(FORMAT_VERSION);
+            writer.name("folder");
+            writer.value(folder);
+            writer.name("entries");
+            writeEntries(writer, entries);
+            writer.endObject();
+        }
+        return json.toString();
+    }
+
+    private static Map<String,BackupIndexEntry> readShard(String json) throws IOException {
+        Map<String,BackupIndexEntry> entries = new TreeMap<>(PATH_ORDER);
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String fieldName = reader.nextName();
+                if("entries".equals(fieldName))
+                    readEntries(reader, entries);
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+        }
+        return entries;
+    }
+
+    private Map<String,BackupIndexEntry> load(Shard shard) throws IOException {
+        if(shard.entries_ != null)
+            return shard.entries_;
+        if(storage_ == null)
+            throw new IOException("Index shard cannot be loaded from an unsaved index: " + shard.folder_);
+        String json = Copier.readStringDecrypted(storage_.get(shardKey(indexKey_, shard)), key_);
+        shard.entries_ = readShard(json);
+        shard.digest_ = digest(writeShard(shard.folder_, shard.entries_));
+        shard.count_ = shard.entries_.size();
+        shard.deleted_ = countDeleted(shard.entries_);
+        return shard.entries_;
+    }
+
+    // A source folder's own files share one shard and each top level sub-folder gets its own; paths outside every
+    // source folder (a folder removed from the set) are grouped by their first path component...
+    private String shardFolder(String path) {
+        for(String root: roots_) {
+            if(path.startsWith(root + File.separator)) {
+                String rest = path.substring(root.length() + 1);
+                int separator = rest.indexOf(File.separatorChar);
+                return (separator < 0) ? root : root + File.separator + rest.substring(0, separator);
+            }
+        }
+        File file = new File(path);
+        File top = file.getParentFile();
+        while(top != null && top.getParentFile() != null && top.getParentFile().getParentFile() != null)
+            top = top.getParentFile();
+        return (top == null) ? "" : top.getPath();
+    }
 
-    Iterator<String> filenameIterator() {
-        return entries_.keySet().iterator();
+    private void distributeLegacy() {
+        if(legacy_ == null)
+            return;
+        for(Map.Entry<String,BackupIndexEntry> entry: legacy_.entrySet()) {
+            Shard shard = shards_.computeIfAbsent(shardFolder(entry.getKey()), Shard::new);
+            if(shard.entries_ == null)
+                shard.entries_ = new TreeMap<>(PATH_ORDER);
+            shard.entries_.put(entry.getKey(), entry.getValue());
+        }
+        legacy_ = null;
+        manifestChanged_ = true;
     }
 
-    @SerializedName(value="filesMap") private Map<String, BackupIndexEntry> entries_ = new HashMap<>();
+    private static int countDeleted(Map<String,BackupIndexEntry> entries) {
+        int count = 0;
+        for(BackupIndexEntry entry: entries.values())
+            if(entry.isDeleted())
+                count += 1;
+        return count;
+    }
+
+    private static String shardKey(String indexKey, Shard shard) {
+        if(shard.generation_ == 0L)
+            return indexKey + ".d/" + shard.name_ + ".shard"; // Rewritten in place before snapshots were kept.
+        return indexKey + ".d/" + shard.name_ + "." + shard.generation_ + ".shard";
+    }
+
+    private static String digest(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                    .digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+    }
+
+    /**
+     * Read a shard's entries in {@link #PATH_ORDER} without holding them all in memory (unless the shard is
+     * already loaded or predates sorted shards).
+     *
+     * @param folder The shard folder.
+     * @return The reader; it is empty for a shard that does not exist.
+     */
+    ShardReader openShardReader(String folder) throws IOException {
+        distributeLegacy();
+        Shard shard = shards_.get(folder);
+        if(shard == null)
+            return new ShardReader(Collections.emptyIterator());
+        if(shard.entries_ != null || !shard.sorted_)
+            return new ShardReader(load(shard).entrySet().iterator());
+        return new ShardReader(new JsonReader(new InputStreamReader(Copier.openDecrypted(
+                storage_.get(shardKey(indexKey_, shard)), key_), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Replace a shard's entries with entries written in {@link #PATH_ORDER} without holding them in memory. The new
+     * shard only replaces the old one on {@link ShardWriter#commit()}.
+     *
+     * @param folder The shard folder.
+     * @return The writer.
+     */
+    ShardWriter openShardWriter(String folder) throws IOException {
+        if(storage_ == null)
+            throw new IOException("Index shards cannot be streamed to an unsaved index: " + folder);
+        long generation = startSnapshot(storage_, indexKey_);
+        Shard shard = shards_.computeIfAbsent(folder, (f) -> new Shard(f, digest(f).substring(0, 16)));
+        return new ShardWriter(shard, generation);
+    }
+
+    // The shards as stored (files walked in PATH_ORDER visit them in this order too)...
+    List<String> shardFolders() {
+        distributeLegacy();
+        return new ArrayList<>(shards_.keySet());
+    }
+
+    // Without loading the shard...
+    int shardSize(String folder) {
+        Shard shard = shards_.get(folder);
+        if(shard == null)
+            return 0;
+        return (shard.entries_ == null) ? shard.count_ : shard.entries_.size();
+    }
+
+    // Entries of files still in the source, without loading the shard...
+    int presentSize(String folder) {
+        Shard shard = shards_.get(folder);
+        if(shard == null)
+            return 0;
+        if(shard.entries_ != null)
+            return shard.entries_.size() - countDeleted(shard.entries_);
+        return shard.count_ - shard.deleted_;
+    }
+
+    class ShardReader implements Closeable {
+        private ShardReader(Iterator<Map.Entry<String,BackupIndexEntry>> entries) {
+            entries_ = entries;
+            reader_ = null;
+        }
+
+        private ShardReader(JsonReader reader) throws IOException {
+            entries_ = null;
+            reader_ = reader;
+            reader_.beginObject();
+            while(reader_.hasNext()) {
+                if("entries".equals(reader_.nextName())) {
+                    reader_.beginArray();
+                    return;
+                }
+                reader_.skipValue();
+            }
+            throw new IOException("Index shard has no entries!");
+        }
+
+        /**
+         * @return The next entry or null after the last one.
+         */
+        Map.Entry<String,BackupIndexEntry> next() throws IOException {
+            if(entries_ != null)
+                return entries_.hasNext() ? entries_.next() : null;
+            if(!reader_.hasNext())
+                return null;
+            Map.Entry<String,BackupIndexEntry> entry = readEntry(reader_);
+            if(last_ != null && PATH_ORDER.compare(last_, entry.getKey()) >= 0)
+                throw new IOException("Index shard is not sorted at: " + entry.getKey());
+            last_ = entry.getKey();
+            return entry;
+        }
+
+        @Override public void close() throws IOException {
+            if(reader_ != null)
+                reader_.close();
+        }
+
+        private final Iterator<Map.Entry<String,BackupIndexEntry>> entries_;
+        private final JsonReader reader_;
+        private String last_ = null;
+    }
+
+    class ShardWriter implements Closeable {
+        private ShardWriter(Shard shard, long generation) throws IOException {
+            shard_ = shard;
+            shardGeneration_ = generation;
+            Shard written = new Shard(shard.folder_, shard.name_);
+            written.generation_ = generation;
+            shardKey_ = shardKey(indexKey_, written);
+            tempKey_ = shardKey_ + ".tmp";
+            writer_ = new JsonWriter(new OutputStreamWriter(Copier.openEncrypted(storage_.put(tempKey_), key_),
+                    StandardCharsets.UTF_8));
+            writer_.beginObject();
+            writer_.name("version");
+            writer_.value(FORMAT_VERSION);
+            writer_.name("folder");
+            writer_.value(shard.folder_);
+            writer_.name("entries");
+            writer_.beginArray();
+        }
+
+        void add(String path, BackupIndexEntry entry) throws IOException {
+            if(last_ != null && PATH_ORDER.compare(last_, path) >= 0)
+                throw new IOException("Index shard entries are not sorted at: " + path);
+            writeEntry(writer_, path, entry);
+            last_ = path;
+            count_ += 1;
+            if(entry.isDeleted())
+                deleted_ += 1;
+        }
+
+        void commit() throws IOException {
+            writer_.endArray();
+            writer_.endObject();
+            writer_.close();
+            closed_ = true;
+            storage_.rename(tempKey_, shardKey_);
+            shard_.generation_ = shardGeneration_;
+            shard_.entries_ = null;
+            shard_.digest_ = null;
+            shard_.count_ = count_;
+            shard_.deleted_ = deleted_;
+            shard_.sorted_ = true;
+            manifestChanged_ = true;
+        }
+
+        // Abandons the new shard unless committed...
+        @Override public void close() throws IOException {
+            if(closed_)
+                return;
+            closed_ = true;
+            try {
+                writer_.close();
+            } finally {
+                storage_.delete(tempKey_);
+            }
+        }
+
+        private final Shard shard_;
+        private final long shardGeneration_;
+        private final String shardKey_;
+        private final String tempKey_;
+        private final JsonWriter writer_;
+        private String last_ = null;
+        private int count_ = 0;
+        private int deleted_ = 0;
+        private boolean closed_ = false;
+    }
+
+    // Loads every shard...
+    List<BackupIndexEntry> entries() throws IOException {
+        return entriesUnder(null);
+    }
+
+    /**
+     * @param prefix The folder to list or null for all entries.
+     * @return The entries under the folder, loading only the shards that can hold them.
+     */
+    List<BackupIndexEntry> entriesUnder(File prefix) throws IOException {
+        distributeLegacy();
+        String folder = (prefix == null) ? null : prefix.getAbsolutePath();
+        List<BackupIndexEntry> entries = new ArrayList<>();
+        for(Shard shard: shards_.values()) {
+            if(folder != null && !isUnder(shard.folder_, folder) && !isUnder(folder, shard.folder_))
+                continue;
+            for(Map.Entry<String,BackupIndexEntry> entry: load(shard).entrySet())
+                if(folder == null || isUnder(entry.getKey(), folder))
+                    entries.add(entry.getValue());
+        }
+        return entries;
+    }
+
+    /**
+     * @param prefix The folder to list.
+     * @return The entries under the folder held by the shards of the folder and of its parents; the shards of its
+     *         sub-folders are not loaded, their entries are all under their {@link #shardFolders() folder}.
+     */
+    List<BackupIndexEntry> entriesAbove(File prefix) throws IOException {
+        distributeLegacy();
+        String folder = prefix.getAbsolutePath();
+        List<BackupIndexEntry> entries = new ArrayList<>();
+        for(Shard shard: shards_.values()) {
+            if(!isUnder(folder, shard.folder_))
+                continue;
+            for(Map.Entry<String,BackupIndexEntry> entry: load(shard).entrySet())
+                if(isUnder(entry.getKey(), folder))
+                    entries.add(entry.getValue());
+        }
+        return entries;
+    }
+
+    static boolean isUnder(String path, String folder) {
+        return path.equals(folder) || path.startsWith(folder.endsWith(File.separator) ? folder :
+                folder + File.separator);
+    }
+
+    // Without loading any shards...
+    int size() {
+        int size = (legacy_ == null) ? 0 : legacy_.size();
+        for(Shard shard: shards_.values())
+            size += (shard.entries_ == null) ? shard.count_ : shard.entries_.size();
+        return size;
+    }
+
+    // Null for indexes written before the extension was recorded...
+    String getExtension() { return extension_; }
+    void setExtension(String extension) { extension_ = extension; manifestChanged_ = true; }
+    BlobLayout getLayout() { return layout_; }
+    // The shard folder a low memory backup cut short by its deadline stopped at, null after a complete run...
+    String getResumeFolder() { return resumeFolder_; }
+    void setResumeFolder(String folder) {
+        if(!Objects.equals(folder, resumeFolder_))
+            manifestChanged_ = true;
+        resumeFolder_ = folder;
+    }
+    void setLayout(BlobLayout layout) { layout_ = layout; manifestChanged_ = true; }
+
+    /**
+     * Open the encrypted data of a backed up file, from the index when it is inlined.
+     *
+     * @param storage Where the set's encrypted files are.
+     * @param entry The file holding the data (not a hard link to it).
+     * @return The encrypted data.
+     */
+    InputStream openBlob(StorageBackend storage, BackupIndexEntry entry) throws IOException {
+        if(entry.getInline() != null)
+            return new ByteArrayInputStream(entry.getInline());
+        return storage.get(blobKey(entry));
+    }
+
+    // For logs and errors...
+    String describeBlob(StorageBackend storage, BackupIndexEntry entry) {
+        if(entry.getInline() != null)
+            return "(in the index) " + entry.getFile();
+        return storage.describe(blobKey(entry));
+    }
+
+    String blobKey(BackupIndexEntry entry) {
+        return blobKey(entry, entry.getVersion());
+    }
+
+    String blobKey(BackupIndexEntry entry, int version) {
+        return layout_.relativePath(entry.getId(), version, (extension_ == null) ? "aes" : extension_);
+    }
+
+    private static final class Shard {
+        Shard(String folder) {
+            this(folder, digest(folder).substring(0, 16));
+            entries_ = new TreeMap<>(PATH_ORDER);
+        }
+
+        Shard(String folder, String name) {
+            folder_ = folder;
+            name_ = name;
+        }
+
+        final String folder_;
+        final String name_;
+        int count_ = 0;
+        int deleted_ = 0; // Of the count_ entries, those of files gone from the source.
+        boolean sorted_ = true; // Stored in PATH_ORDER (shards written before that was kept are not).
+        long generation_ = 0L; // The run that wrote it; 0 for a shard rewritten in place by older versions.
+        Map<String,BackupIndexEntry> entries_ = null; // Null until loaded.
+        String digest_ = null; // Of the shard as last read or written.
+    }
+
+    private final Map<String,Shard> shards_ = new TreeMap<>(PATH_ORDER);
+    private final List<String> roots_ = new ArrayList<>();
+    private Map<String,BackupIndexEntry> legacy_ = null;
+    private String extension_ = null;
+    private String resumeFolder_ = null;
+    private BlobLayout layout_ = BlobLayout.FLAT;
+    private boolean manifestChanged_ = false;
+    private StorageBackend storage_ = null;
+    private String indexKey_ = null;
+    private KeyData key_ = null;
+    private long generation_ = 0L;
+    private long runGeneration_ = 0L; // Of the snapshot this run writes, once it writes anything.
+
+    private static final int FORMAT_VERSION = 3;
+    static final String SNAPSHOTS = ".snapshots/";
+
+    // Compares paths component by component (the separator sorts before every other character) so a depth first
+    // walk with sorted folder listings produces paths in this order...
+    static final Comparator<String> PATH_ORDER = (a, b) -> {
+        int length = Math.min(a.length(), b.length());
+        for(int i = 0; i < length; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if(ca != cb) {
+                if(ca == File.separatorChar)
+                    return -1;
+                if(cb == File.separatorChar)
+                    return 1;
+                return Character.compare(ca, cb);
+            }
+        }
+        return Integer.compare(a.length(), b.length());
+    };
 }
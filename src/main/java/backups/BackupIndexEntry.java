@@ -16,42 +16,134 @@ class BackupIndexEntry {
         fileId_ = UUID.randomUUID().toString();
         lastModified_ = file_.lastModified();
         lastSize_ = file_.length();
+        scannedModified_ = lastModified_;
+        scannedSize_ = lastSize_;
         needsBackup_ = true;
         checked_ = true;
+        new_ = true;
     }
 
-    // Called when index is read from disk...
+    // Called when index is read from disk; compares the inode and ctime too when both runs recorded them...
     void determineNeedsBackup() {
-        needsBackup_ = false;
-        if(getLastModifiedTs() != file_.lastModified())
-            needsBackup_ = true;
-        else if(getLastSize() != file_.length())
-            needsBackup_ = true;
+        scannedModified_ = file_.lastModified();
+        scannedSize_ = file_.length();
+        needsBackup_ = getLastModifiedTs() != scannedModified_ || getLastSize() != scannedSize_ ||
+                (inode_ != null && scannedInode_ != null && (!inode_.equals(scannedInode_) ||
+                changed_ != scannedChanged_));
+        if(!needsBackup_ && inode_ == null) { // Backed up before the inode and ctime were recorded...
+            inode_ = scannedInode_;
+            changed_ = scannedChanged_;
+        }
         checked_ = true;
+        deleted_ = false;
     }
 
+    // The device and inode and the ctime found by the scan (null and 0 when change detection does not use them)...
+    void setScannedInode(String inode, long changed) {
+        scannedInode_ = inode;
+        scannedChanged_ = changed;
+    }
+
+    // The device the scan found the file on; not kept in the index...
+    void setScannedDevice(Object device) { scannedDevice_ = device; }
+
     void updateAfterBackedUp() {
         lastModified_ = file_.lastModified();
         lastSize_ = file_.length();
+        inode_ = scannedInode_;
+        changed_ = scannedChanged_;
+        pending_ = false;
+    }
+
+    // Left for the next run by a deadline; a new file has no stored version so it must not look backed up...
+    void defer() {
+        pending_ = true;
+        if(new_)
+            resetFileTime();
+    }
+
+    // Stream sources have no file to compare with, every run backs them up again...
+    void determineStreamNeedsBackup() {
+        needsBackup_ = true;
+        checked_ = true;
+        deleted_ = false;
+    }
+
+    // Not found by this run's scan; the entry and its versions are kept so the file can still be restored...
+    void markDeleted() { deleted_ = true; }
+
+    void updateAfterStreamed(long size, String hash) {
+        lastModified_ = System.currentTimeMillis();
+        lastSize_ = size;
+        hash_ = hash;
     }
 
     void resetFileTime() {
         lastModified_ = 0L;
     }
 
+    // Another hard link to the same data was backed up; this entry has no encrypted file of its own...
+    void linkTo(String primary) {
+        linkTo_ = primary;
+        needsBackup_ = false;
+    }
+
+    // No longer a hard link (or now the one holding the data) so it needs its own encrypted file...
+    void unlink() {
+        if(linkTo_ != null) {
+            linkTo_ = null;
+            needsBackup_ = true;
+        }
+    }
+
+    // A backed up version is never overwritten since snapshots may still reference it...
+    void setVersion(int version) { version_ = version; }
+    // The encrypted data of a small file kept in the index instead of a file of its own; null when it has one...
+    void setInline(byte[] data) { inline_ = data; }
+    // Of the version backed up, see ChangeDetection; null when not taken...
+    void setFingerprint(String fingerprint) { fingerprint_ = fingerprint; }
+
     File getFile() { return file_; }
     String getId() { return fileId_; }
     long getLastSize() { return lastSize_; }
     long getLastModifiedTs() { return lastModified_; }
     boolean needsBackup() { return needsBackup_; }
     boolean wasChecked() { return checked_; }
+    String getLinkTo() { return linkTo_; }
+    boolean isLink() { return linkTo_ != null; }
+    int getVersion() { return version_; }
+    boolean isNew() { return new_; }
+    String getHash() { return hash_; }
+    boolean isPending() { return pending_; }
+    boolean isDeleted() { return deleted_; }
+    byte[] getInline() { return inline_; }
+    String getFingerprint() { return fingerprint_; }
+    // As found by this run's scan (0 when not scanned)...
+    long getScannedSize() { return scannedSize_; }
+    long getScannedModified() { return scannedModified_; }
+    Object getScannedDevice() { return scannedDevice_; }
 
     File file_;
     String fileId_;
     long lastModified_;
     long lastSize_;
+    String linkTo_ = null;
+    int version_ = 0;
+    String hash_ = null; // SHA-256 of the plain data, only kept for stream sources.
+    boolean pending_ = false; // Changed but deferred by a deadline, backed up first by the next run.
+    byte[] inline_ = null; // Encrypted like a stored file, written to the index as base 64.
+    String inode_ = null; // "device:inode" at the last backup, only with ctime change detection.
+    long changed_ = 0L; // The ctime (ns) at the last backup, only with ctime change detection.
+    String fingerprint_ = null;
+    boolean deleted_ = false; // Gone from the source as of the snapshot holding the entry.
 
     private boolean needsBackup_ = false;
     private boolean checked_ = false;
+    private long scannedSize_ = 0L;
+    private long scannedModified_ = 0L;
+    private String scannedInode_ = null;
+    private long scannedChanged_ = 0L;
+    private Object scannedDevice_ = null;
+    private boolean new_ = false; // Not in the index before this run, so no version of it is stored yet.
 
 }
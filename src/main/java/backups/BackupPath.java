@@ -0,0 +1,189 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A path in a {@link BackupFileSystem}: '/' separated like the source paths the index records. Paths are kept as
+ * given except for repeated and trailing separators; {@link #normalize()} removes "." and "..".
+ */
+final class BackupPath implements Path {
+    BackupPath(BackupFileSystem fileSystem, String path) {
+        fileSystem_ = fileSystem;
+        path_ = clean(path);
+    }
+
+    @Override public BackupFileSystem getFileSystem() { return fileSystem_; }
+    @Override public boolean isAbsolute() { return path_.startsWith(SEPARATOR); }
+    @Override public Path getRoot() { return isAbsolute() ? new BackupPath(fileSystem_, SEPARATOR) : null; }
+
+    @Override
+    public Path getFileName() {
+        if(path_.isEmpty() || path_.equals(SEPARATOR))
+            return path_.isEmpty() ? this : null;
+        return new BackupPath(fileSystem_, path_.substring(path_.lastIndexOf('/') + 1));
+    }
+
+    @Override
+    public Path getParent() {
+        int slash = path_.lastIndexOf('/');
+        if(slash < 0 || path_.equals(SEPARATOR))
+            return null;
+        return new BackupPath(fileSystem_, (slash == 0) ? SEPARATOR : path_.substring(0, slash));
+    }
+
+    @Override public int getNameCount() { return names().size(); }
+
+    @Override
+    public Path getName(int index) {
+        List<String> names = names();
+        if(index < 0 || index >= names.size())
+            throw new IllegalArgumentException("No name " + index + " in " + path_);
+        return new BackupPath(fileSystem_, names.get(index));
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        List<String> names = names();
+        if(beginIndex < 0 || endIndex > names.size() || beginIndex >= endIndex)
+            throw new IllegalArgumentException("No names " + beginIndex + " to " + endIndex + " in " + path_);
+        return new BackupPath(fileSystem_, String.join(SEPARATOR, names.subList(beginIndex, endIndex)));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        BackupPath path = check(other);
+        if(path.isAbsolute() != isAbsolute())
+            return false;
+        List<String> names = names();
+        List<String> prefix = path.names();
+        return prefix.size() <= names.size() && names.subList(0, prefix.size()).equals(prefix);
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        BackupPath path = check(other);
+        if(path.isAbsolute())
+            return path.equals(this);
+        List<String> names = names();
+        List<String> suffix = path.names();
+        return !suffix.isEmpty() && suffix.size() <= names.size() &&
+                names.subList(names.size() - suffix.size(), names.size()).equals(suffix);
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> names = new ArrayList<>();
+        for(String name: names()) {
+            if(name.equals("."))
+                continue;
+            if(name.equals("..") && !names.isEmpty() && !names.get(names.size() - 1).equals(".."))
+                names.remove(names.size() - 1);
+            else if(!name.equals("..") || !isAbsolute())
+                names.add(name); // ".." above the root is the root.
+        }
+        return new BackupPath(fileSystem_, (isAbsolute() ? SEPARATOR : "") + String.join(SEPARATOR, names));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        BackupPath path = check(other);
+        if(path.isAbsolute())
+            return path;
+        if(path.path_.isEmpty())
+            return this;
+        if(path_.isEmpty())
+            return path;
+        return new BackupPath(fileSystem_, path_ + SEPARATOR + path.path_);
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        BackupPath path = check(other);
+        if(path.isAbsolute() != isAbsolute())
+            throw new IllegalArgumentException("Cannot relativize an absolute and a relative path!");
+        List<String> from = names();
+        List<String> to = path.names();
+        int common = 0;
+        while(common < from.size() && common < to.size() && from.get(common).equals(to.get(common)))
+            common += 1;
+        List<String> names = new ArrayList<>();
+        for(int i = common; i < from.size(); i++)
+            names.add("..");
+        names.addAll(to.subList(common, to.size()));
+        return new BackupPath(fileSystem_, String.join(SEPARATOR, names));
+    }
+
+    @Override
+    public URI toUri() {
+        return fileSystem_.toUri(((BackupPath)toAbsolutePath()).path_);
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return isAbsolute() ? this : new BackupPath(fileSystem_, SEPARATOR + path_);
+    }
+
+    // There are no symbolic links in a backup...
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path real = toAbsolutePath().normalize();
+        if(!fileSystem_.exists(real.toString()))
+            throw new NoSuchFileException(toString());
+        return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("A backup does not change, it cannot be watched!");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return BackupIndex.PATH_ORDER.compare(path_, check(other).path_);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof BackupPath path && path.fileSystem_ == fileSystem_ && path.path_.equals(path_);
+    }
+
+    @Override public int hashCode() { return path_.hashCode(); }
+    @Override public String toString() { return path_; }
+
+    private List<String> names() {
+        if(path_.isEmpty() || path_.equals(SEPARATOR))
+            return path_.isEmpty() ? List.of("") : List.of();
+        return Arrays.asList((isAbsolute() ? path_.substring(1) : path_).split(SEPARATOR));
+    }
+
+    private static BackupPath check(Path other) {
+        if(!(other instanceof BackupPath path))
+            throw new ProviderMismatchException("Not a path in a backup: " + other);
+        return path;
+    }
+
+    private static String clean(String path) {
+        String clean = path.replaceAll("/{2,}", SEPARATOR);
+        return (clean.length() > 1 && clean.endsWith(SEPARATOR)) ? clean.substring(0, clean.length() - 1) : clean;
+    }
+
+    private final BackupFileSystem fileSystem_;
+    private final String path_;
+
+    static final String SEPARATOR = "/";
+}
@@ -4,6 +4,9 @@
 //
 package backups;
 
+import com.amonson.crypto.Copier;
+import com.amonson.storage.StorageBackend;
+import com.amonson.storage.StorageBackends;
 import com.google.gson.stream.*;
 import com.google.gson.*;
 
@@ -13,17 +16,35 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 class BackupSet implements Iterable<File> {
     private BackupSet() {}
 
     BackupSet(CreateBackupSet set) {
-        destinationFolder_ = set.destinationFolder_;
+        destination_ = set.destination_;
         setFile_ = set.setFile_;
         keyFile_ = set.keyFile_;
         dataFolders_ = set.dataFolders_;
         name_ = set.name_;
         extension_ = set.extension_;
+        includes_ = (set.includes_ == null) ? new ArrayList<>() : set.includes_;
+        excludes_ = (set.excludes_ == null) ? new ArrayList<>() : set.excludes_;
+        compression_ = Copier.Compression.fromString(set.compression_);
+        dictionary_ = set.dictionary_;
+        fanOutLevels_ = set.fanOutLevels_;
+        storageOptions_ = (set.storageOptions_ == null) ? new TreeMap<>() : new TreeMap<>(set.storageOptions_);
+        keepSnapshots_ = set.keepSnapshots_;
+        keepDays_ = set.keepDays_;
+        inlineThreshold_ = set.inlineThreshold_;
+        oneFileSystem_ = set.oneFileSystem_;
+        mirrors_ = (set.mirrors_ == null) ? new ArrayList<>() : set.mirrors_;
+        if(set.stdinStream_ != null)
+            streams_.add(new StreamSource(set.stdinStream_, null));
+        if(set.streams_ != null)
+            for(Map.Entry<String,String> stream: set.streams_.entrySet())
+                streams_.add(new StreamSource(stream.getKey(), stream.getValue()));
     }
 
     public static TypeAdapter<BackupSet> getGSonAdapter() {
@@ -48,7 +69,10 @@ class BackupSet implements Iterable<File> {
                     if("destination".equals(fieldName)) {
                         //move to next token
                         token = reader.peek();
-                        set.destinationFolder_ = new File(reader.nextString());
+                        set.destination_ = reader.nextString();
+                    }
+                    if("mirror-destinations".equals(fieldName)) {
+                        set.mirrors_ = readStrings(reader);
                     }
                     if("key-file".equals(fieldName)) {
                         //move to next token
@@ -78,6 +102,46 @@ class BackupSet implements Iterable<File> {
                         reader.endArray();
                         set.dataFolders_ = files;
                     }
+                    if("compression".equals(fieldName)) {
+                        try {
+                            set.compression_ = Copier.Compression.fromString(reader.nextString());
+                        } catch(IllegalArgumentException e) {
+                            throw new IOException(e.getMessage(), e);
+                        }
+                    }
+                    if("fan-out-levels".equals(fieldName)) {
+                        set.fanOutLevels_ = reader.nextInt();
+                    }
+                    if("dictionary".equals(fieldName)) {
+                        set.dictionary_ = reader.nextBoolean();
+                    }
+                    if("storage-options".equals(fieldName)) {
+                        reader.beginObject();
+                        while(reader.hasNext())
+                            set.storageOptions_.put(reader.nextName(), reader.nextString());
+                        reader.endObject();
+                    }
+                    if("keep-snapshots".equals(fieldName)) {
+                        set.keepSnapshots_ = reader.nextInt();
+                    }
+                    if("keep-days".equals(fieldName)) {
+                        set.keepDays_ = reader.nextInt();
+                    }
+                    if("inline-threshold".equals(fieldName)) {
+                        set.inlineThreshold_ = Math.max(0, Math.min(MAX_INLINE_THRESHOLD, reader.nextInt()));
+                    }
+                    if("one-file-system".equals(fieldName)) {
+                        set.oneFileSystem_ = reader.nextBoolean();
+                    }
+                    if("stream-sources".equals(fieldName)) {
+                        set.streams_ = readStreams(reader);
+                    }
+                    if("include-patterns".equals(fieldName)) {
+                        set.includes_ = readStrings(reader);
+                    }
+                    if("exclude-patterns".equals(fieldName)) {
+                        set.excludes_ = readStrings(reader);
+                    }
                 }
                 reader.endObject();
                 return set;
@@ -87,7 +151,11 @@ class BackupSet implements Iterable<File> {
                 writer.name("name");
                 writer.value(data.name_);
                 writer.name("destination");
-                writer.value(data.destinationFolder_.toString());
+                writer.value(data.destination_);
+                if(!data.mirrors_.isEmpty()) {
+                    writer.name("mirror-destinations");
+                    writeStrings(writer, data.mirrors_);
+                }
                 writer.name("key-file");
                 writer.value(data.keyFile_.toString());
                 writer.name("set-file");
@@ -97,24 +165,150 @@ class BackupSet implements Iterable<File> {
                     writer.value("aes");
                 else
                     writer.value(data.extension_);
+                writer.name("compression");
+                writer.value(data.compression_.toString().toLowerCase());
+                writer.name("fan-out-levels");
+                writer.value(data.fanOutLevels_);
+                writer.name("dictionary");
+                writer.value(data.dictionary_);
+                if(!data.storageOptions_.isEmpty()) {
+                    writer.name("storage-options");
+                    writer.beginObject();
+                    for(Map.Entry<String,String> option: data.storageOptions_.entrySet())
+                        writer.name(option.getKey()).value(option.getValue());
+                    writer.endObject();
+                }
+                writer.name("keep-snapshots");
+                writer.value(data.keepSnapshots_);
+                writer.name("keep-days");
+                writer.value(data.keepDays_);
+                if(data.inlineThreshold_ > 0) {
+                    writer.name("inline-threshold");
+                    writer.value(data.inlineThreshold_);
+                }
+                if(data.oneFileSystem_) {
+                    writer.name("one-file-system");
+                    writer.value(true);
+                }
                 writer.name("source-folders");
                 writer.beginArray();
                 for(File file: data.dataFolders_)
                     writer.value(file.toString());
                 writer.endArray();
+                if(!data.streams_.isEmpty()) {
+                    writer.name("stream-sources");
+                    writeStreams(writer, data.streams_);
+                }
+                writer.name("include-patterns");
+                writeStrings(writer, data.includes_);
+                writer.name("exclude-patterns");
+                writeStrings(writer, data.excludes_);
                 writer.endObject();
             }
         };
     }
 
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext())
+            values.add(reader.nextString());
+        reader.endArray();
+        return values;
+    }
+
+    // [{"name": "db", "command": "pg_dump db"}, {"name": "stdin"}]...
+    private static List<StreamSource> readStreams(JsonReader reader) throws IOException {
+        List<StreamSource> streams = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            String name = null;
+            String command = null;
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String fieldName = reader.nextName();
+                if("name".equals(fieldName))
+                    name = reader.nextString();
+                else if("command".equals(fieldName))
+                    command = reader.nextString();
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            try {
+                StreamSource.checkName(name);
+            } catch(IllegalArgumentException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            streams.add(new StreamSource(name, command));
+        }
+        reader.endArray();
+        return streams;
+    }
+
+    private static void writeStreams(JsonWriter writer, List<StreamSource> streams) throws IOException {
+        writer.beginArray();
+        for(StreamSource stream: streams) {
+            writer.beginObject();
+            writer.name("name");
+            writer.value(stream.getName());
+            if(!stream.isStdin()) {
+                writer.name("command");
+                writer.value(stream.getCommand());
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static void writeStrings(JsonWriter writer, List<String> values) throws IOException {
+        writer.beginArray();
+        for(String value: values)
+            writer.value(value);
+        writer.endArray();
+    }
+
     String getName() { return name_; }
-    File getDestination() { return Paths.get(destinationFolder_.toString(), setFile_.getName()).toFile(); }
-    File getSetFile() { return setFile_; }
-    File getSetFileIndex() {
-        return Paths.get(getDestination().toString(), setFile_.getName() + ".index").toFile();
+    String getDestination() { return setFolder(destination_); }
+    // The set's own destination first, then its mirrors...
+    List<String> getDestinations() {
+        List<String> destinations = new ArrayList<>();
+        destinations.add(getDestination());
+        for(String mirror: mirrors_)
+            destinations.add(setFolder(mirror));
+        return destinations;
+    }
+    StorageBackend openStorage() throws IOException {
+        return openStorage(getDestination());
     }
+    StorageBackend openStorage(String destination) throws IOException {
+        return StorageBackends.open(destination, storageOptions_);
+    }
+    File getSetFile() { return setFile_; }
+    String getIndexKey() { return setFile_.getName() + ".index"; }
+    String getDictionaryKey() { return setFile_.getName() + ".dict"; }
     File getKeyFile() { return keyFile_; }
     String getExtension() { return extension_; }
+    Copier.Compression getCompression() { return compression_; }
+    boolean usesDictionary() { return dictionary_; }
+    BlobLayout getLayout() { return new BlobLayout(fanOutLevels_); }
+    int getKeepSnapshots() { return keepSnapshots_; }
+    int getKeepDays() { return keepDays_; }
+    int getInlineThreshold() { return inlineThreshold_; }
+    boolean isOneFileSystem() { return oneFileSystem_; }
+    List<StreamSource> getStreamSources() { return streams_; }
+    PathFilter getPathFilter() {
+        if(filter_ == null)
+            filter_ = new PathFilter(includes_, excludes_);
+        return filter_;
+    }
+
+    // Every set keeps its objects under a folder (or key prefix) named after the set file...
+    private String setFolder(String destination) {
+        if(StorageBackends.isRemote(destination))
+            return destination.replaceAll("/+$", "") + "/" + setFile_.getName();
+        return Paths.get(destination, setFile_.getName()).toString();
+    }
 
     @Override
     public Iterator<File> iterator() {
@@ -122,9 +316,24 @@ class BackupSet implements Iterable<File> {
     }
 
     String name_;
-    File destinationFolder_;
+    String destination_; // A local folder or an "s3://bucket/prefix" location.
+    List<String> mirrors_ = new ArrayList<>(); // More destinations written from the same read of each file.
     File keyFile_;
     File setFile_;
     List<File> dataFolders_;
     String extension_;
+    Copier.Compression compression_ = Copier.Compression.Adaptive;
+    boolean dictionary_ = false;
+    int fanOutLevels_ = 0; // Set files from before the fan-out layout existed are flat.
+    List<String> includes_ = new ArrayList<>();
+    List<String> excludes_ = new ArrayList<>();
+    Map<String,String> storageOptions_ = new TreeMap<>();
+    int keepSnapshots_ = 0; // Retention for do-prune; 0 and 0 keep every snapshot.
+    int keepDays_ = 0;
+    int inlineThreshold_ = 0; // Set files from before inlining existed keep every file in a file of its own.
+    boolean oneFileSystem_ = false; // Folders mounted from other devices below a source folder are not walked.
+    List<StreamSource> streams_ = new ArrayList<>(); // Backed up after the source folders.
+    private PathFilter filter_ = null;
+
+    static final int MAX_INLINE_THRESHOLD = 64 * 1024; // Beyond this the index grows more than it saves.
 }
@@ -6,6 +6,7 @@ package backups;
 
 import com.amonson.crypto.Copier;
 import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.LogManager;
@@ -16,26 +17,83 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class BackupSetIndexFactory {
-    BackupSetIndexFactory(BackupSet set, boolean dryRun) {
+    BackupSetIndexFactory(BackupSet set, StorageBackend storage, boolean dryRun) {
         set_ = set;
+        storage_ = storage;
         dryRun_ = dryRun;
     }
 
     BackupIndex createOrLoad(File keyFile) throws IOException {
-        File indexFile = set_.getSetFileIndex();
-        if(indexFile.exists())
-            return loadFile(indexFile, keyFile);
+        String indexKey = set_.getIndexKey();
+        if(storage_.exists(indexKey))
+            return checkLayout(loadFile(indexKey, keyFile));
         else
-            return createFile(indexFile, keyFile);
+            return createFile(indexKey, keyFile);
     }
 
     BackupIndex loadOnly(File keyFile) throws IOException {
-        File indexFile = set_.getSetFileIndex();
-        if(indexFile.exists())
-            return loadFile(indexFile, keyFile);
-        throw new FileNotFoundException("Missing index file: " + indexFile);
+        String indexKey = set_.getIndexKey();
+        if(storage_.exists(indexKey))
+            return checkLayout(loadFile(indexKey, keyFile));
+        throw new FileNotFoundException("Missing index file: " + storage_.describe(indexKey));
+    }
+
+    // Generations of the stored snapshots, oldest first...
+    List<Long> listSnapshots() throws IOException {
+        String prefix = set_.getIndexKey() + BackupIndex.SNAPSHOTS;
+        List<Long> generations = new ArrayList<>();
+        for(String key: storage_.list(prefix)) {
+            try {
+                generations.add(Long.parseLong(key.substring(prefix.length())));
+            } catch(NumberFormatException e) {
+                log_.debug("Not an index snapshot: {}", key);
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    BackupIndex loadSnapshot(BackupIndex current, long generation, File keyFile) throws IOException {
+        if(generation == current.getGeneration())
+            return current;
+        BackupIndex index = loadFile(BackupIndex.snapshotKey(set_.getIndexKey(), generation), keyFile);
+        index.setRoots(set_);
+        index.useSnapshotOf(current);
+        return index;
+    }
+
+    // The newest snapshot taken at or before a time, or null when there is none that old...
+    BackupIndex loadAsOf(BackupIndex current, long time, File keyFile) throws IOException {
+        Long found = null;
+        for(long generation: listSnapshots())
+            if(generation <= time)
+                found = generation;
+        return (found == null) ? null : loadSnapshot(current, found, keyFile);
+    }
+
+    // The snapshot taken before another one, or null when it is the first...
+    BackupIndex loadPrevious(BackupIndex current, BackupIndex of, File keyFile) throws IOException {
+        Long found = null;
+        for(long generation: listSnapshots())
+            if(generation < of.getGeneration())
+                found = generation;
+        return (found == null) ? null : loadSnapshot(current, found, keyFile);
+    }
+
+    // The index records the layout actually on disk; the set only says what new destinations should use...
+    private BackupIndex checkLayout(BackupIndex index) {
+        index.setRoots(set_);
+        if(index.getExtension() == null)
+            index.setExtension(set_.getExtension());
+        if(!index.getLayout().equals(set_.getLayout()))
+            log_.warn("Backup set '{}' asks for a {} layout but the destination is {}; run 'migrate-layout' to " +
+                    "convert it.", set_.getName(), set_.getLayout(), index.getLayout());
+        return index;
     }
 
     private Gson newGson() {
@@ -46,20 +104,25 @@ public class BackupSetIndexFactory {
         return builder.create();
     }
 
-    private BackupIndex createFile(File indexFile, File keyFile) throws IOException {
-        indexFile.getParentFile().mkdirs();
+    private BackupIndex createFile(String indexKey, File keyFile) throws IOException {
         BackupIndex index = new BackupIndex();
-        index.saveIndex(indexFile, keyFile);
+        index.setExtension(set_.getExtension());
+        index.setLayout(set_.getLayout());
+        index.setRoots(set_);
+        index.saveIndex(storage_, indexKey, keyFile);
         return index;
     }
 
-    private BackupIndex loadFile(File indexFile, File keyFile) throws IOException {
+    private BackupIndex loadFile(String indexKey, File keyFile) throws IOException {
         KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
-        String json = Copier.readStringDecrypted(indexFile, key);
-        return newGson().fromJson(json, BackupIndex.class);
+        String json = Copier.readStringDecrypted(storage_.get(indexKey), key);
+        BackupIndex index = newGson().fromJson(json, BackupIndex.class);
+        index.attach(storage_, indexKey, key);
+        return index;
     }
 
     private final BackupSet set_;
+    private final StorageBackend storage_;
     private final boolean dryRun_;
     private final Logger log_ = LogManager.getRootLogger();
 }
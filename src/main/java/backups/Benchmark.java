@@ -0,0 +1,217 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "benchmark",
+        description = "Generate a synthetic data set and time each backup/restore phase against it.",
+        mixinStandardHelpOptions = true)
+public class Benchmark implements Callable<Integer> {
+    @Override
+    public Integer call() throws Exception {
+        workFolder_ = workFolder_.getAbsoluteFile();
+        if(workFolder_.exists() && !workFolder_.isDirectory()) {
+            log_.error("Work folder '{}' exists and is not a folder!", workFolder_);
+            return 2;
+        }
+        File source = new File(workFolder_, "source");
+        File destination = new File(workFolder_, "destination");
+        File restore = new File(workFolder_, "restore");
+        File recover = new File(workFolder_, "recover");
+        File keyFile = new File(workFolder_, "benchmark.key");
+        File setFile = new File(workFolder_, "benchmark.set");
+        for(File folder: new File[] {source, destination, restore, recover})
+            deleteTree(folder);
+        Files.deleteIfExists(keyFile.toPath());
+        Files.deleteIfExists(setFile.toPath());
+        Files.createDirectories(destination.toPath());
+
+        BenchmarkDataset dataset = new BenchmarkDataset(source, seed_);
+        dataset.tinyFiles_ = tinyFiles_;
+        dataset.tinyMaxSize_ = tinyMaxSize_;
+        dataset.hugeFiles_ = hugeFiles_;
+        dataset.hugeSize_ = hugeSizeMB_ * 1024L * 1024L;
+        dataset.compressiblePercent_ = compressiblePercent_;
+        dataset.depth_ = depth_;
+
+        long start = System.nanoTime();
+        long bytes = dataset.generate();
+        results_.add(new PhaseResult("generate", System.nanoTime() - start, -1L, -1L, 0));
+        System.out.printf("Generated %d files (%d bytes) in '%s'\n", dataset.fileCount(), bytes, source);
+
+        runPhase("generate-key", "generate-key", keyFile.toString());
+        runPhase("create-backup-set", "create-backup-set", "-n", "benchmark", "-d", destination.toString(),
+                "-k", keyFile.toString(), "-s", setFile.toString(), source.toString());
+        runPhase("do-backup (full)", "do-backup", setFile.toString());
+        int mutated = dataset.mutate(mutatePercent_);
+        System.out.printf("Mutated %d files (%d%%)\n", mutated, mutatePercent_);
+        runPhase("do-backup (incremental)", "do-backup", setFile.toString());
+        runPhase("do-restore", "do-restore", "--force", "--chroot", restore.toString(), setFile.toString());
+        File indexFile = Paths.get(destination.toString(), setFile.getName(), setFile.getName() + ".index").toFile();
+        runPhase("do-recover", "do-recover", "--destination", recover.toString(), "--key-file", keyFile.toString(),
+                indexFile.toString());
+
+        printReport();
+        if(reportFile_ != null)
+            writeReport(bytes, dataset.fileCount());
+        if(!keep_)
+            for(File folder: new File[] {source, destination, restore, recover})
+                deleteTree(folder);
+        for(PhaseResult result: results_)
+            if(result.exitCode != 0)
+                return 3;
+        return 0;
+    }
+
+    // Each phase runs in its own JVM so CPU time and peak RSS belong to that phase alone...
+    private void runPhase(String label, String... args) throws IOException, InterruptedException {
+        File statsFile = File.createTempFile("benchmark-", ".stats");
+        try {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-D" + STATS_PROPERTY + "=" + statsFile);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Phase.class.getName());
+            command.addAll(Arrays.asList(args));
+            log_.debug("Benchmark phase command: {}", command);
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            int exitCode = process.waitFor();
+            long wall = System.nanoTime() - start;
+            long cpu = -1L;
+            long rss = -1L;
+            String stats = Files.readString(statsFile.toPath(), StandardCharsets.UTF_8).trim();
+            if(!stats.isEmpty()) {
+                String[] parts = stats.split(" ");
+                cpu = Long.parseLong(parts[0]);
+                rss = Long.parseLong(parts[1]);
+            }
+            if(exitCode != 0)
+                log_.warn("Benchmark phase '{}' exited with code {}!", label, exitCode);
+            results_.add(new PhaseResult(label, wall, cpu, rss, exitCode));
+        } finally {
+            Files.deleteIfExists(statsFile.toPath());
+        }
+    }
+
+    private void printReport() {
+        System.out.println();
+        System.out.print ("+-------------------------+------------+------------+------------+------+\n");
+        System.out.print ("| Phase                   |   Wall (s) |    CPU (s) |  Peak RSS  | Exit |\n");
+        System.out.print ("+-------------------------+------------+------------+------------+------+\n");
+        for(PhaseResult result: results_)
+            System.out.printf("| %-23s | %10.3f | %10s | %10s | %4d |\n", result.phase, result.wallNs / 1e9,
+                    (result.cpuNs < 0) ? "n/a" : String.format("%.3f", result.cpuNs / 1e9),
+                    (result.peakRssKB < 0) ? "n/a" : String.format("%d MB", result.peakRssKB / 1024),
+                    result.exitCode);
+        System.out.print ("+-------------------------+------------+------------+------------+------+\n");
+    }
+
+    private void writeReport(long bytes, int files) throws IOException {
+        Map<String,Object> report = new LinkedHashMap<>();
+        report.put("seed", seed_);
+        report.put("files", files);
+        report.put("bytes", bytes);
+        report.put("mutate-percent", mutatePercent_);
+        report.put("phases", results_);
+        Files.writeString(reportFile_.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(report));
+    }
+
+    private static void deleteTree(File folder) throws IOException {
+        if(!folder.exists())
+            return;
+        try (var paths = Files.walk(folder.toPath())) {
+            for(var path: paths.sorted((a, b) -> b.compareTo(a)).toList())
+                Files.delete(path);
+        }
+    }
+
+    // Entry point of the child JVM for a single phase; reports its own CPU time and peak RSS...
+    static final class Phase {
+        public static void main(String[] args) throws IOException {
+            int rv = Backup.execute(args);
+            long cpu = -1L;
+            if(ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os)
+                cpu = os.getProcessCpuTime();
+            long rss = -1L;
+            File status = new File("/proc/self/status");
+            if(status.canRead()) {
+                for(String line: Files.readAllLines(status.toPath(), StandardCharsets.UTF_8))
+                    if(line.startsWith("VmHWM:"))
+                        rss = Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+            Files.writeString(Paths.get(System.getProperty(STATS_PROPERTY)), cpu + " " + rss);
+            System.exit(rv);
+        }
+    }
+
+    private static final class PhaseResult {
+        PhaseResult(String phase, long wallNs, long cpuNs, long peakRssKB, int exitCode) {
+            this.phase = phase;
+            this.wallNs = wallNs;
+            this.cpuNs = cpuNs;
+            this.peakRssKB = peakRssKB;
+            this.exitCode = exitCode;
+        }
+
+        final String phase;
+        final long wallNs;
+        final long cpuNs;
+        final long peakRssKB;
+        final int exitCode;
+    }
+
+    @CommandLine.Option(names = {"-w", "--work-folder"}, description = "(Required) Folder for the generated data, " +
+            "backups and restores.", required = true, paramLabel = "work_folder")
+    private File workFolder_; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--tiny-files"}, description = "Count of small files to generate (default: 10000).")
+    private int tinyFiles_ = 10_000; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--tiny-max-size"}, description = "Maximum size of small files in bytes " +
+            "(default: 4096).")
+    private int tinyMaxSize_ = 4096; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--huge-files"}, description = "Count of huge files to generate (default: 2).")
+    private int hugeFiles_ = 2; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--huge-size"}, description = "Size of each huge file in MB (default: 256).")
+    private long hugeSizeMB_ = 256L; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--compressible"}, description = "Percent of files with compressible text " +
+            "contents, the rest are random bytes (default: 50).")
+    private int compressiblePercent_ = 50; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--depth"}, description = "Folder nesting depth for small files (default: 6).")
+    private int depth_ = 6; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--mutate"}, description = "Percent of files changed before the incremental " +
+            "backup (default: 10).")
+    private int mutatePercent_ = 10; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--seed"}, description = "Random seed for a repeatable data set (default: 42).")
+    private long seed_ = 42L; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--report"}, description = "Write the phase results as JSON to this file.",
+            paramLabel = "report_file")
+    private File reportFile_ = null; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--keep"}, description = "Keep the generated, backed up and restored files.")
+    private boolean keep_ = false; // Assigned by picocli dynamically...
+
+    private final Logger log_ = LogManager.getRootLogger();
+    private final List<PhaseResult> results_ = new ArrayList<>();
+
+    static final String STATS_PROPERTY = "backups.benchmark.stats";
+}
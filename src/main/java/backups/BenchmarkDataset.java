@@ -0,0 +1,137 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a repeatable synthetic source tree for the benchmark. The same seed and parameters always produce the
+ * same folder layout and file contents.
+ */
+class BenchmarkDataset {
+    BenchmarkDataset(File root, long seed) {
+        root_ = root;
+        seed_ = seed;
+    }
+
+    // Returns the total number of bytes written...
+    long generate() throws IOException {
+        long total = 0L;
+        SplittableRandom random = new SplittableRandom(seed_);
+        for(int i = 0; i < tinyFiles_; i++) {
+            File file = tinyFile(i);
+            total += writeFile(file, 1 + random.nextInt(tinyMaxSize_), random.split());
+        }
+        for(int i = 0; i < hugeFiles_; i++) {
+            File file = new File(new File(root_, "huge"), String.format("huge-%04d.bin", i));
+            total += writeFile(file, hugeSize_, random.split());
+        }
+        return total;
+    }
+
+    // Rewrites the given percentage of files (tiny and huge), returns the count of mutated files...
+    int mutate(int percent) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed_ ^ 0x5DEECE66DL);
+        int count = 0;
+        long newTime = System.currentTimeMillis() + 2_000L; // Make sure the mtime moves even on coarse filesystems.
+        for(int i = 0; i < tinyFiles_; i++) {
+            if(random.nextInt(100) < percent) {
+                File file = tinyFile(i);
+                writeFile(file, 1 + random.nextInt(tinyMaxSize_), random.split());
+                file.setLastModified(newTime);
+                count++;
+            }
+        }
+        for(int i = 0; i < hugeFiles_; i++) {
+            if(random.nextInt(100) < percent) {
+                File file = new File(new File(root_, "huge"), String.format("huge-%04d.bin", i));
+                writeFile(file, hugeSize_, random.split());
+                file.setLastModified(newTime);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int fileCount() { return tinyFiles_ + hugeFiles_; }
+
+    private File tinyFile(int index) {
+        File folder = new File(root_, "tiny");
+        int rest = index / filesPerFolder_;
+        for(int level = 0; level < depth_; level++) {
+            folder = new File(folder, String.format("d%02d", rest % fanOut_));
+            rest /= fanOut_;
+        }
+        return new File(folder, String.format("file-%08d.%s", index, (index % 2 == 0) ? "txt" : "dat"));
+    }
+
+    private long writeFile(File file, long size, SplittableRandom random) throws IOException {
+        file.getParentFile().mkdirs();
+        boolean compressible = random.nextInt(100) < compressiblePercent_;
+        byte[] buffer = new byte[(int)Math.min(size, BUFFER_SIZE)];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+            long remaining = size;
+            while(remaining > 0) {
+                int len = (int)Math.min(remaining, buffer.length);
+                if(compressible)
+                    fillText(buffer, len, random);
+                else
+                    fillRandom(buffer, len, random);
+                out.write(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+        return size;
+    }
+
+    private void fillText(byte[] buffer, int len, SplittableRandom random) {
+        int pos = 0;
+        while(pos < len) {
+            byte[] word = WORDS[random.nextInt(WORDS.length)];
+            for(int i = 0; i < word.length && pos < len; i++)
+                buffer[pos++] = word[i];
+            if(pos < len)
+                buffer[pos++] = (random.nextInt(12) == 0) ? (byte)'\n' : (byte)' ';
+        }
+    }
+
+    private void fillRandom(byte[] buffer, int len, SplittableRandom random) {
+        for(int i = 0; i < len; i += 8) {
+            long value = random.nextLong();
+            for(int b = 0; b < 8 && i + b < len; b++) {
+                buffer[i + b] = (byte)value;
+                value >>>= 8;
+            }
+        }
+    }
+
+    private final File root_;
+    private final long seed_;
+    int tinyFiles_ = 10_000;
+    int tinyMaxSize_ = 4096;
+    int hugeFiles_ = 2;
+    long hugeSize_ = 256L * 1024L * 1024L;
+    int compressiblePercent_ = 50;
+    int depth_ = 6;
+    int fanOut_ = 4;
+    int filesPerFolder_ = 32;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final byte[][] WORDS;
+    static {
+        String[] words = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor incididunt " +
+                "ut labore et dolore magna aliqua public static final class void return import package int long " +
+                "string value name path file folder backup restore index key {\"id\": true, false, null}").split(" ");
+        WORDS = new byte[words.length][];
+        for(int i = 0; i < words.length; i++)
+            WORDS[i] = words[i].getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+/**
+ * Resolves where the encrypted file for an index entry lives under a set's destination. Layout version 0 is the
+ * original flat folder; version 1 fans the files out into hashed sub-folders ("ab/cd/&lt;id&gt;.aes" for 2 levels)
+ * so no single folder grows to millions of entries.
+ */
+class BlobLayout {
+    BlobLayout(int fanOutLevels) {
+        if(fanOutLevels < 0 || fanOutLevels > MAX_LEVELS)
+            throw new IllegalArgumentException(String.format("Fan-out levels must be 0 to %d, not %d!", MAX_LEVELS,
+                    fanOutLevels));
+        levels_ = fanOutLevels;
+    }
+
+    int getVersion() { return (levels_ == 0) ? 0 : 1; }
+    int getFanOutLevels() { return levels_; }
+
+    String relativePath(String id, String extension) {
+        return relativePath(id, 0, extension);
+    }
+
+    // Later versions of a file ("<id>.<version>.aes") sit in the same folder as its first one...
+    String relativePath(String id, int version, String extension) {
+        String name = (version == 0) ? id + "." + extension : id + "." + version + "." + extension;
+        if(levels_ == 0)
+            return name;
+        String hash = String.format("%08x", mix(id.hashCode()));
+        StringBuilder builder = new StringBuilder();
+        for(int level = 0; level < levels_; level++)
+            builder.append(hash, level * 2, level * 2 + 2).append('/');
+        return builder.append(name).toString();
+    }
+
+    @Override public boolean equals(Object o) {
+        return (o instanceof BlobLayout layout) && layout.levels_ == levels_;
+    }
+
+    @Override public int hashCode() { return levels_; }
+
+    @Override public String toString() {
+        return (levels_ == 0) ? "flat" : String.format("fan-out %d level(s)", levels_);
+    }
+
+    // Murmur3 finalizer so similar ids still spread evenly over the folders...
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static final BlobLayout FLAT = new BlobLayout(0);
+    static final int MAX_LEVELS = 4;
+    static final int DEFAULT_LEVELS = 2;
+
+    private final int levels_;
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps the compressing and encrypting of copies on virtual threads to one copy per processor. A copy holds a permit
+ * between the reads and writes of the streams it wraps, which is when it compresses and encrypts, and gives it up
+ * while it waits on them. Thousands of copies can then wait on a slow destination at once while only a few compete
+ * for the processors (and the carrier threads under them).
+ */
+final class CpuLimit {
+    /**
+     * @param permits Copies compressing or encrypting at once; 0 for no limit.
+     */
+    CpuLimit(int permits) {
+        permits_ = (permits > 0) ? new Semaphore(permits) : null;
+    }
+
+    /**
+     * Start a copy; it starts waiting on I/O so it holds no permit yet. Only the thread running the copy may use it.
+     *
+     * @return The copy, close it when done to give back its permit.
+     */
+    Copy start() { return new Copy(); }
+
+    final class Copy implements AutoCloseable {
+        private Copy() {}
+
+        // Reads (from a file, the network, ...) are waited on without a permit...
+        InputStream reading(InputStream in) {
+            if(permits_ == null)
+                return in;
+            return new FilterInputStream(in) {
+                @Override public int read() throws IOException {
+                    idle();
+                    try {
+                        return super.read();
+                    } finally {
+                        busy();
+                    }
+                }
+
+                @Override public int read(byte[] bytes, int offset, int length) throws IOException {
+                    idle();
+                    try {
+                        return super.read(bytes, offset, length);
+                    } finally {
+                        busy();
+                    }
+                }
+
+                @Override public void close() throws IOException {
+                    idle();
+                    super.close();
+                }
+            };
+        }
+
+        // ...and so are writes to the destination.
+        OutputStream writing(OutputStream out) {
+            if(permits_ == null)
+                return out;
+            return new FilterOutputStream(out) {
+                @Override public void write(int b) throws IOException {
+                    idle();
+                    try {
+                        out.write(b);
+                    } finally {
+                        busy();
+                    }
+                }
+
+                @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+                    idle();
+                    try {
+                        out.write(bytes, offset, length);
+                    } finally {
+                        busy();
+                    }
+                }
+
+                @Override public void flush() throws IOException {
+                    idle();
+                    try {
+                        out.flush();
+                    } finally {
+                        busy();
+                    }
+                }
+
+                @Override public void close() throws IOException {
+                    idle();
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            idle();
+        }
+
+        private void idle() {
+            if(held_) {
+                permits_.release();
+                held_ = false;
+            }
+        }
+
+        private void busy() throws InterruptedIOException {
+            if(!held_) {
+                try {
+                    permits_.acquire();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a processor!");
+                }
+                held_ = true;
+            }
+        }
+
+        private boolean held_ = false;
+    }
+
+    private final Semaphore permits_;
+}
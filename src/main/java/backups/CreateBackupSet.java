@@ -4,6 +4,8 @@
 //
 package backups;
 
+import com.amonson.crypto.Copier;
+import com.amonson.storage.StorageBackends;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.LogManager;
@@ -11,7 +13,13 @@ import picocli.CommandLine;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 
 @CommandLine.Command(name = "create-backup-set", description = "Create a new backup set file",
@@ -20,8 +28,19 @@ public class CreateBackupSet implements Callable<Integer> {
     @Override
     public Integer call() throws Exception {
         try {
-            checkFolderWrite(destinationFolder_);
-            destinationFolder_ = destinationFolder_.getAbsoluteFile();
+            if(!StorageBackends.isRemote(destination_)) {
+                File folder = new File(destination_);
+                checkFolderWrite(folder);
+                destination_ = folder.getAbsolutePath();
+            }
+            for(int i = 0; i < mirrors_.size(); i++) {
+                if(!StorageBackends.isRemote(mirrors_.get(i))) {
+                    File folder = new File(mirrors_.get(i));
+                    checkFolderWrite(folder);
+                    mirrors_.set(i, folder.getAbsolutePath());
+                }
+            }
+            checkStreams();
             for (int i = 0; i < dataFolders_.size(); i++) {
                 File source = dataFolders_.get(i);
                 checkFolderRead(source);
@@ -29,6 +48,16 @@ public class CreateBackupSet implements Callable<Integer> {
             }
             checkFileRead(keyFile_);
             keyFile_ = keyFile_.getAbsoluteFile();
+            checkPatterns();
+            checkCompression();
+            if(fanOutLevels_ < 0 || fanOutLevels_ > BlobLayout.MAX_LEVELS)
+                throw new IllegalAccessException(String.format("Fan-out levels must be 0 to %d!",
+                        BlobLayout.MAX_LEVELS));
+            if(keepSnapshots_ < 0 || keepDays_ < 0)
+                throw new IllegalAccessException("Retention counts cannot be negative!");
+            if(inlineThreshold_ < 0 || inlineThreshold_ > BackupSet.MAX_INLINE_THRESHOLD)
+                throw new IllegalAccessException(String.format("The inline threshold must be 0 to %d bytes!",
+                        BackupSet.MAX_INLINE_THRESHOLD));
             if(!setFile_.createNewFile() && !force_) // can I create the file?
                 throw new IllegalAccessException(String.format("Failed to create the set file '%s'!", setFile_)); // No
             setFile_ = setFile_.getAbsoluteFile();
@@ -61,6 +90,36 @@ public class CreateBackupSet implements Callable<Integer> {
                     file));
     }
 
+    private void checkStreams() throws IllegalAccessException {
+        Set<String> names = new HashSet<>(streams_.keySet());
+        if(stdinStream_ != null && !names.add(stdinStream_))
+            throw new IllegalAccessException(String.format("Stream source '%s' is given twice!", stdinStream_));
+        if(names.isEmpty() && dataFolders_.isEmpty())
+            throw new IllegalAccessException("A backup set needs a source folder or a stream source!");
+        try {
+            for(String name: names)
+                StreamSource.checkName(name);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalAccessException(e.getMessage());
+        }
+    }
+
+    private void checkPatterns() throws IllegalAccessException {
+        try {
+            new PathFilter(includes_, excludes_);
+        } catch(IllegalArgumentException e) { // Includes PatternSyntaxException...
+            throw new IllegalAccessException(String.format("Bad include or exclude pattern: %s", e.getMessage()));
+        }
+    }
+
+    private void checkCompression() throws IllegalAccessException {
+        try {
+            Copier.Compression.fromString(compression_);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalAccessException(e.getMessage());
+        }
+    }
+
     private Gson newGson() {
         GsonBuilder builder = new GsonBuilder();
         builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
@@ -74,9 +133,19 @@ public class CreateBackupSet implements Callable<Integer> {
             required = true)
     String name_;
 
-    @CommandLine.Option(paramLabel = "destination_folder",names = {"-d", "--destination"},
-            description = "Folder where the back will be placed.", required = true)
-    File destinationFolder_;
+    @CommandLine.Option(paramLabel = "destination",names = {"-d", "--destination"},
+            description = "Folder or s3://bucket/prefix where the back will be placed.", required = true)
+    String destination_;
+
+    @CommandLine.Option(paramLabel = "destination", names = {"-m", "--mirror"}, description = "Another folder or " +
+            "s3://bucket/prefix that receives the same backup (repeatable); each file is read and compressed once " +
+            "for all destinations and each destination keeps its own index.")
+    List<String> mirrors_ = new ArrayList<>();
+
+    @CommandLine.Option(paramLabel = "option=value", names = {"-o", "--storage-option"}, description = "Storage " +
+            "option (repeatable): s3-endpoint, s3-region, s3-part-size-mb or s3-concurrency. S3 credentials come " +
+            "from the AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY and AWS_SESSION_TOKEN environment variables.")
+    Map<String,String> storageOptions_ = new TreeMap<>();
 
     @CommandLine.Option(paramLabel = "key_file",names = {"-k", "--key-file"},
             description = "The encryption/decryption key used in the backup set.", required = true)
@@ -90,7 +159,54 @@ public class CreateBackupSet implements Callable<Integer> {
             description = "The backup set's encrypted filename extension.", defaultValue = "aes")
     String extension_;
 
+    @CommandLine.Option(paramLabel = "compression", names = {"-c", "--compression"}, description = "Compression " +
+            "before encryption: adaptive (per file by extension and a sample), stored, fast, default or high.",
+            defaultValue = "adaptive")
+    String compression_;
+
+    @CommandLine.Option(paramLabel = "levels", names = {"--fan-out-levels"}, description = "Levels of hashed " +
+            "sub-folders for the encrypted files, 0 for one flat folder (default: 2).", defaultValue = "2")
+    int fanOutLevels_;
+
+    @CommandLine.Option(names = {"--dictionary"}, description = "Compress small files with a preset dictionary " +
+            "trained from the set on its first backup (best for sets of many small text files).")
+    boolean dictionary_ = false; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "bytes", names = {"--inline-threshold"}, description = "Files smaller than " +
+            "this are stored (compressed and encrypted) in the index instead of a file of their own, 0 for never " +
+            "(default: 1024).", defaultValue = "1024")
+    int inlineThreshold_;
+
+    @CommandLine.Option(names = {"--one-file-system"}, description = "Do not walk into folders below a source " +
+            "folder that are on another device (mounted file systems, network shares, /proc, ...).")
+    boolean oneFileSystem_ = false; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "count", names = {"--keep-snapshots"}, description = "Retention: do-prune " +
+            "keeps at least this many of the newest snapshots (0 and a --keep-days of 0 keep them all).")
+    int keepSnapshots_ = 0; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "days", names = {"--keep-days"}, description = "Retention: do-prune also " +
+            "keeps every snapshot younger than this many days.")
+    int keepDays_ = 0; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "pattern", names = {"-i", "--include"}, description = "Glob of files to " +
+            "include (repeatable); without a '/' it matches names, with a '/' paths relative to a source folder.")
+    List<String> includes_ = new ArrayList<>();
+
+    @CommandLine.Option(paramLabel = "pattern", names = {"-x", "--exclude"}, description = "Glob of files or " +
+            "folders to exclude (repeatable, e.g. 'node_modules' or '.git/objects'); excluded folders are not walked.")
+    List<String> excludes_ = new ArrayList<>();
+
+    @CommandLine.Option(paramLabel = "name=command", names = {"--stream"}, description = "Stream source " +
+            "(repeatable): back up the output of the command (run with 'sh -c', e.g. 'db=pg_dump mydb') as the file " +
+            "/.streams/<name> without writing it to disk first.")
+    Map<String,String> streams_ = new LinkedHashMap<>();
+
+    @CommandLine.Option(paramLabel = "name", names = {"--stdin-stream"}, description = "Stream source fed from " +
+            "do-backup's standard input, backed up as the file /.streams/<name>.")
+    String stdinStream_ = null;
+
     @CommandLine.Parameters(paramLabel="source_folders", description = "Folder(s) to include in the backup set.",
-            arity = "1..*")
-    List<File> dataFolders_;
+            arity = "0..*")
+    List<File> dataFolders_ = new ArrayList<>();
 }
@@ -0,0 +1,57 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+/**
+ * Which device (file system) a path is on, for {@code --one-file-system} and the per-device workers of do-backup.
+ * The device id from the unix file attributes where there are some, otherwise the {@link java.nio.file.FileStore}.
+ */
+final class Devices {
+    /**
+     * @param path The file or folder.
+     * @return Its device; null when it cannot be read.
+     */
+    Object of(Path path) {
+        if(unixAttributes_) {
+            try {
+                return Files.getAttribute(path, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+            } catch(UnsupportedOperationException | IllegalArgumentException e) {
+                log_.debug("No unix file attributes on this platform, devices are told apart by file store.");
+                unixAttributes_ = false;
+            } catch(IOException e) {
+                return null;
+            }
+        }
+        try {
+            return Files.getFileStore(path);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param root A source folder.
+     * @param oneFileSystem Whether the walk stays on the device of the root.
+     * @return A test for folders the walk must not enter because they are on another device (mount points).
+     */
+    Predicate<Path> otherThan(Path root, boolean oneFileSystem) {
+        Object device = oneFileSystem ? of(root) : null;
+        if(device == null)
+            return (path) -> false;
+        return (path) -> !device.equals(of(path));
+    }
+
+    private boolean unixAttributes_ = true;
+    private final Logger log_ = LogManager.getRootLogger();
+}
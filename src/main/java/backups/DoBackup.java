@@ -4,8 +4,10 @@
 //
 package backups;
 
+import com.amonson.crypto.CompressionDictionary;
 import com.amonson.crypto.Copier;
 import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.Level;
@@ -13,22 +15,67 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import picocli.CommandLine;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 @CommandLine.Command(name = "do-backup", description = "Backup files in a backup set",
         mixinStandardHelpOptions = true)
 public class DoBackup implements Callable<Integer> {
     @Override
     public Integer call() throws Exception {
-        long start = Instant.now().getEpochSecond();
+        long startMillis = System.currentTimeMillis();
+        long start = startMillis / 1000L;
         try {
+            if(maxDuration_ != null)
+                deadline_ = Math.min(deadline_, startMillis + parseDuration(maxDuration_).toMillis());
+            if(deadlineText_ != null)
+                deadline_ = Math.min(deadline_, parseDeadline(deadlineText_, startMillis));
+            if(scheduleName_ != null) {
+                schedule_ = Schedule.fromString(scheduleName_);
+                if(lowMemory_ && schedule_ != Schedule.Path)
+                    throw new IllegalArgumentException("--low-memory backs up in walk order, it cannot use " +
+                            "--schedule " + scheduleName_ + "!");
+            }
+            if(detectionName_ != null)
+                detection_ = ChangeDetection.fromString(detectionName_);
             for (int i = 0; i < setFiles_.size(); i++) {
                 File setFile = setFiles_.get(i);
                 if(!setFile.exists())
@@ -36,13 +83,22 @@ public class DoBackup implements Callable<Integer> {
                 setFiles_.set(i, setFile.getAbsoluteFile());
             }
             int rv = 0;
-            for(File setFile: setFiles_) {
-                if(!DoBackupSet(setFile)) {
-                    rv = 3;
-                    log_.warn("*** Finished backup set with error: {}", setFile.getCanonicalPath());
-                } else
-                    log_.info("*** Finished backup set OK: {}", setFile.getCanonicalPath());
+            try (AuditJournal journal = AuditJournal.open(journalFile_);
+                 WorkerPool workers = new WorkerPool("backup", minWorkers(), maxWorkers(), virtualThreads_)) {
+                journal_ = journal;
+                workers_ = workers;
+                for(File setFile: setFiles_) {
+                    if(!DoBackupSet(setFile)) {
+                        rv = 3;
+                        log_.warn("*** Finished backup set with error: {}", setFile.getCanonicalPath());
+                    } else
+                        log_.info("*** Finished backup set OK: {}", setFile.getCanonicalPath());
+                }
+                log_.info("Backed up with {} workers on {} devices at the end (at most {}).", workers.getWorkers(),
+                        workers.getDevices(), workers.getPeakWorkers());
             }
+            if(journal_.failed())
+                rv = 3;
             printReport(Instant.now().getEpochSecond() - start);
             return rv;
         } catch(IllegalArgumentException e) {
@@ -55,20 +111,58 @@ public class DoBackup implements Callable<Integer> {
         try {
             BackupSet set = newGson().fromJson(Files.readString(setFile.toPath(), StandardCharsets.UTF_8),
                     BackupSet.class);
-            extension_ = set.getExtension();
+            compression_ = set.getCompression();
+            inlineThreshold_ = set.getInlineThreshold();
             System.out.println("\n==========================================================================================");
             System.out.printf("====  %s  ====\n", set.getName());
             log_.info("*** Starting backup set: {}", setFile.getCanonicalPath());
-            BackupSetIndexFactory factory = new BackupSetIndexFactory(set, dryRun_);
-            BackupIndex index = factory.createOrLoad(set.getKeyFile());
-            walkFileTrees(set, index);
-            backupIndex(set, index);
-            index.saveIndex(set.getSetFileIndex(), set.getKeyFile());
+            int errored = erroredFiles_.get();
+            List<Target> targets = new ArrayList<>();
+            boolean ok;
+            try {
+                ok = openTargets(set, targets);
+                if(lowMemory_) {
+                    dictionary_ = set.usesDictionary() ? loadDictionary(set, targets) : null;
+                    backupSorted(set, targets);
+                } else {
+                    walkFileTrees(set, targets);
+                    dictionary_ = set.usesDictionary() ? loadOrTrainDictionary(set, targets) : null;
+                    backupIndex(set, targets);
+                }
+                ok &= backupStreams(set, targets);
+                if(!dryRun_) // The index would reference versions that were never written...
+                    for(Target target: targets)
+                        target.index_.saveIndex(target.storage_, set.getIndexKey(), set.getKeyFile());
+            } finally {
+                workers_.awaitIdle(); // Before closing the storage they write to...
+                for(Target target: targets)
+                    target.storage_.close();
+            }
+            return ok && erroredFiles_.get() == errored; // Including the copies that failed on the workers.
         } catch(IOException e) {
             log_.fatal("Backup failed!");
             return false;
         }
-        return true;
+    }
+
+    // The set's own destination must open; a mirror that cannot is skipped this run and catches up on the next...
+    private boolean openTargets(BackupSet set, List<Target> targets) throws IOException {
+        boolean ok = true;
+        for(String destination: set.getDestinations()) {
+            StorageBackend storage = set.openStorage(destination);
+            try {
+                BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, dryRun_);
+                targets.add(new Target(storage, factory.createOrLoad(set.getKeyFile())));
+            } catch(IOException e) {
+                storage.close();
+                if(targets.isEmpty())
+                    throw e;
+                log_.error("Skipping unavailable mirror destination:\n    {}!", destination);
+                log_.catching(Level.DEBUG, e);
+                ok = false;
+            }
+        }
+        return ok;
     }
 
     private void printReport(long seconds) {
@@ -76,25 +170,59 @@ public class DoBackup implements Callable<Integer> {
         if(dryRun_)
             System.out.println("*** DRY RUN ONLY");
         System.out.print ("+----------------------------------------+\n");
-        System.out.printf("| Backed up files:          %12d |\n", backupedFiles_);
+        System.out.printf("| Backed up files:          %12d |\n", backupedFiles_.get());
         System.out.printf("| Skipped files:            %12d |\n", skippedFiles_);
+        System.out.printf("| Hard linked files:        %12d |\n", linkedFiles_);
         System.out.printf("| New files backed up:      %12d |\n", newFiles_);
         System.out.printf("| Apparently Deleted files: %12d |\n", deletedFiles_);
-        System.out.printf("| Errored files:            %12d |\n", erroredFiles_);
+        System.out.printf("| Excluded files/folders:   %12d |\n", excludedPaths_);
+        System.out.printf("| Errored files:            %12d |\n", erroredFiles_.get());
+        if(deferredFiles_ > 0)
+            System.out.printf("| Deferred files:           %12d |\n", deferredFiles_);
+        if(sameContentFiles_.get() > 0)
+            System.out.printf("| Same content files:       %12d |\n", sameContentFiles_.get());
         System.out.printf("| Total processed files:    %12d |\n", totalFiles_);
         System.out.print ("+----------------------------------------+\n");
         System.out.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
         System.out.print ("+----------------------------------------+\n");
     }
 
-    private void walkFileTrees(BackupSet set, BackupIndex index) throws IOException {
+    private void walkFileTrees(BackupSet set, List<Target> targets) throws IOException {
+        PathFilter filter = set.getPathFilter();
+        boolean filtered = !filter.isEmpty(); // Most sets have no patterns, so no path is relativized for them.
         for(File folder: set) {
-            Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<>() {
+            Path root = folder.toPath();
+            Predicate<Path> otherDevice = devices_.otherThan(root, set.isOneFileSystem());
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                    if(filtered && !path.equals(root) && filter.excludesFolder(root.relativize(path))) {
+                        log_.debug("Excluded folder:\n    {}", path);
+                        excludedPaths_ += 1;
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if(!path.equals(root) && otherDevice.test(path)) {
+                        log_.debug("Not crossing into another file system:\n    {}", path);
+                        excludedPaths_ += 1;
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
                 @Override public FileVisitResult visitFile(Path path, BasicFileAttributes basicFileAttributes)
                         throws IOException {
+                    if(filtered && !filter.acceptsFile(root.relativize(path))) {
+                        excludedPaths_ += 1;
+                        return FileVisitResult.CONTINUE;
+                    }
                     File file = path.toFile().getAbsoluteFile();
-                    if(!file.isDirectory())
-                        checkRealFile(index, file);
+                    if(!basicFileAttributes.isDirectory()) {
+                        FileState state = fileState(path);
+                        for(Target target: targets) {
+                            if(checkRealFile(target.index_, file, state) && target == targets.get(0))
+                                newFiles_ += 1;
+                            checkHardLink(target, linkedInode(state), file);
+                        }
+                    }
                     return FileVisitResult.CONTINUE;
                 }
 
@@ -104,67 +232,894 @@ public class DoBackup implements Callable<Integer> {
                 }
             });
         }
+        for(Target target: targets)
+            resolveHardLinks(target);
+    }
+
+    // Group paths sharing a device and inode; only files with more than one link can be in a group...
+    private void checkHardLink(Target target, String inode, File file) throws IOException {
+        BackupIndexEntry entry = target.index_.getEntry(file.toString());
+        if(inode != null)
+            target.hardLinks_.computeIfAbsent(inode, (k) -> new ArrayList<>()).add(entry);
+        else
+            entry.unlink();
+    }
+
+    // The device and inode, link count and (for change detection) ctime of a file in one read; null without unix
+    // file attributes...
+    private FileState fileState(Path path) {
+        if(unixAttributes_) {
+            try {
+                Map<String,Object> attributes = Files.readAttributes(path, detection_.usesChangeTime() ?
+                        "unix:nlink,dev,ino,ctime" : "unix:nlink,dev,ino", LinkOption.NOFOLLOW_LINKS);
+                FileTime changed = (FileTime)attributes.get("ctime");
+                return new FileState(attributes.get("dev"), attributes.get("dev") + ":" + attributes.get("ino"),
+                        ((Number)attributes.get("nlink")).intValue(),
+                        (changed == null) ? 0L : changed.to(TimeUnit.NANOSECONDS));
+            } catch(UnsupportedOperationException | IllegalArgumentException e) {
+                log_.debug("No unix file attributes on this platform, hard links are backed up as copies.");
+                unixAttributes_ = false;
+            } catch(IOException e) {
+                log_.debug("Failed to read the link count of:\n    {}", path);
+            }
+        }
+        return null;
     }
 
-    void checkRealFile(BackupIndex index, File file) {
-        if(index.isFileInList(file)) {
-            index.getEntry(file.toString()).determineNeedsBackup();
-            if(index.getEntry(file.toString()).needsBackup()) {
+    // The device and inode of a file with more than one link, otherwise null...
+    private static String linkedInode(FileState state) {
+        return (state != null && state.links() > 1) ? state.inode() : null;
+    }
+
+    // The device picks the workers that copy the file; the inode and ctime are only recorded in the index when the
+    // change detection compares them...
+    private void setScanned(BackupIndexEntry entry, FileState state) {
+        if(state == null)
+            return;
+        entry.setScannedDevice(state.device());
+        if(detection_.usesChangeTime())
+            entry.setScannedInode(state.inode(), state.changed());
+    }
+
+    private record FileState(Object device, String inode, int links, long changed) {}
+
+    // The data is backed up once per group. The entry holding it is kept from the last run when possible so a
+    // change in walk order does not back the data up again...
+    private void resolveHardLinks(Target target) {
+        for(List<BackupIndexEntry> group: target.hardLinks_.values()) {
+            if(group.size() == 1) {
+                group.get(0).unlink();
+                continue;
+            }
+            BackupIndexEntry primary = group.get(0);
+            for(BackupIndexEntry entry: group) {
+                if(!entry.isLink() && entry.getLastModifiedTs() != 0L && !entry.needsBackup()) {
+                    primary = entry;
+                    break;
+                }
+            }
+            primary.unlink();
+            for(BackupIndexEntry entry: group)
+                if(entry != primary)
+                    entry.linkTo(primary.getFile().toString());
+        }
+        target.hardLinks_.clear();
+    }
+
+    // The dictionary is trained once and then kept for the life of the set since every blob compressed with it
+    // records its id...
+    private CompressionDictionary loadOrTrainDictionary(BackupSet set, List<Target> targets) throws IOException {
+        KeyData key = newGson().fromJson(Files.readString(set.getKeyFile().toPath(), StandardCharsets.UTF_8),
+                KeyData.class);
+        StorageBackend storage = targets.get(0).storage_;
+        if(storage.exists(set.getDictionaryKey()))
+            return shareDictionary(set, targets, CompressionDictionary.load(storage.get(set.getDictionaryKey()), key),
+                    key);
+        List<byte[]> samples = new ArrayList<>();
+        for(BackupIndexEntry entry: targets.get(0).index_.entries()) {
+            if(samples.size() >= DICTIONARY_SAMPLES)
+                break;
+            if(entry.wasChecked() && !entry.isLink() && entry.getLastSize() > 0 &&
+                    entry.getLastSize() <= CompressionDictionary.MAX_FILE_SIZE) {
+                try {
+                    samples.add(Files.readAllBytes(entry.getFile().toPath()));
+                } catch(IOException e) {
+                    log_.debug("Skipped dictionary sample:\n    {}", entry.getFile());
+                }
+            }
+        }
+        CompressionDictionary dictionary = CompressionDictionary.train(samples);
+        if(dictionary == null) {
+            log_.info("No compression dictionary trained (not enough similar small files yet).");
+            return null;
+        }
+        log_.info("Trained a compression dictionary from {} small files.", samples.size());
+        return shareDictionary(set, targets, dictionary, key);
+    }
+
+    // Training needs samples from the whole walk, so the low memory mode only uses a dictionary that already exists...
+    private CompressionDictionary loadDictionary(BackupSet set, List<Target> targets) throws IOException {
+        StorageBackend storage = targets.get(0).storage_;
+        if(!storage.exists(set.getDictionaryKey())) {
+            log_.info("No compression dictionary yet, a backup without --low-memory trains one.");
+            return null;
+        }
+        KeyData key = newGson().fromJson(Files.readString(set.getKeyFile().toPath(), StandardCharsets.UTF_8),
+                KeyData.class);
+        return shareDictionary(set, targets, CompressionDictionary.load(storage.get(set.getDictionaryKey()), key),
+                key);
+    }
+
+    // Files are compressed once for every destination, so every destination needs the same dictionary...
+    private CompressionDictionary shareDictionary(BackupSet set, List<Target> targets,
+                                                  CompressionDictionary dictionary, KeyData key) throws IOException {
+        for(Target target: targets) {
+            if(!target.storage_.exists(set.getDictionaryKey())) {
+                if(!dryRun_)
+                    dictionary.save(target.storage_.put(set.getDictionaryKey()), key);
+            } else if(target != targets.get(0) && CompressionDictionary.load(target.storage_.get(
+                    set.getDictionaryKey()), key).id() != dictionary.id())
+                throw new IOException("A mirror destination has a different compression dictionary: " +
+                        target.storage_.describe(set.getDictionaryKey()));
+        }
+        return dictionary;
+    }
+
+    // True for a file new to the index...
+    boolean checkRealFile(BackupIndex index, File file, FileState state) throws IOException {
+        BackupIndexEntry entry = index.getEntry(file.toString());
+        if(entry != null) {
+            setScanned(entry, state);
+            entry.determineNeedsBackup();
+            if(!journal_.logEach())
+                return false;
+            if(entry.needsBackup()) {
                 log_.debug("Previously backed up file needs backing up:\n    {}", file);
             } else {
                 log_.debug("Previously backed up file not changed:\n    {}", file);
             }
-        } else {
-            index.addNewFile(file);
+            return false;
+        }
+        index.addNewFile(file);
+        setScanned(index.getEntry(file.toString()), state);
+        if(journal_.logEach())
             log_.debug("New file to backup:\n    {}", file);
-            newFiles_ += 1;
-        }
-    }
-
-    void backupIndex(BackupSet set, BackupIndex index) throws IOException {
-        if(set.getDestination().exists() && !set.getDestination().isDirectory())
-            throw new IOException("Destination path exists and is not a folder: " + set.getDestination());
-        if(!set.getDestination().exists())
-            Files.createDirectories(set.getDestination().toPath());
-        totalFiles_ = index.size();
-        for(BackupIndexEntry entry: index) {
-            if(entry.wasChecked()) {
-                if (entry.needsBackup()) {
-                    if (backupEntry(set.getDestination(), entry, set.getKeyFile())) {
-                        entry.updateAfterBackedUp();
-                        backupedFiles_ += 1;
-                    } else
-                        entry.resetFileTime();
-                } else {
-                    log_.info("Skipped backing up file:\n    {}", entry.getFile());
-                    skippedFiles_ += 1;
+        return true;
+    }
+
+    void backupIndex(BackupSet set, List<Target> targets) throws IOException {
+        List<BackupIndexEntry> entries = targets.get(0).index_.entries();
+        for(int i = 1; i < targets.size(); i++)
+            markDeleted(targets.get(i).index_.entries());
+        markDeleted(entries);
+        // What the last run left for lack of time goes first; stable, so ties keep the index order...
+        Comparator<BackupIndexEntry> order = Comparator.comparing((entry) -> !entry.isPending());
+        if(schedule_.order() != null)
+            order = order.thenComparing(schedule_.order());
+        entries.sort(order);
+        // One queue per source device in that order: a device with all its workers busy (a slow or remote mount)
+        // does not hold up the files of the others...
+        Map<Object,Deque<BackupIndexEntry>> devices = new LinkedHashMap<>();
+        for(BackupIndexEntry entry: entries)
+            if(!StreamSource.isStream(entry)) // See backupStreams()...
+                devices.computeIfAbsent(entry.getScannedDevice(), (device) -> new ArrayDeque<>()).add(entry);
+        while(!devices.isEmpty()) {
+            long finished = workers_.getFinished();
+            boolean started = false;
+            for(Iterator<Map.Entry<Object,Deque<BackupIndexEntry>>> it = devices.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Object,Deque<BackupIndexEntry>> device = it.next();
+                for(; !device.getValue().isEmpty() && workers_.hasWorker(device.getKey()); started = true) {
+                    BackupIndexEntry entry = device.getValue().poll();
+                    totalFiles_ += 1;
+                    if(entry.wasChecked())
+                        backupCheckedEntry(targets, entriesOf(targets, entry), set.getKeyFile());
+                    else {
+                        if(journal_.logEach())
+                            log_.info("Apparently deleted file in source:\n    {}", entry.getFile());
+                        journal_.record("deleted", entry.getFile(), entry.getLastSize(), 0L, "ok");
+                        deletedFiles_ += 1;
+                    }
                 }
+                if(device.getValue().isEmpty())
+                    it.remove();
+            }
+            if(!started)
+                workers_.awaitFinished(finished);
+        }
+        workers_.awaitIdle();
+    }
+
+    // Entries the walk did not find stay in the index (their versions can still be restored) but the snapshot
+    // records them as deleted for do-query and do-diff. Stream sources are checked by backupStreams()...
+    private static void markDeleted(List<BackupIndexEntry> entries) {
+        for(BackupIndexEntry entry: entries)
+            if(!entry.wasChecked() && !StreamSource.isStream(entry))
+                entry.markDeleted();
+    }
+
+    // The same file in the index of each destination (every walked file was added to all of them)...
+    private List<BackupIndexEntry> entriesOf(List<Target> targets, BackupIndexEntry entry) throws IOException {
+        List<BackupIndexEntry> entries = new ArrayList<>();
+        entries.add(entry);
+        for(int i = 1; i < targets.size(); i++)
+            entries.add(targets.get(i).index_.getEntry(entry.getFile().toString()));
+        return entries;
+    }
+
+    // The set's own destination decides what is reported; a mirror may still need a file the set's destination
+    // already has (it was unavailable or failed on an earlier run). The copy runs on a worker, the returned copy is
+    // null when there is nothing to copy...
+    private Future<?> backupCheckedEntry(List<Target> targets, List<BackupIndexEntry> entries, File keyFile)
+            throws IOException {
+        BackupIndexEntry entry = entries.get(0);
+        List<Target> copyTargets = new ArrayList<>();
+        List<BackupIndexEntry> copies = new ArrayList<>();
+        for(int i = 0; i < targets.size(); i++) {
+            BackupIndexEntry copy = entries.get(i);
+            if(copy.isLink())
+                copy.updateAfterBackedUp();
+            else if(copy.needsBackup()) {
+                copyTargets.add(targets.get(i));
+                copies.add(copy);
+            }
+        }
+        if(entry.isLink()) {
+            if(journal_.logEach())
+                log_.info("Hard link, not backed up again:\n    {}\n    {}", entry.getFile(), entry.getLinkTo());
+            journal_.record("link", entry.getFile(), -1L, 0L, "ok");
+            linkedFiles_ += 1;
+        } else if(!entry.needsBackup()) {
+            if(journal_.logEach())
+                log_.info("Skipped backing up file:\n    {}", entry.getFile());
+            journal_.record("unchanged", entry.getFile(), entry.getLastSize(), 0L, "ok");
+            skippedFiles_ += 1;
+        }
+        if(copies.isEmpty())
+            return null;
+        if(pastDeadline()) {
+            for(BackupIndexEntry copy: copies)
+                copy.defer();
+            if(copies.get(0) == entry) {
+                if(journal_.logEach())
+                    log_.info("Deferred to the next run:\n    {}", entry.getFile());
+                journal_.record("deferred", entry.getFile(), entry.getScannedSize(), 0L, "ok");
+                deferredFiles_ += 1;
+            }
+            return null;
+        }
+        return workers_.submit(entry.getScannedDevice(), entry.getFile().length(), () -> {
+            try {
+                backupCopies(entry, copyTargets, copies, keyFile);
+            } catch(RuntimeException e) { // Nobody reads the returned copy's failure...
+                log_.error("Failed to backup file:\n    {}!", entry.getFile());
+                log_.catching(Level.DEBUG, e);
+                journal_.record("backup", entry.getFile(), entry.getScannedSize(), 0L, "failed");
+                for(BackupIndexEntry copy: copies)
+                    copy.resetFileTime();
+                erroredFiles_.incrementAndGet();
+            }
+        });
+    }
+
+    // Runs on a worker; a copy that failed for any destination counts as an errored file...
+    private void backupCopies(BackupIndexEntry entry, List<Target> copyTargets, List<BackupIndexEntry> copies,
+                              File keyFile) {
+        long started = System.nanoTime();
+        String fingerprint = (detection_ == ChangeDetection.Fingerprint) ? fingerprint(entry.getFile()) : null;
+        if(fingerprint != null && copies.get(0) == entry && fingerprint.equals(entry.getFingerprint())) {
+            if(journal_.logEach())
+                log_.info("Same content, not backed up again:\n    {}", entry.getFile());
+            journal_.record("same-content", entry.getFile(), entry.getScannedSize(), System.nanoTime() - started,
+                    "ok");
+            sameContentFiles_.incrementAndGet();
+        }
+        if(dropSameContent(copyTargets, copies, fingerprint))
+            return;
+        boolean[] done = backupEntry(copyTargets, copies, keyFile, fingerprint);
+        String result = result(done);
+        journal_.record("backup", entry.getFile(), entry.getScannedSize(), System.nanoTime() - started, result);
+        if(!result.equals("ok"))
+            erroredFiles_.incrementAndGet();
+        for(int i = 0; i < copies.size(); i++) {
+            if(done[i]) {
+                copies.get(i).updateAfterBackedUp();
+                if(copies.get(i) == entry)
+                    backupedFiles_.incrementAndGet();
+            } else
+                copies.get(i).resetFileTime();
+        }
+    }
+
+    // Only the metadata of a copy whose stored fingerprint matches changed (touched, checked out, restored, ...); it
+    // is updated instead of copied. True when no copy is left...
+    private static boolean dropSameContent(List<Target> copyTargets, List<BackupIndexEntry> copies,
+                                           String fingerprint) {
+        for(int i = copies.size() - 1; i >= 0 && fingerprint != null; i--) {
+            if(fingerprint.equals(copies.get(i).getFingerprint())) {
+                copies.get(i).updateAfterBackedUp();
+                copies.remove(i);
+                copyTargets.remove(i);
+            }
+        }
+        return copies.isEmpty();
+    }
+
+    // Taken before the copy, so a change during the copy shows up as a different fingerprint next run...
+    private String fingerprint(File file) {
+        try {
+            return ChangeDetection.fingerprint(file);
+        } catch(IOException e) {
+            log_.debug("Failed to fingerprint:\n    {}", file);
+            return null;
+        }
+    }
+
+    // Low memory mode: every shard is merge-joined with a sorted walk of the files it holds (a source folder's own
+    // files, then each of its top level sub-folders) and the updated entries are streamed into a new shard. Memory
+    // is bounded by the largest folder listing and the hard link groups, not by the size of the index...
+    private void backupSorted(BackupSet set, List<Target> targets) throws IOException {
+        PathFilter filter = set.getPathFilter();
+        Map<String,String> firstLinks = storedPrimaries(set, filter, targets.get(0).index_);
+        Set<String> merged = new HashSet<>();
+        List<Path[]> folders = new ArrayList<>(); // The source folder and the folder of each shard...
+        Map<Path,Predicate<Path>> otherDevices = new HashMap<>();
+        for(File folder: set) {
+            Path root = folder.getAbsoluteFile().toPath();
+            folders.add(new Path[] {root, root});
+            otherDevices.put(root, devices_.otherThan(root, set.isOneFileSystem()));
+            SortedWalk top = new SortedWalk(root, root, filter, false, otherDevices.get(root));
+            while(top.next() != null)
+                ; // Only the folders are needed here.
+            for(Path sub: top.getFolders())
+                folders.add(new Path[] {root, sub});
+        }
+        // A run cut short by its deadline is continued where it stopped, so every folder gets its turn even when no
+        // single run gets through them all...
+        String resume = targets.get(0).index_.getResumeFolder();
+        for(int i = 0; i < folders.size(); i++)
+            if(folders.get(i)[1].toString().equals(resume))
+                Collections.rotate(folders, -i);
+        String stoppedAt = null;
+        for(Path[] folder: folders) {
+            String shard = folder[1].toString();
+            merged.add(shard); // Left unchanged when stopped, not deleted...
+            if(stoppedAt == null && pastDeadline())
+                stoppedAt = shard;
+            if(stoppedAt != null)
+                continue;
+            int deferred = deferredFiles_;
+            SortedWalk walk = new SortedWalk(folder[0], folder[1], filter, !folder[0].equals(folder[1]),
+                    otherDevices.get(folder[0]));
+            mergeShard(targets, shard, walk, firstLinks, set.getKeyFile());
+            excludedPaths_ += walk.getExcluded();
+            if(deferredFiles_ > deferred)
+                stoppedAt = shard;
+        }
+        if(stoppedAt != null)
+            log_.info("The next run starts at:\n    {}", stoppedAt);
+        for(Target target: targets)
+            target.index_.setResumeFolder(stoppedAt);
+        // Shards of folders no longer walked only hold deleted files...
+        merged.add(StreamSource.getFolder()); // See backupStreams()...
+        for(Target target: targets) {
+            BackupIndex index = target.index_;
+            for(String folder: index.shardFolders()) {
+                if(merged.contains(folder))
+                    continue;
+                if(!dryRun_)
+                    markShardDeleted(index, folder);
+                if(target == targets.get(0)) {
+                    int count = index.shardSize(folder);
+                    log_.info("Apparently deleted files in source ({}):\n    {}", count, folder);
+                    journal_.record("deleted-folder", folder, -1L, 0L, "ok");
+                    deletedFiles_ += count;
+                    totalFiles_ += count;
+                }
+            }
+        }
+    }
+
+    // Streamed like a merge; only rewritten when some entry is not marked yet, so later runs leave the shard alone...
+    private static void markShardDeleted(BackupIndex index, String folder) throws IOException {
+        boolean marked = true;
+        try (BackupIndex.ShardReader reader = index.openShardReader(folder)) {
+            for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null && marked;
+                entry = reader.next())
+                marked = entry.getValue().isDeleted();
+        }
+        if(marked)
+            return;
+        try (BackupIndex.ShardReader reader = index.openShardReader(folder);
+             BackupIndex.ShardWriter writer = index.openShardWriter(folder)) {
+            for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next()) {
+                entry.getValue().markDeleted();
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            writer.commit();
+        }
+    }
+
+    // The walk reaches the files of a hard link group in path order, not in the order resolveHardLinks() sees them.
+    // So the groups start with the entry holding their data in the index (by device and inode) when it is still in
+    // the source unchanged, the same entry resolveHardLinks() keeps, and the data is not backed up again. A link
+    // tracks the times of the group's data, so one link per group is enough to tell...
+    private Map<String,String> storedPrimaries(BackupSet set, PathFilter filter, BackupIndex index)
+            throws IOException {
+        Map<String,BackupIndexEntry> links = new HashMap<>();
+        for(String folder: index.shardFolders()) {
+            try (BackupIndex.ShardReader reader = index.openShardReader(folder)) {
+                for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next())
+                    if(entry.getValue().isLink() && !entry.getValue().isDeleted())
+                        links.putIfAbsent(entry.getValue().getLinkTo(), entry.getValue());
+            }
+        }
+        Map<String,String> primaries = new HashMap<>();
+        for(Map.Entry<String,BackupIndexEntry> link: links.entrySet()) {
+            File primary = new File(link.getKey());
+            String inode = linkedInode(fileState(primary.toPath()));
+            if(inode != null && primary.lastModified() == link.getValue().getLastModifiedTs() &&
+                    primary.length() == link.getValue().getLastSize() && walks(set, filter, primary.toPath()))
+                primaries.put(inode, link.getKey());
+        }
+        return primaries;
+    }
+
+    private static boolean walks(BackupSet set, PathFilter filter, Path path) {
+        for(File folder: set) {
+            Path root = folder.getAbsoluteFile().toPath();
+            if(path.startsWith(root) && !path.equals(root))
+                return filter.isEmpty() || filter.reaches(root.relativize(path));
+        }
+        return false;
+    }
+
+    // The walk is read once and joined with the shard of every destination. Entries are written to the new shards
+    // in walk order once their copy is done, so a window of copies runs on the workers meanwhile...
+    private void mergeShard(List<Target> targets, String folder, SortedWalk walk, Map<String,String> firstLinks,
+                            File keyFile) throws IOException {
+        List<BackupIndex.ShardReader> readers = new ArrayList<>();
+        List<BackupIndex.ShardWriter> writers = new ArrayList<>();
+        Deque<Pending> window = new ArrayDeque<>();
+        try {
+            List<Map.Entry<String,BackupIndexEntry>> stored = new ArrayList<>();
+            for(Target target: targets) {
+                readers.add(target.index_.openShardReader(folder));
+                writers.add(dryRun_ ? null : target.index_.openShardWriter(folder));
+                stored.add(readers.get(readers.size() - 1).next());
+            }
+            for(Path scanned = walk.next(); ; scanned = walk.next()) {
+                // Entries sorting before the next walked file are no longer in the source...
+                for(int i = 0; i < targets.size(); i++) {
+                    while(stored.get(i) != null && (scanned == null ||
+                            BackupIndex.PATH_ORDER.compare(stored.get(i).getKey(), scanned.toString()) < 0)) {
+                        BackupIndexEntry entry = stored.get(i).getValue();
+                        entry.markDeleted();
+                        if(i == 0) {
+                            if(journal_.logEach())
+                                log_.info("Apparently deleted file in source:\n    {}", entry.getFile());
+                            journal_.record("deleted", entry.getFile(), entry.getLastSize(), 0L, "ok");
+                            deletedFiles_ += 1;
+                            totalFiles_ += 1;
+                        }
+                        List<BackupIndexEntry> only = new ArrayList<>(Collections.nCopies(targets.size(), null));
+                        only.set(i, entry);
+                        window.add(new Pending(only, null));
+                        stored.set(i, readers.get(i).next());
+                    }
+                }
+                if(scanned == null)
+                    break;
+                FileState state = fileState(scanned);
+                List<BackupIndexEntry> entries = new ArrayList<>();
+                for(int i = 0; i < targets.size(); i++) {
+                    BackupIndexEntry entry;
+                    if(stored.get(i) != null && stored.get(i).getKey().equals(scanned.toString())) {
+                        entry = stored.get(i).getValue();
+                        setScanned(entry, state);
+                        entry.determineNeedsBackup();
+                        stored.set(i, readers.get(i).next());
+                    } else {
+                        entry = new BackupIndexEntry(scanned.toFile());
+                        setScanned(entry, state);
+                        if(i == 0) {
+                            if(journal_.logEach())
+                                log_.debug("New file to backup:\n    {}", entry.getFile());
+                            newFiles_ += 1;
+                        }
+                    }
+                    entries.add(entry);
+                }
+                // The stored primary of a hard link group (see storedPrimaries()) or else its first path in walk
+                // order holds the data...
+                String inode = linkedInode(state);
+                String path = scanned.toString();
+                String primary = (inode == null) ? null : firstLinks.putIfAbsent(inode, path);
+                for(BackupIndexEntry entry: entries) {
+                    if(primary == null || primary.equals(path))
+                        entry.unlink();
+                    else
+                        entry.linkTo(primary);
+                }
+                window.add(new Pending(entries, backupCheckedEntry(targets, entries, keyFile)));
+                totalFiles_ += 1;
+                while(window.size() > MERGE_WINDOW)
+                    window.poll().write(writers);
+            }
+            while(!window.isEmpty())
+                window.poll().write(writers);
+            for(BackupIndex.ShardWriter writer: writers)
+                if(writer != null)
+                    writer.commit();
+        } finally {
+            workers_.awaitIdle();
+            closeAll(readers);
+            closeAll(writers);
+        }
+    }
+
+    // Entries of one path (null for a destination without it) waiting for their copy...
+    private static final class Pending {
+        Pending(List<BackupIndexEntry> entries, Future<?> copy) {
+            entries_ = entries;
+            copy_ = copy;
+        }
+
+        void write(List<BackupIndex.ShardWriter> writers) throws IOException {
+            if(copy_ != null) {
+                try {
+                    copy_.get();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a copy!");
+                } catch(ExecutionException e) {
+                    log_.debug("Copy failed: {}", e.getCause().toString()); // Its entry was reset by the copy.
+                }
+            }
+            for(int i = 0; i < writers.size(); i++) {
+                BackupIndexEntry entry = entries_.get(i);
+                if(entry != null && writers.get(i) != null)
+                    writers.get(i).add(entry.getFile().toString(), entry);
+            }
+        }
+
+        private final List<BackupIndexEntry> entries_;
+        private final Future<?> copy_;
+        private final Logger log_ = LogManager.getRootLogger();
+    }
+
+    // For the journal: a mirror may fail on its own...
+    private static String result(boolean[] done) {
+        int count = 0;
+        for(boolean ok: done)
+            count += ok ? 1 : 0;
+        return (count == done.length) ? "ok" : (count == 0) ? "failed" : "partial";
+    }
+
+    // Once passed, copies that have not started are left for the next run...
+    private boolean pastDeadline() {
+        if(!deadlineReached_ && System.currentTimeMillis() >= deadline_) {
+            log_.warn("The deadline has passed; no more files are backed up this run.");
+            deadlineReached_ = true;
+        }
+        return deadlineReached_;
+    }
+
+    // "PT4H", "4h", "90m", "1h30m", "45s" or "1d"...
+    private static Duration parseDuration(String text) {
+        String value = text.trim().toUpperCase(Locale.ROOT);
+        try {
+            if(value.startsWith("P"))
+                return Duration.parse(value);
+            if(!value.matches("(\\d+[DHMS])+"))
+                throw new IllegalArgumentException("Bad duration: " + text);
+            int days = value.indexOf('D');
+            String time = value.substring(days + 1);
+            return Duration.parse("P" + ((days < 0) ? "" : value.substring(0, days + 1)) +
+                    (time.isEmpty() ? "" : "T" + time));
+        } catch(DateTimeParseException e) {
+            throw new IllegalArgumentException("Bad duration: " + text);
+        }
+    }
+
+    // A local time of day ("05:00") is its next occurrence after now, anything else is parsed by parseTime()...
+    private static long parseDeadline(String text, long now) {
+        if(!text.matches("\\d{1,2}:\\d\\d(:\\d\\d)?"))
+            return EntryFilter.parseTime(text);
+        try {
+            ZonedDateTime start = Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault());
+            ZonedDateTime deadline = start.with(LocalTime.parse((text.indexOf(':') == 1) ? "0" + text : text));
+            if(!deadline.isAfter(start))
+                deadline = deadline.plusDays(1);
+            return deadline.toInstant().toEpochMilli();
+        } catch(DateTimeParseException e) {
+            throw new IllegalArgumentException("Bad deadline: " + text);
+        }
+    }
+
+    private static void closeAll(List<? extends Closeable> closeables) throws IOException {
+        IOException first = null;
+        for(Closeable closeable: closeables) {
+            try {
+                if(closeable != null)
+                    closeable.close();
+            } catch(IOException e) {
+                if(first == null)
+                    first = e;
+            }
+        }
+        if(first != null)
+            throw first;
+    }
+
+    // Stream sources are backed up again on every run; one no longer in the set is an apparently deleted file...
+    private boolean backupStreams(BackupSet set, List<Target> targets) throws IOException {
+        boolean ok = true;
+        Set<String> configured = new HashSet<>();
+        for(StreamSource stream: set.getStreamSources()) {
+            String path = stream.getIndexFile().getPath();
+            configured.add(path);
+            totalFiles_ += 1;
+            List<BackupIndexEntry> entries = new ArrayList<>();
+            for(Target target: targets) {
+                BackupIndexEntry entry = target.index_.getEntry(path);
+                if(entry == null) {
+                    target.index_.addNewFile(stream.getIndexFile());
+                    entry = target.index_.getEntry(path);
+                    if(target == targets.get(0)) {
+                        log_.debug("New stream source to backup:\n    {}", stream.getName());
+                        newFiles_ += 1;
+                    }
+                }
+                entry.determineStreamNeedsBackup();
+                entries.add(entry);
+            }
+            long started = System.nanoTime();
+            if(pastDeadline()) {
+                log_.info("Deferred stream source to the next run:\n    {}", stream.getName());
+                journal_.record("deferred", path, -1L, 0L, "ok");
+                deferredFiles_ += 1;
+            } else if(stream.isStdin() && stdinRead_) {
+                log_.error("Standard input was already backed up, not backing up stream source:\n    {}!",
+                        stream.getName());
+                journal_.record("backup-stream", path, -1L, 0L, "failed");
+                erroredFiles_.incrementAndGet();
+                ok = false;
+            } else if(backupStream(targets, entries, stream, set.getKeyFile())) {
+                journal_.record("backup-stream", path, stream.getSize(), System.nanoTime() - started, "ok");
+                backupedFiles_.incrementAndGet();
             } else {
-                log_.info("Apparently deleted file in source:\n    {}", entry.getFile());
-                deletedFiles_ += 1;
+                journal_.record("backup-stream", path, -1L, System.nanoTime() - started, "failed");
+                erroredFiles_.incrementAndGet();
+                ok = false;
+            }
+        }
+        for(Target target: targets) {
+            for(BackupIndexEntry entry: target.index_.entriesUnder(new File(StreamSource.getFolder()))) {
+                if(configured.contains(entry.getFile().getPath()))
+                    continue;
+                entry.markDeleted();
+                if(target == targets.get(0)) {
+                    log_.info("Apparently deleted stream source:\n    {}", entry.getFile());
+                    journal_.record("deleted", entry.getFile(), entry.getLastSize(), 0L, "ok");
+                    deletedFiles_ += 1;
+                    totalFiles_ += 1;
+                }
+            }
+        }
+        return ok;
+    }
+
+    // Like backupEntry() but the data is compressed and encrypted as the command writes it; there is no second
+    // chance to read it, so it only succeeds when every destination got it...
+    private boolean backupStream(List<Target> targets, List<BackupIndexEntry> entries, StreamSource stream,
+                                 File keyFile) {
+        List<String> keys = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        for(int i = 0; i < targets.size(); i++) {
+            BackupIndexEntry entry = entries.get(i);
+            versions.add(entry.isNew() ? entry.getVersion() : entry.getVersion() + 1);
+            keys.add(targets.get(i).index_.blobKey(entry, versions.get(i)));
+            log_.info("Backing up stream source:\n    {}\n    {}", stream.isStdin() ? "(standard input)" :
+                    stream.getCommand(), targets.get(i).storage_.describe(keys.get(i)));
+        }
+        if(dryRun_)
+            return true;
+        boolean completed = false;
+        boolean[] done;
+        try {
+            KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8),
+                    KeyData.class);
+            stdinRead_ |= stream.isStdin();
+            try (CpuLimit.Copy copy = workers_.getCpuLimit().start(); InputStream in = copy.reading(stream.open())) {
+                done = encrypt(copy, in, stream.getName(), -1L, targets, keys, key, null);
+                completed = true;
+            } finally {
+                stream.finish(completed);
+            }
+        } catch(IOException e) {
+            log_.error("Failed to backup stream source:\n    {}!", stream.getName());
+            log_.catching(Level.DEBUG, e);
+            return false;
+        }
+        boolean ok = true;
+        for(int i = 0; i < targets.size(); i++) {
+            if(done[i]) {
+                entries.get(i).updateAfterStreamed(stream.getSize(), stream.getHash());
+                entries.get(i).setVersion(versions.get(i));
+            } else
+                ok = false;
+        }
+        log_.debug("Stream source '{}' was {} bytes, SHA-256 {}", stream.getName(), stream.getSize(),
+                stream.getHash());
+        return ok;
+    }
+
+    // A changed file is stored as a new version so the snapshots of earlier runs keep the version they reference...
+    private boolean[] backupEntry(List<Target> targets, List<BackupIndexEntry> entries, File keyFile,
+                                  String fingerprint) {
+        List<String> keys = new ArrayList<>();
+        List<Integer> versions = new ArrayList<>();
+        for(int i = 0; i < targets.size(); i++) {
+            BackupIndexEntry entry = entries.get(i);
+            versions.add(entry.isNew() ? entry.getVersion() : entry.getVersion() + 1);
+            keys.add(targets.get(i).index_.blobKey(entry, versions.get(i)));
+        }
+        File src = entries.get(0).getFile();
+        byte[] inline = (src.length() < inlineThreshold_) ? inlineFile(src, keyFile) : null;
+        boolean[] done = new boolean[targets.size()];
+        if(inline != null)
+            Arrays.fill(done, inline.length > 0 || dryRun_);
+        else
+            done = copyFile(src, targets, keys, keyFile);
+        for(int i = 0; i < targets.size(); i++) {
+            if(done[i]) {
+                entries.get(i).setVersion(versions.get(i));
+                entries.get(i).setInline(dryRun_ ? null : inline); // Null again for a file that outgrew it.
+                entries.get(i).setFingerprint(fingerprint);
             }
         }
+        return done;
     }
 
-    private boolean backupEntry(File folder, BackupIndexEntry entry, File keyFile) throws IOException {
-        File target = new File(folder, entry.getId() + "." + extension_);
-        return copyFile(entry.getFile(), target, keyFile);
+    // A small file is compressed and encrypted into its index entries, one for every destination, saving a file
+    // create (and its padding and inode) per file. Null when the file grew past the threshold since the scan, empty
+    // when it failed...
+    private byte[] inlineFile(File src, File keyFile) {
+        if(journal_.logEach())
+            log_.info("Backing up into the index:\n    {}", src);
+        try (CpuLimit.Copy copy = workers_.getCpuLimit().start()) {
+            KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8),
+                    KeyData.class);
+            byte[] data;
+            try (InputStream in = copy.reading(new FileInputStream(src))) {
+                data = in.readNBytes(inlineThreshold_);
+                if(in.read() >= 0)
+                    return null;
+            }
+            if(dryRun_)
+                return new byte[0];
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream(data.length + INLINE_OVERHEAD);
+            Copier.encrypt(new ByteArrayInputStream(data), src.getName(), data.length, encrypted, key, compression_,
+                    dictionary_);
+            return encrypted.toByteArray();
+        } catch(IOException e) {
+            log_.error("Failed to backup file:\n    {}!", src);
+            log_.catching(Level.DEBUG, e);
+            return new byte[0];
+        }
     }
 
-    private boolean copyFile(File src, File target, File keyFile) {
-        log_.info("Backing up:\n    {}\n    {}", src, target);
+    private boolean[] copyFile(File src, List<Target> targets, List<String> keys, File keyFile) {
+        boolean[] done = new boolean[targets.size()];
+        if(journal_.logEach())
+            for(int i = 0; i < targets.size(); i++)
+                log_.info("Backing up:\n    {}\n    {}", src, targets.get(i).storage_.describe(keys.get(i)));
         try {
             KeyData key = null;
             if(keyFile != null)
                 key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
-            if(!dryRun_)
-                Copier.copyFile(src, target, key, Copier.Direction.Encryption);
-            return true;
+            if(!dryRun_) {
+                try (CpuLimit.Copy copy = workers_.getCpuLimit().start();
+                     InputStream in = copy.reading(new FileInputStream(src))) {
+                    return encrypt(copy, in, src.getName(), src.length(), targets, keys, key, dictionary_);
+                }
+            }
+            Arrays.fill(done, true);
         } catch(IOException e) {
             log_.error("Failed to backup file:\n    {}!", src);
             log_.catching(Level.DEBUG, e);
-            return false;
         }
+        return done;
+    }
+
+    // The data is compressed and encrypted once and the result is teed to every destination (they share the set's
+    // key); a destination that fails does not stop the others. Waiting on the destinations does not count against
+    // the copy's CPU limit...
+    private boolean[] encrypt(CpuLimit.Copy copy, InputStream in, String name, long length, List<Target> targets,
+                              List<String> keys, KeyData key, CompressionDictionary dictionary) throws IOException {
+        boolean[] done = new boolean[targets.size()];
+        if(targets.size() == 1) {
+            OutputStream out = targets.get(0).storage_.put(keys.get(0));
+            Copier.encrypt(abortOnFailure(in, out), name, length, copy.writing(out), key, compression_, dictionary);
+            done[0] = true;
+            return done;
+        }
+        List<OutputStream> outputs = new ArrayList<>();
+        List<Integer> opened = new ArrayList<>();
+        for(int i = 0; i < targets.size(); i++) {
+            try {
+                outputs.add(targets.get(i).storage_.put(keys.get(i)));
+                opened.add(i);
+            } catch(IOException e) {
+                log_.error("Failed to write:\n    {}!", targets.get(i).storage_.describe(keys.get(i)));
+                log_.catching(Level.DEBUG, e);
+            }
+        }
+        if(outputs.isEmpty())
+            throw new IOException("No destination could be written!");
+        TeeOutputStream tee = new TeeOutputStream(outputs);
+        Copier.encrypt(abortOnFailure(in, tee), name, length, copy.writing(tee), key, compression_, dictionary);
+        for(int i = 0; i < opened.size(); i++) {
+            int target = opened.get(i);
+            IOException error = tee.getError(i);
+            if(error == null)
+                done[target] = true;
+            else {
+                log_.error("Failed to write:\n    {}!", targets.get(target).storage_.describe(keys.get(target)));
+                log_.catching(Level.DEBUG, error);
+            }
+        }
+        return done;
+    }
+
+    // Copier.encrypt() still closes (and so would store) the destination when reading the source fails part way, so
+    // the failure aborts it first...
+    private static InputStream abortOnFailure(InputStream in, OutputStream out) {
+        return new FilterInputStream(in) {
+            @Override public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch(IOException | RuntimeException e) {
+                    abort(out);
+                    throw e;
+                }
+            }
+
+            @Override public int read(byte[] bytes, int off, int len) throws IOException {
+                try {
+                    return super.read(bytes, off, len);
+                } catch(IOException | RuntimeException e) {
+                    abort(out);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private static void abort(OutputStream out) {
+        if(out instanceof StorageBackend.Abortable abortable)
+            abortable.abort();
+    }
+
+    // One destination of the set with its own index; the first is the set's destination, the rest its mirrors...
+    private static final class Target {
+        Target(StorageBackend storage, BackupIndex index) {
+            storage_ = storage;
+            index_ = index;
+        }
+
+        final StorageBackend storage_;
+        final BackupIndex index_;
+        final Map<String,List<BackupIndexEntry>> hardLinks_ = new HashMap<>();
+    }
+
+    // The defaults depend on the kind of threads...
+    private int maxWorkers() {
+        return (maxWorkers_ != null) ? maxWorkers_ : virtualThreads_ ? 1024 : 8;
+    }
+
+    private int minWorkers() {
+        return (minWorkers_ != null) ? minWorkers_ : Math.min(virtualThreads_ ? 64 : 1, maxWorkers());
     }
 
     private Gson newGson() {
@@ -178,16 +1133,76 @@ public class DoBackup implements Callable<Integer> {
     @CommandLine.Option(names = {"--dry-run"}, description = "Attempt everything except the actual backup of files.")
     private boolean dryRun_ = false; // Assigned by picocli dynamically...
 
+    @CommandLine.Option(names = {"--low-memory"}, description = "Stream each index shard against a sorted walk of " +
+            "its folder instead of loading the whole index; an index too large for the heap can still be backed up.")
+    private boolean lowMemory_ = false; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--schedule"}, description = "Order the changed files are backed up in: " +
+            "largest-first (default), smallest-first, newest-first or path (index order). With --low-memory only " +
+            "path applies.", paramLabel = "policy")
+    private String scheduleName_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--detect-changes"}, description = "How a backed up file is found changed: time " +
+            "(modification time and size, default), ctime (also inode and change time, catches edits that restore " +
+            "the modification time) or fingerprint (as ctime, but a file of the same size is only copied when a " +
+            "fingerprint of sampled blocks differs).", paramLabel = "mode")
+    private String detectionName_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--max-duration"}, description = "Stop starting new copies after this long (e.g. " +
+            "4h, 90m or PT4H), finish the running ones and save the index; the next run backs up what was left " +
+            "first.", paramLabel = "duration")
+    private String maxDuration_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--deadline"}, description = "Like --max-duration but at a time: a time of day " +
+            "(05:00, the next one) or a date and time.", paramLabel = "time")
+    private String deadlineText_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--journal"}, description = "Append a line of JSON per file (action, path, bytes, " +
+            "time taken and result) to this file; the log then only samples the files.", paramLabel = "file")
+    private File journalFile_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--min-workers"}, description = "Files backed up at once to start with and at " +
+            "least (default: 1, 64 with --virtual-threads).", paramLabel = "count")
+    private Integer minWorkers_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--max-workers"}, description = "Files backed up at once at most (default: 8, 1024 " +
+            "with --virtual-threads); the number in between follows the measured throughput.", paramLabel = "count")
+    private Integer maxWorkers_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--virtual-threads"}, description = "Copy each file on a virtual thread, with " +
+            "compression and encryption held to one file per processor; for destinations with high latency (NFS, " +
+            "SMB, ...) where many copies must be in flight.")
+    private boolean virtualThreads_ = false; // Assigned by picocli dynamically...
+
     @CommandLine.Parameters(paramLabel="backup_set_files", description = "Backup set file(s) used to run backup(s).",
             arity = "1..*")
     List<File> setFiles_;
 
     private final Logger log_ = LogManager.getRootLogger();
-    private int backupedFiles_ = 0;
+    private final AtomicInteger backupedFiles_ = new AtomicInteger(); // Counted by the workers.
     private int newFiles_ = 0;
     private int skippedFiles_ = 0;
     private int totalFiles_ = 0;
-    private int erroredFiles_ = 0;
+    private final AtomicInteger erroredFiles_ = new AtomicInteger(); // Counted by the workers too.
     private int deletedFiles_ = 0;
-    private String extension_ = "aes";
+    private int excludedPaths_ = 0;
+    private int linkedFiles_ = 0;
+    private boolean unixAttributes_ = true;
+    private boolean stdinRead_ = false;
+    private WorkerPool workers_ = null;
+    private final Devices devices_ = new Devices();
+    private Schedule schedule_ = Schedule.LargestFirst;
+    private ChangeDetection detection_ = ChangeDetection.Time;
+    private final AtomicInteger sameContentFiles_ = new AtomicInteger(); // Counted by the workers.
+    private AuditJournal journal_ = null;
+    private int inlineThreshold_ = 0;
+    private long deadline_ = Long.MAX_VALUE;
+    private boolean deadlineReached_ = false;
+    private int deferredFiles_ = 0;
+    private Copier.Compression compression_ = Copier.Compression.Adaptive;
+    private CompressionDictionary dictionary_ = null;
+
+    private static final int DICTIONARY_SAMPLES = 2000;
+    private static final int MERGE_WINDOW = 256;
+    private static final int INLINE_OVERHEAD = 64; // Blob header, IV and padding.
 }
@@ -0,0 +1,166 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.storage.StorageBackend;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "do-diff", description = "List the files added (A), modified (M) and removed (D) " +
+        "between two index snapshots of a backup set (by default the last two).", mixinStandardHelpOptions = true)
+public class DoDiff implements Callable<Integer> {
+    @Override
+    public Integer call() throws Exception {
+        try {
+            EntryFilter filter = new EntryFilter(prefixes_, minSize_, maxSize_, newerThan_, olderThan_);
+            Long from = (from_ == null) ? null : EntryFilter.parseTime(from_);
+            Long to = (to_ == null) ? null : EntryFilter.parseTime(to_);
+            if(!setFile_.exists())
+                throw new IllegalArgumentException("Command line specified a missing backup set!");
+            BackupSet set = newGson().fromJson(Files.readString(setFile_.toPath(), StandardCharsets.UTF_8),
+                    BackupSet.class);
+            try (StorageBackend storage = set.openStorage()) {
+                BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, true);
+                BackupIndex current = factory.loadOnly(set.getKeyFile());
+                if(to != null)
+                    current = factory.loadAsOf(current, to, set.getKeyFile());
+                if(current == null) {
+                    log_.error("Backup set '{}' has no index snapshot that old!", set.getName());
+                    return 3;
+                }
+                BackupIndex previous = (from == null) ? factory.loadPrevious(current, current, set.getKeyFile()) :
+                        factory.loadAsOf(current, from, set.getKeyFile());
+                if(previous == null)
+                    log_.warn("Backup set '{}' has no earlier index snapshot; every file is new.", set.getName());
+                diff(previous, current, filter);
+            }
+            return 0;
+        } catch(IllegalArgumentException e) {
+            log_.error(e.getMessage());
+            return 2;
+        } catch(IOException e) {
+            log_.fatal("Diff failed!");
+            log_.catching(Level.DEBUG, e);
+            return 3;
+        }
+    }
+
+    // Both snapshots keep every entry in the same shard and each shard in path order, so a merge of the two
+    // readers per shard finds every difference in one pass. Shards not rewritten between the snapshots are shared
+    // by both and skipped without being read. A file removed from the source keeps its entry, marked deleted...
+    private void diff(BackupIndex previous, BackupIndex current, EntryFilter filter) throws IOException {
+        Set<String> folders = new TreeSet<>(BackupIndex.PATH_ORDER);
+        folders.addAll(current.shardFolders());
+        if(previous != null)
+            folders.addAll(previous.shardFolders());
+        for(String folder: folders) {
+            if(!filter.acceptsShard(folder) || (previous != null && current.sameShard(previous, folder)))
+                continue;
+            try (BackupIndex.ShardReader before = (previous == null) ? null : previous.openShardReader(folder);
+                 BackupIndex.ShardReader after = current.openShardReader(folder)) {
+                Map.Entry<String,BackupIndexEntry> old = (before == null) ? null : before.next();
+                Map.Entry<String,BackupIndexEntry> now = after.next();
+                while(old != null || now != null) {
+                    int order = (old == null) ? 1 : (now == null) ? -1 :
+                            BackupIndex.PATH_ORDER.compare(old.getKey(), now.getKey());
+                    if(order < 0) {
+                        if(!old.getValue().isDeleted())
+                            report('D', old, filter);
+                        old = before.next();
+                    } else if(order > 0) {
+                        if(!now.getValue().isDeleted())
+                            report('A', now, filter);
+                        now = after.next();
+                    } else {
+                        boolean wasDeleted = old.getValue().isDeleted();
+                        boolean isDeleted = now.getValue().isDeleted();
+                        if(wasDeleted != isDeleted)
+                            report(isDeleted ? 'D' : 'A', isDeleted ? old : now, filter);
+                        else if(!isDeleted && modified(old.getValue(), now.getValue()))
+                            report('M', now, filter);
+                        old = before.next();
+                        now = after.next();
+                    }
+                }
+            }
+        }
+        log_.info("Added {}, modified {} and removed {} files.", added_, modified_, removed_);
+    }
+
+    private static boolean modified(BackupIndexEntry before, BackupIndexEntry after) {
+        return before.getVersion() != after.getVersion() || before.getLastSize() != after.getLastSize() ||
+                before.getLastModifiedTs() != after.getLastModifiedTs() ||
+                !Objects.equals(before.getLinkTo(), after.getLinkTo());
+    }
+
+    private void report(char change, Map.Entry<String,BackupIndexEntry> entry, EntryFilter filter) {
+        if(!filter.accepts(entry.getKey(), entry.getValue()))
+            return;
+        System.out.println(change + " " + DoQuery.format(entry.getKey(), entry.getValue()));
+        switch(change) {
+            case 'A' -> added_ += 1;
+            case 'M' -> modified_ += 1;
+            default -> removed_ += 1;
+        }
+    }
+
+    private Gson newGson() {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
+        return builder.create();
+    }
+
+    @CommandLine.Option(names = {"--prefix"}, description = "Only compare backed up files under this folder " +
+            "(repeatable).", paramLabel = "folder")
+    private List<File> prefixes_ = new ArrayList<>(); // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--min-size"}, description = "Only list files at least this large (e.g. 1G).",
+            paramLabel = "size")
+    private String minSize_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--max-size"}, description = "Only list files at most this large (e.g. 512K).",
+            paramLabel = "size")
+    private String maxSize_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--newer-than"}, description = "Only list files modified at or after this date or " +
+            "time (e.g. 2021-06-01 or 2021-06-01T18:00).", paramLabel = "time")
+    private String newerThan_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--older-than"}, description = "Only list files modified before this date or time.",
+            paramLabel = "time")
+    private String olderThan_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--from"}, description = "Compare from the snapshot of the last backup at or " +
+            "before this date or time (default: the snapshot before the --to one).", paramLabel = "time")
+    private String from_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--to"}, description = "Compare to the snapshot of the last backup at or before " +
+            "this date or time (default: the current index).", paramLabel = "time")
+    private String to_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Parameters(paramLabel="backup_set_file", description = "Backup set file to compare.", arity = "1")
+    File setFile_;
+
+    private final Logger log_ = LogManager.getRootLogger();
+    private int added_ = 0;
+    private int modified_ = 0;
+    private int removed_ = 0;
+}
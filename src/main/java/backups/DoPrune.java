@@ -0,0 +1,261 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.storage.StorageBackend;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "do-prune", description = "Remove the index snapshots a backup set's retention policy " +
+        "no longer keeps and the encrypted file versions and index shards only they referenced.",
+        mixinStandardHelpOptions = true)
+public class DoPrune implements Callable<Integer> {
+    @Override
+    public Integer call() throws Exception {
+        long start = Instant.now().getEpochSecond();
+        try {
+            if((keepSnapshots_ != null && keepSnapshots_ < 0) || (keepDays_ != null && keepDays_ < 0))
+                throw new IllegalArgumentException("Retention counts cannot be negative!");
+            for (int i = 0; i < setFiles_.size(); i++) {
+                File setFile = setFiles_.get(i);
+                if(!setFile.exists())
+                    throw new IllegalArgumentException("Command line specified a missing backup set!");
+                setFiles_.set(i, setFile.getAbsoluteFile());
+            }
+            int rv = 0;
+            for(File setFile: setFiles_) {
+                if(!pruneSet(setFile)) {
+                    rv = 3;
+                    log_.warn("*** Finished pruning set with error: {}", setFile.getCanonicalPath());
+                } else
+                    log_.info("*** Finished pruning set OK: {}", setFile.getCanonicalPath());
+            }
+            printReport(Instant.now().getEpochSecond() - start);
+            return rv;
+        } catch(IllegalArgumentException e) {
+            log_.error(e.getMessage());
+            return 2;
+        }
+    }
+
+    // Every destination keeps its own index and snapshots, so each one is pruned on its own; a mirror that cannot
+    // be opened is skipped and pruned by a later run...
+    private boolean pruneSet(File setFile) {
+        try {
+            BackupSet set = newGson().fromJson(Files.readString(setFile.toPath(), StandardCharsets.UTF_8),
+                    BackupSet.class);
+            System.out.println("\n==========================================================================================");
+            System.out.printf("====  %s  ====\n", set.getName());
+            boolean ok = true;
+            for(String destination: set.getDestinations()) {
+                int removedSnapshots = removedSnapshots_;
+                int droppedFiles = droppedFiles_;
+                int deletedFiles = deletedFiles_;
+                int deletedShards = deletedShards_;
+                System.out.printf("---- %s\n", destination);
+                try (StorageBackend storage = set.openStorage(destination)) {
+                    pruneDestination(set, storage);
+                } catch(IOException e) {
+                    log_.error("Failed to prune destination:\n    {}!", destination);
+                    log_.catching(Level.DEBUG, e);
+                    ok = false;
+                    continue;
+                }
+                System.out.printf("Removed %d snapshots, %d deleted files, %d file versions and %d index shards.\n",
+                        removedSnapshots_ - removedSnapshots, droppedFiles_ - droppedFiles,
+                        deletedFiles_ - deletedFiles, deletedShards_ - deletedShards);
+            }
+            return ok;
+        } catch(IOException e) {
+            log_.fatal("Prune failed!");
+            log_.catching(Level.DEBUG, e);
+            return false;
+        }
+    }
+
+    // Snapshot manifests go first so an interrupted prune never leaves a snapshot whose files are gone; what they
+    // referenced is only deleted once no kept snapshot (or the current index) references it...
+    private void pruneDestination(BackupSet set, StorageBackend storage) throws IOException {
+        int keepSnapshots = (keepSnapshots_ == null) ? set.getKeepSnapshots() : keepSnapshots_;
+        int keepDays = (keepDays_ == null) ? set.getKeepDays() : keepDays_;
+        BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, dryRun_);
+        BackupIndex current = factory.loadOnly(set.getKeyFile());
+        List<Long> generations = factory.listSnapshots();
+        long oldest = System.currentTimeMillis() - keepDays * 86_400_000L;
+        List<BackupIndex> kept = new ArrayList<>();
+        for(int i = 0; i < generations.size(); i++) {
+            long generation = generations.get(i);
+            boolean keep = generation == current.getGeneration() || (keepSnapshots == 0 && keepDays == 0) ||
+                    (keepSnapshots > 0 && i >= generations.size() - keepSnapshots) ||
+                    (keepDays > 0 && generation >= oldest);
+            System.out.printf("%s  %s\n", keep ? "keep  " : "remove",
+                    Instant.ofEpochMilli(generation).truncatedTo(ChronoUnit.SECONDS));
+            if(keep) {
+                if(generation != current.getGeneration())
+                    kept.add(factory.loadSnapshot(current, generation, set.getKeyFile()));
+            } else {
+                delete(storage, BackupIndex.snapshotKey(set.getIndexKey(), generation));
+                removedSnapshots_ += 1;
+            }
+        }
+        long generation = current.getGeneration();
+        if(dropDeleted(current, kept) && !dryRun_) {
+            // The new snapshot only lacks files that were already gone, so it replaces the one it was made from...
+            current.saveIndex(storage, set.getIndexKey(), set.getKeyFile());
+            if(generations.contains(generation) && generation != current.getGeneration())
+                delete(storage, BackupIndex.snapshotKey(set.getIndexKey(), generation));
+        }
+        Set<String> liveShards = new HashSet<>();
+        Set<String> liveBlobs = new HashSet<>();
+        addLive(current, liveShards, liveBlobs);
+        for(BackupIndex snapshot: kept)
+            addLive(snapshot, liveShards, liveBlobs);
+        String extension = "." + ((current.getExtension() == null) ? set.getExtension() : current.getExtension());
+        for(String key: storage.list("")) {
+            if(key.startsWith(set.getIndexKey() + ".d/")) {
+                if(!liveShards.contains(key)) {
+                    delete(storage, key);
+                    deletedShards_ += 1;
+                }
+            } else if(key.endsWith(StorageBackend.PARTIAL)) {
+                delete(storage, key); // Left by a backup that was killed while writing it.
+            } else if(key.endsWith(extension) && !key.startsWith(set.getIndexKey()) && !liveBlobs.contains(key)) {
+                delete(storage, key);
+                deletedFiles_ += 1;
+            }
+        }
+    }
+
+    // Files gone from the source stay in the index until no kept snapshot has them any more; then their entries are
+    // dropped so the sweep can reclaim their versions. A deleted file a present hard link still points to stays...
+    private boolean dropDeleted(BackupIndex current, List<BackupIndex> kept) throws IOException {
+        Set<String> linkedTo = new HashSet<>();
+        List<String> folders = new ArrayList<>();
+        for(String folder: current.shardFolders()) {
+            boolean hasDeleted = false;
+            try (BackupIndex.ShardReader reader = current.openShardReader(folder)) {
+                for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next()) {
+                    if(entry.getValue().isDeleted())
+                        hasDeleted = true;
+                    else if(entry.getValue().isLink())
+                        linkedTo.add(entry.getValue().getLinkTo());
+                }
+            }
+            if(hasDeleted)
+                folders.add(folder);
+        }
+        boolean changed = false;
+        for(String folder: folders) {
+            Set<String> gone = new HashSet<>();
+            try (BackupIndex.ShardReader reader = current.openShardReader(folder)) {
+                for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next())
+                    if(entry.getValue().isDeleted() && !linkedTo.contains(entry.getKey()))
+                        gone.add(entry.getKey());
+            }
+            for(BackupIndex snapshot: kept) {
+                if(gone.isEmpty() || snapshot.sameShard(current, folder))
+                    continue; // The same entries, so deleted there too.
+                try (BackupIndex.ShardReader reader = snapshot.openShardReader(folder)) {
+                    for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null;
+                            entry = reader.next())
+                        if(!entry.getValue().isDeleted())
+                            gone.remove(entry.getKey());
+                }
+            }
+            if(gone.isEmpty())
+                continue;
+            droppedFiles_ += gone.size();
+            changed = true;
+            if(dryRun_)
+                continue;
+            try (BackupIndex.ShardReader reader = current.openShardReader(folder);
+                 BackupIndex.ShardWriter writer = current.openShardWriter(folder)) {
+                for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next())
+                    if(!gone.contains(entry.getKey()))
+                        writer.add(entry.getKey(), entry.getValue());
+                writer.commit();
+            }
+        }
+        return changed;
+    }
+
+    // Shards shared by several snapshots are only read once...
+    private void addLive(BackupIndex snapshot, Set<String> liveShards, Set<String> liveBlobs) throws IOException {
+        for(String folder: snapshot.shardFolders()) {
+            String key = snapshot.storedShardKey(folder);
+            if(key != null && !liveShards.add(key))
+                continue;
+            try (BackupIndex.ShardReader reader = snapshot.openShardReader(folder)) {
+                for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next())
+                    if(!entry.getValue().isLink() && entry.getValue().getInline() == null) // No file of their own.
+                        liveBlobs.add(snapshot.blobKey(entry.getValue()));
+            }
+        }
+    }
+
+    private void delete(StorageBackend storage, String key) throws IOException {
+        log_.debug("Deleting:\n    {}", storage.describe(key));
+        if(!dryRun_)
+            storage.delete(key);
+    }
+
+    private void printReport(long seconds) {
+        System.out.println();
+        if(dryRun_)
+            System.out.println("*** DRY RUN ONLY");
+        System.out.print ("+----------------------------------------+\n");
+        System.out.printf("| Removed snapshots:        %12d |\n", removedSnapshots_);
+        System.out.printf("| Dropped deleted files:    %12d |\n", droppedFiles_);
+        System.out.printf("| Deleted file versions:    %12d |\n", deletedFiles_);
+        System.out.printf("| Deleted index shards:     %12d |\n", deletedShards_);
+        System.out.print ("+----------------------------------------+\n");
+        System.out.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
+        System.out.print ("+----------------------------------------+\n");
+    }
+
+    private Gson newGson() {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
+        return builder.create();
+    }
+
+    @CommandLine.Option(names = {"--dry-run"}, description = "List what would be removed without removing it.")
+    private boolean dryRun_ = false; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "count", names = {"--keep-snapshots"}, description = "Keep at least this many " +
+            "of the newest snapshots (default: the set's keep-snapshots).")
+    private Integer keepSnapshots_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "days", names = {"--keep-days"}, description = "Also keep every snapshot " +
+            "younger than this many days (default: the set's keep-days).")
+    private Integer keepDays_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Parameters(paramLabel="backup_set_files", description = "Backup set file(s) to prune.",
+            arity = "1..*")
+    List<File> setFiles_;
+
+    private final Logger log_ = LogManager.getRootLogger();
+    private int removedSnapshots_ = 0;
+    private int droppedFiles_ = 0;
+    private int deletedFiles_ = 0;
+    private int deletedShards_ = 0;
+}
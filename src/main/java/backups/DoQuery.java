@@ -0,0 +1,131 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.storage.StorageBackend;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "do-query", description = "List the backed up files of a backup set that match filters.",
+        mixinStandardHelpOptions = true)
+public class DoQuery implements Callable<Integer> {
+    @Override
+    public Integer call() throws Exception {
+        try {
+            EntryFilter filter = new EntryFilter(prefixes_, minSize_, maxSize_, newerThan_, olderThan_);
+            Long asOf = (asOf_ == null) ? null : EntryFilter.parseTime(asOf_);
+            if(!setFile_.exists())
+                throw new IllegalArgumentException("Command line specified a missing backup set!");
+            BackupSet set = newGson().fromJson(Files.readString(setFile_.toPath(), StandardCharsets.UTF_8),
+                    BackupSet.class);
+            try (StorageBackend storage = set.openStorage()) {
+                BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, true);
+                BackupIndex index = factory.loadOnly(set.getKeyFile());
+                if(asOf != null)
+                    index = factory.loadAsOf(index, asOf, set.getKeyFile());
+                if(previous_ && index != null)
+                    index = factory.loadPrevious(index, index, set.getKeyFile());
+                if(index == null) {
+                    log_.error("Backup set '{}' has no index snapshot that old!", set.getName());
+                    return 3;
+                }
+                query(index, filter);
+            }
+            return 0;
+        } catch(IllegalArgumentException e) {
+            log_.error(e.getMessage());
+            return 2;
+        } catch(IOException e) {
+            log_.fatal("Query failed!");
+            log_.catching(Level.DEBUG, e);
+            return 3;
+        }
+    }
+
+    // One shard at a time in index order, so memory does not grow with the size of the set...
+    private void query(BackupIndex index, EntryFilter filter) throws IOException {
+        int files = 0;
+        long bytes = 0L;
+        for(String folder: index.shardFolders()) {
+            if(!filter.acceptsShard(folder))
+                continue;
+            try (BackupIndex.ShardReader reader = index.openShardReader(folder)) {
+                for(Map.Entry<String,BackupIndexEntry> entry = reader.next(); entry != null; entry = reader.next()) {
+                    BackupIndexEntry found = entry.getValue();
+                    if(found.isDeleted() == deleted_ && filter.accepts(entry.getKey(), found)) {
+                        System.out.println(format(entry.getKey(), found));
+                        files += 1;
+                        bytes += found.getLastSize();
+                    }
+                }
+            }
+        }
+        log_.info("Matched {} files holding {} bytes.", files, bytes);
+    }
+
+    static String format(String path, BackupIndexEntry entry) {
+        String line = String.format("%14d  %s  %s", entry.getLastSize(),
+                Instant.ofEpochMilli(entry.getLastModifiedTs()).truncatedTo(ChronoUnit.SECONDS), path);
+        return entry.isLink() ? line + " => " + entry.getLinkTo() : line;
+    }
+
+    private Gson newGson() {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
+        return builder.create();
+    }
+
+    @CommandLine.Option(names = {"--prefix"}, description = "Only list backed up files under this folder " +
+            "(repeatable).", paramLabel = "folder")
+    private List<File> prefixes_ = new ArrayList<>(); // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--min-size"}, description = "Only list files at least this large (e.g. 1G).",
+            paramLabel = "size")
+    private String minSize_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--max-size"}, description = "Only list files at most this large (e.g. 512K).",
+            paramLabel = "size")
+    private String maxSize_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--newer-than"}, description = "Only list files modified at or after this date or " +
+            "time (e.g. 2021-06-01 or 2021-06-01T18:00).", paramLabel = "time")
+    private String newerThan_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--older-than"}, description = "Only list files modified before this date or time.",
+            paramLabel = "time")
+    private String olderThan_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--as-of"}, description = "Query the snapshot of the last backup at or before " +
+            "this date or time instead of the current index.", paramLabel = "time")
+    private String asOf_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--previous"}, description = "Query the snapshot before the current one (or " +
+            "before the --as-of one).")
+    private boolean previous_ = false; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--deleted"}, description = "List the files deleted from the source instead; " +
+            "their backed up versions can still be restored.")
+    private boolean deleted_ = false; // Assigned by picocli dynamically...
+
+    @CommandLine.Parameters(paramLabel="backup_set_file", description = "Backup set file to query.", arity = "1")
+    File setFile_;
+
+    private final Logger log_ = LogManager.getRootLogger();
+}
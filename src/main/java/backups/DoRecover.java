@@ -4,8 +4,11 @@
 //
 package backups;
 
+import com.amonson.crypto.CompressionDictionary;
 import com.amonson.crypto.Copier;
 import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
+import com.amonson.storage.StorageBackends;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.Level;
@@ -13,12 +16,22 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import picocli.CommandLine;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 
 @CommandLine.Command(name = "do-recover",
@@ -27,12 +40,32 @@ import java.util.concurrent.Callable;
 public class DoRecover implements Callable<Integer> {
     @Override
     public Integer call() throws Exception {
-        File destination = indexFile_.getParentFile();
         long start = Instant.now().getEpochSecond();
         try {
+            if((chroot_ == null) == (toTar_ == null))
+                throw new IllegalArgumentException("Either --destination or --to-tar is required (not both)!");
+            if(toTar_ != null && dryRun_)
+                throw new IllegalArgumentException("--dry-run cannot be combined with --to-tar!");
+            // The encrypted files are next to the index, locally or in the same object store prefix...
+            String location = StorageBackends.isRemote(indexFile_) ? indexFile_ :
+                    new File(indexFile_).getAbsolutePath().replace(File.separatorChar, '/');
+            int slash = location.lastIndexOf('/');
+            if(slash < 0 || slash == location.length() - 1)
+                throw new IllegalArgumentException("The index file location must name a file: " + indexFile_);
             int rv = 0;
-            if(!doRecoverFiles(indexFile_, destination))
-                rv = 3;
+            try (StorageBackend storage = StorageBackends.open(location.substring(0, slash),
+                    storageOptions_); TarExport tar = openTar()) {
+                tar_ = tar;
+                if(!doRecoverFiles(storage, location.substring(slash + 1)))
+                    rv = 3;
+                if(tar != null) {
+                    tar.finish();
+                    restoredFiles_ += tar.getExportedFiles() + tar.getLinkedFiles();
+                    erroredFiles_ += tar.getErroredFiles();
+                    if(tar.getErroredFiles() > 0)
+                        rv = 3;
+                }
+            }
             printReport(Instant.now().getEpochSecond() - start);
             return rv;
         } catch(IllegalArgumentException e) {
@@ -41,17 +74,32 @@ public class DoRecover implements Callable<Integer> {
         }
     }
 
-    private boolean doRecoverFiles(File indexFile, File destination) {
+    private boolean doRecoverFiles(StorageBackend storage, String indexKey) {
         try {
-            BackupIndex index = loadIndexFile(indexFile, keyFile_);
-            String extension = getExtensionFromIndex(index);
-            log_.info("Starting to recover files from index file: {}", indexFile);
-            for(BackupIndexEntry entry: index) {
-                File src = new File(destination, entry.getId() + "." + extension);
+            BackupIndex index = loadIndexFile(storage, indexKey, keyFile_);
+            if(index.getExtension() == null)
+                index.setExtension(extension_);
+            dictionary_ = loadDictionary(storage, indexKey, keyFile_);
+            log_.info("Starting to recover files from index file: {}", storage.describe(indexKey));
+            List<BackupIndexEntry> entries = selectEntries(index);
+            if(tar_ != null) {
+                KeyData key = newGson().fromJson(Files.readString(keyFile_.toPath(), StandardCharsets.UTF_8),
+                        KeyData.class);
+                tar_.export(storage, index, entries, key, dictionary_);
+                return true;
+            }
+            List<BackupIndexEntry> links = new ArrayList<>();
+            for(BackupIndexEntry entry: entries) {
+                if(entry.isLink()) {
+                    links.add(entry); // After the files they link to are recovered...
+                    continue;
+                }
                 File target = new File(chroot_, entry.getFile().toString());
                 log_.debug("*** Destination Location: {}", target);
-                copyFile(src, target, keyFile_);
+                copyFile(storage, index, entry, target, keyFile_);
             }
+            for(BackupIndexEntry entry: links)
+                recoverLink(storage, index, entry, keyFile_);
         } catch(IOException e) {
             log_.fatal("Restore failed!");
             return false;
@@ -59,30 +107,86 @@ public class DoRecover implements Callable<Integer> {
         return true;
     }
 
-    private String getExtensionFromIndex(BackupIndex index) {
-        String filename = index.filenameIterator().next();
-        return filename.substring(filename.lastIndexOf('.') + 1);
+    private List<BackupIndexEntry> selectEntries(BackupIndex index) throws IOException {
+        if(prefixes_.isEmpty())
+            return index.entries();
+        Set<BackupIndexEntry> entries = new LinkedHashSet<>(); // Prefixes may overlap.
+        for(File prefix: prefixes_)
+            entries.addAll(index.entriesUnder(prefix));
+        return new ArrayList<>(entries);
     }
 
-    private BackupIndex loadIndexFile(File indexFile, File keyFile) throws IOException {
+    // The archive goes to stdout for "-", then the report goes to stderr with the log...
+    private TarExport openTar() throws IOException {
+        if(toTar_ == null)
+            return null;
+        OutputStream out;
+        if("-".equals(toTar_)) {
+            report_ = System.err;
+            out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), TAR_BUFFER_SIZE);
+        } else
+            out = new BufferedOutputStream(new FileOutputStream(toTar_), TAR_BUFFER_SIZE);
+        return new TarExport(out, tarThreads_, AuditJournal.open(null)); // No journal when recovering.
+    }
+
+    // The dictionary (if the set uses one) sits next to the index as "<set>.dict"...
+    private CompressionDictionary loadDictionary(StorageBackend storage, String indexKey, File keyFile)
+            throws IOException {
+        String name = indexKey;
+        if(name.endsWith(".index"))
+            name = name.substring(0, name.length() - ".index".length());
+        if(!storage.exists(name + ".dict"))
+            return null;
         KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
-        String json = Copier.readStringDecrypted(indexFile, key);
-        return newGson().fromJson(json, BackupIndex.class);
+        return CompressionDictionary.load(storage.get(name + ".dict"), key);
+    }
+
+    private BackupIndex loadIndexFile(StorageBackend storage, String indexKey, File keyFile) throws IOException {
+        KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
+        String json = Copier.readStringDecrypted(storage.get(indexKey), key);
+        BackupIndex index = newGson().fromJson(json, BackupIndex.class);
+        index.attach(storage, indexKey, key);
+        return index;
     }
 
     private void printReport(long seconds) {
-        System.out.println();
+        report_.println();
         if(dryRun_)
-            System.out.println("*** DRY RUN ONLY");
-        System.out.print ("+----------------------------------------+\n");
-        System.out.printf("| Restored files:           %12d |\n", restoredFiles_);
-        System.out.printf("| Errored files:            %12d |\n", erroredFiles_);
-        System.out.print ("+----------------------------------------+\n");
-        System.out.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
-        System.out.print ("+----------------------------------------+\n");
+            report_.println("*** DRY RUN ONLY");
+        report_.print ("+----------------------------------------+\n");
+        report_.printf("| Restored files:           %12d |\n", restoredFiles_);
+        report_.printf("| Errored files:            %12d |\n", erroredFiles_);
+        report_.print ("+----------------------------------------+\n");
+        report_.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
+        report_.print ("+----------------------------------------+\n");
+    }
+
+    private void recoverLink(StorageBackend storage, BackupIndex index, BackupIndexEntry entry, File keyFile)
+            throws IOException {
+        File target = new File(chroot_, entry.getFile().toString());
+        File linked = new File(chroot_, entry.getLinkTo());
+        log_.info("Recovering hard link:\n    {}\n    {}", linked, target);
+        if(!dryRun_) {
+            try {
+                target.getParentFile().mkdirs();
+                Files.deleteIfExists(target.toPath());
+                Files.createLink(target.toPath(), linked.toPath());
+            } catch(UnsupportedOperationException | SecurityException | IOException e) {
+                BackupIndexEntry primary = index.getEntry(entry.getLinkTo());
+                if(primary == null) {
+                    log_.error("Hard link to a file missing from the index:\n    {}!", target);
+                    erroredFiles_ += 1;
+                } else
+                    copyFile(storage, index, primary, target, keyFile);
+                return;
+            }
+        }
+        restoredFiles_ += 1;
     }
 
-    private void copyFile(File src, File target, File keyFile) {
+    private void copyFile(StorageBackend storage, BackupIndex index, BackupIndexEntry entry, File target,
+                          File keyFile) {
+        String src = index.describeBlob(storage, entry);
         log_.info("Recovering file:\n    {}\n    {}", src, target);
         try {
             KeyData key = null;
@@ -90,7 +194,9 @@ public class DoRecover implements Callable<Integer> {
                 key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
             if(!dryRun_) {
                 target.getParentFile().mkdirs();
-                Copier.copyFile(src, target, key, Copier.Direction.Decryption);
+                try (OutputStream out = new FileOutputStream(target)) {
+                    Copier.decrypt(index.openBlob(storage, entry), out, key, dictionary_);
+                }
             }
             restoredFiles_ += 1;
         } catch(SecurityException | IOException e) {
@@ -111,19 +217,44 @@ public class DoRecover implements Callable<Integer> {
     @CommandLine.Option(names = {"--dry-run"},
             description = "Attempt everything except the actual file recovery of files.")
     private boolean dryRun_ = false; // Assigned by picocli dynamically...
-    @CommandLine.Option(names = {"--destination"}, description = "(Required) Where to store the recovered file tree.",
-            required = true, paramLabel = "destination_folder")
-    private File chroot_ = new File(File.separator); // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--destination"}, description = "Where to store the recovered file tree (or use " +
+            "--to-tar).", paramLabel = "destination_folder")
+    private File chroot_ = null; // Assigned by picocli dynamically...
     @CommandLine.Option(names = {"--key-file"},
             description = "(Required) Key file to use to decrypt the files to recover.", required = true,
             paramLabel = "key_file")
     private File keyFile_ = new File("."); // Assigned by picocli dynamically...
 
-    @CommandLine.Parameters(paramLabel="index_file",
-            description ="Index file to use for recovering the backed-up files.", arity = "1")
-    File indexFile_;
+    @CommandLine.Option(names = {"--extension"}, description = "Encrypted filename extension for index files " +
+            "that do not record it (default: aes).", paramLabel = "extension")
+    private String extension_ = "aes"; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(paramLabel = "option=value", names = {"-o", "--storage-option"}, description = "Storage " +
+            "option for an s3:// index (repeatable, as for create-backup-set).")
+    private Map<String,String> storageOptions_ = new TreeMap<>(); // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--prefix"}, description = "Only recover the backed up files under this folder " +
+            "(repeatable).", paramLabel = "folder")
+    private List<File> prefixes_ = new ArrayList<>(); // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--to-tar"}, description = "Write the files into a tar archive ('-' for stdout) " +
+            "instead of a destination folder.", paramLabel = "file")
+    private String toTar_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--tar-threads"}, description = "Files fetched and decrypted ahead of the tar " +
+            "archive writer at once (default: 4).", paramLabel = "count")
+    private int tarThreads_ = 4; // Assigned by picocli dynamically...
+
+    @CommandLine.Parameters(paramLabel="index_file", description ="Index file (or s3://bucket/prefix/set.index " +
+            "object) to use for recovering the backed-up files.", arity = "1")
+    String indexFile_;
 
     private final Logger log_ = LogManager.getRootLogger();
     private int restoredFiles_ = 0;
     private int erroredFiles_ = 0;
+    private CompressionDictionary dictionary_ = null;
+    private TarExport tar_ = null;
+    private PrintStream report_ = System.out;
+
+    private static final int TAR_BUFFER_SIZE = 1024 * 1024;
 }
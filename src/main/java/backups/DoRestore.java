@@ -4,8 +4,10 @@
 //
 package backups;
 
+import com.amonson.crypto.CompressionDictionary;
 import com.amonson.crypto.Copier;
 import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.Level;
@@ -13,13 +15,22 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import picocli.CommandLine;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @CommandLine.Command(name = "do-restore", description = "Restore a backup set",
         mixinStandardHelpOptions = true)
@@ -29,6 +40,10 @@ public class DoRestore implements Callable<Integer> {
         long start = Instant.now().getEpochSecond();
         chroot_ = chroot_.getAbsoluteFile();
         try {
+            if(asOf_ != null)
+                asOfTime_ = EntryFilter.parseTime(asOf_);
+            if(toTar_ != null && dryRun_)
+                throw new IllegalArgumentException("--dry-run cannot be combined with --to-tar!");
             for (int i = 0; i < setFiles_.size(); i++) {
                 File setFile = setFiles_.get(i);
                 if(!setFile.exists())
@@ -36,13 +51,29 @@ public class DoRestore implements Callable<Integer> {
                 setFiles_.set(i, setFile.getAbsoluteFile());
             }
             int rv = 0;
-            for(File setFile: setFiles_) {
-                if(!doRestoreSet(setFile)) {
-                    rv = 3;
-                    log_.warn("*** Finished restore set with error: {}", setFile.getCanonicalPath());
-                } else
-                    log_.info("*** Finished restore set OK: {}", setFile.getCanonicalPath());
+            try (AuditJournal journal = AuditJournal.open(journalFile_); TarExport tar = openTar(journal);
+                 WorkerPool workers = new WorkerPool("restore", minWorkers(), maxWorkers(), virtualThreads_)) {
+                journal_ = journal;
+                workers_ = workers;
+                tar_ = tar;
+                for(File setFile: setFiles_) {
+                    if(!doRestoreSet(setFile)) {
+                        rv = 3;
+                        log_.warn("*** Finished restore set with error: {}", setFile.getCanonicalPath());
+                    } else
+                        log_.info("*** Finished restore set OK: {}", setFile.getCanonicalPath());
+                }
+                if(tar != null) {
+                    tar.finish();
+                    restoredFiles_.addAndGet(tar.getExportedFiles());
+                    linkedFiles_ += tar.getLinkedFiles();
+                    erroredFiles_.addAndGet(tar.getErroredFiles());
+                    if(tar.getErroredFiles() > 0)
+                        rv = 3;
+                }
             }
+            if(journal_.failed())
+                rv = 3;
             printReport(Instant.now().getEpochSecond() - start);
             return rv;
         } catch(IllegalArgumentException e) {
@@ -55,22 +86,63 @@ public class DoRestore implements Callable<Integer> {
         try {
             BackupSet set = newGson().fromJson(Files.readString(setFile.toPath(), StandardCharsets.UTF_8),
                     BackupSet.class);
-            String extension = set.getExtension();
-            System.out.println("\n==========================================================================================");
-            System.out.printf("====  %s  ====\n", set.getName());
+            report_.println("\n==========================================================================================");
+            report_.printf("====  %s  ====\n", set.getName());
             log_.info("*** Starting to restore backup set: {}", setFile.getCanonicalPath());
-            BackupSetIndexFactory factory = new BackupSetIndexFactory(set, dryRun_);
-            BackupIndex index = factory.loadOnly(set.getKeyFile());
-            totalFiles_ = index.size();
-            for(BackupIndexEntry entry: index) {
-                File src = new File(set.getDestination(), entry.getId() + "." + extension);
-                File target = new File(chroot_, entry.getFile().toString());
-                log_.debug("*** Destination Location: {}", target);
-                if(force_ || checkDoCopy(src, target)) {
-                    copyFile(src, target, set.getKeyFile());
-                } else {
-                    log_.info("Skipping restoring older file:\n    {}", target);
-                    skippedFiles_ += 1;
+            try (StorageBackend storage = set.openStorage()) {
+                BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, dryRun_);
+                BackupIndex index = factory.loadOnly(set.getKeyFile());
+                if(asOfTime_ != null) {
+                    index = factory.loadAsOf(index, asOfTime_, set.getKeyFile());
+                    if(index == null) {
+                        log_.error("Backup set '{}' has no snapshot from {} or before!", set.getName(), asOf_);
+                        return false;
+                    }
+                    log_.info("Restoring the snapshot taken at {}", Instant.ofEpochMilli(index.getGeneration()));
+                }
+                dictionary_ = loadDictionary(storage, set.getDictionaryKey(), set.getKeyFile());
+                List<BackupIndexEntry> entries = selectEntries(index);
+                totalFiles_ += entries.size();
+                if(tar_ != null) {
+                    KeyData key = newGson().fromJson(Files.readString(set.getKeyFile().toPath(),
+                            StandardCharsets.UTF_8), KeyData.class);
+                    tar_.export(storage, index, entries, key, dictionary_);
+                    return true;
+                }
+                List<BackupIndexEntry> links = new ArrayList<>();
+                try {
+                    for(BackupIndexEntry entry: entries) {
+                        if(entry.isLink()) {
+                            links.add(entry); // After the files they link to are restored...
+                            continue;
+                        }
+                        File target = new File(chroot_, entry.getFile().toString());
+                        if(journal_.logEach())
+                            log_.debug("*** Destination Location: {}", target);
+                        if(force_ || checkDoCopy(entry, target)) {
+                            BackupIndex from = index;
+                            workers_.submit(entry.getLastSize(), () -> copyFile(storage, from, entry, target,
+                                    set.getKeyFile()));
+                        } else {
+                            if(journal_.logEach())
+                                log_.info("Skipping restoring older file:\n    {}", target);
+                            journal_.record("skipped", target, entry.getLastSize(), 0L, "ok");
+                            skippedFiles_ += 1;
+                        }
+                    }
+                } finally {
+                    workers_.awaitIdle();
+                }
+                for(BackupIndexEntry entry: links) {
+                    File target = new File(chroot_, entry.getFile().toString());
+                    if(force_ || checkDoCopy(entry, target))
+                        restoreLink(storage, index, entry, target, set.getKeyFile());
+                    else {
+                        if(journal_.logEach())
+                            log_.info("Skipping restoring older file:\n    {}", target);
+                        journal_.record("skipped", target, -1L, 0L, "ok");
+                        skippedFiles_ += 1;
+                    }
                 }
             }
         } catch(IOException e) {
@@ -80,40 +152,133 @@ public class DoRestore implements Callable<Integer> {
         return true;
     }
 
+    // Only the index shards that can hold the requested folders are loaded. A snapshot leaves out the files that
+    // were already gone from the source when it was taken...
+    private List<BackupIndexEntry> selectEntries(BackupIndex index) throws IOException {
+        Set<BackupIndexEntry> entries = new LinkedHashSet<>(); // Prefixes may overlap.
+        if(prefixes_.isEmpty())
+            entries.addAll(index.entries());
+        for(File prefix: prefixes_)
+            entries.addAll(index.entriesUnder(prefix));
+        if(asOfTime_ != null)
+            entries.removeIf(BackupIndexEntry::isDeleted);
+        return new ArrayList<>(entries);
+    }
+
+    // The archive goes to stdout for "-", then the report goes to stderr with the log...
+    private TarExport openTar(AuditJournal journal) throws IOException {
+        if(toTar_ == null)
+            return null;
+        OutputStream out;
+        if("-".equals(toTar_)) {
+            report_ = System.err;
+            out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), TAR_BUFFER_SIZE);
+        } else
+            out = new BufferedOutputStream(new FileOutputStream(toTar_), TAR_BUFFER_SIZE);
+        return new TarExport(out, tarThreads_, journal);
+    }
+
     private void printReport(long seconds) {
-        System.out.println();
+        report_.println();
         if(dryRun_)
-            System.out.println("*** DRY RUN ONLY");
-        System.out.print ("+----------------------------------------+\n");
-        System.out.printf("| Restored files:           %12d |\n", restoredFiles_);
-        System.out.printf("| Skipped files:            %12d |\n", skippedFiles_);
-        System.out.printf("| Errored files:            %12d |\n", erroredFiles_);
-        System.out.printf("| Total processed files:    %12d |\n", totalFiles_);
-        System.out.print ("+----------------------------------------+\n");
-        System.out.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
-        System.out.print ("+----------------------------------------+\n");
+            report_.println("*** DRY RUN ONLY");
+        report_.print ("+----------------------------------------+\n");
+        report_.printf("| Restored files:           %12d |\n", restoredFiles_.get());
+        report_.printf("| Hard linked files:        %12d |\n", linkedFiles_);
+        report_.printf("| Skipped files:            %12d |\n", skippedFiles_);
+        report_.printf("| Errored files:            %12d |\n", erroredFiles_.get());
+        report_.printf("| Total processed files:    %12d |\n", totalFiles_);
+        report_.print ("+----------------------------------------+\n");
+        report_.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
+        report_.print ("+----------------------------------------+\n");
     }
 
-    private boolean checkDoCopy(File src, File target) {
-        return !target.exists() || src.lastModified() > target.lastModified();
+    // Compare with the source's time when it was backed up; remote objects have no useful modification time...
+    // Rolling back to a snapshot replaces any file that differs from it, newer or not...
+    private boolean checkDoCopy(BackupIndexEntry entry, File target) {
+        if(asOfTime_ != null)
+            return !target.exists() || entry.getLastModifiedTs() != target.lastModified() ||
+                    entry.getLastSize() != target.length();
+        return !target.exists() || entry.getLastModifiedTs() > target.lastModified();
     }
 
-    private void copyFile(File src, File target, File keyFile) {
-        log_.info("Restoring file:\n    {}\n    {}", src, target);
+    // Small files are written straight from the index...
+    private void copyFile(StorageBackend storage, BackupIndex index, BackupIndexEntry entry, File target,
+                          File keyFile) {
+        String src = index.describeBlob(storage, entry);
+        long size = entry.getLastSize();
+        if(journal_.logEach())
+            log_.info("Restoring file:\n    {}\n    {}", src, target);
+        long started = System.nanoTime();
         try {
             KeyData key = null;
             if(keyFile != null)
                 key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
             if(!dryRun_) {
                 target.getParentFile().mkdirs();
-                Copier.copyFile(src, target, key, Copier.Direction.Decryption);
+                // Only waiting on the backup counts as I/O; the file is written as it is decrypted so holes in
+                // sparse files can still be skipped...
+                try (CpuLimit.Copy copy = workers_.getCpuLimit().start();
+                     OutputStream out = new FileOutputStream(target)) {
+                    Copier.decrypt(copy.reading(index.openBlob(storage, entry)), out, key, dictionary_);
+                }
+                // The backed up time, so checkDoCopy() finds the file up to date on the next restore...
+                if(!target.setLastModified(entry.getLastModifiedTs()))
+                    log_.debug("Failed to set the modification time:\n    {}", target);
             }
-            restoredFiles_ += 1;
+            journal_.record("restore", target, size, System.nanoTime() - started, "ok");
+            restoredFiles_.incrementAndGet();
         } catch(SecurityException | IOException e) {
             log_.error("Failed to restore file:\n    {}!", src);
             log_.catching(Level.DEBUG, e);
-            erroredFiles_ += 1;
+            journal_.record("restore", target, size, System.nanoTime() - started, "failed");
+            erroredFiles_.incrementAndGet();
+        }
+    }
+
+    // Recreate the hard link; fall back to a copy of the linked file's data if the link cannot be made (other
+    // file system, no hard link support, ...)...
+    private void restoreLink(StorageBackend storage, BackupIndex index, BackupIndexEntry entry, File target,
+                             File keyFile) throws IOException {
+        File linked = new File(chroot_, entry.getLinkTo());
+        if(journal_.logEach())
+            log_.info("Restoring hard link:\n    {}\n    {}", linked, target);
+        if(!dryRun_) {
+            try {
+                target.getParentFile().mkdirs();
+                Files.deleteIfExists(target.toPath());
+                Files.createLink(target.toPath(), linked.toPath());
+            } catch(UnsupportedOperationException | SecurityException | IOException e) {
+                log_.debug("Failed to link, restoring a copy instead:\n    {}", target);
+                BackupIndexEntry primary = index.getEntry(entry.getLinkTo());
+                if(primary == null) {
+                    log_.error("Hard link to a file missing from the index:\n    {}!", target);
+                    journal_.record("link", target, -1L, 0L, "failed");
+                    erroredFiles_.incrementAndGet();
+                } else
+                    copyFile(storage, index, primary, target, keyFile);
+                return;
+            }
         }
+        journal_.record("link", target, -1L, 0L, "ok");
+        linkedFiles_ += 1;
+    }
+
+    private CompressionDictionary loadDictionary(StorageBackend storage, String dictionaryKey, File keyFile)
+            throws IOException {
+        if(!storage.exists(dictionaryKey))
+            return null;
+        KeyData key = newGson().fromJson(Files.readString(keyFile.toPath(), StandardCharsets.UTF_8), KeyData.class);
+        return CompressionDictionary.load(storage.get(dictionaryKey), key);
+    }
+
+    // The defaults depend on the kind of threads...
+    private int maxWorkers() {
+        return (maxWorkers_ != null) ? maxWorkers_ : virtualThreads_ ? 1024 : 8;
+    }
+
+    private int minWorkers() {
+        return (minWorkers_ != null) ? minWorkers_ : Math.min(virtualThreads_ ? 64 : 1, maxWorkers());
     }
 
     private Gson newGson() {
@@ -132,14 +297,57 @@ public class DoRestore implements Callable<Integer> {
             paramLabel = "new-root-folder")
     private File chroot_ = new File(File.separator); // Assigned by picocli dynamically...
 
+    @CommandLine.Option(names = {"--prefix"}, description = "Only restore the backed up files under this folder " +
+            "(repeatable).", paramLabel = "folder")
+    private List<File> prefixes_ = new ArrayList<>(); // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--as-of"}, description = "Restore the snapshot of the last backup at or before " +
+            "this date or time (e.g. 2021-06-01 or 2021-06-01T18:00) instead of the latest files.",
+            paramLabel = "time")
+    private String asOf_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--to-tar"}, description = "Write the files into a tar archive ('-' for stdout) " +
+            "instead of the file system; --chroot and --force do not apply.", paramLabel = "file")
+    private String toTar_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--tar-threads"}, description = "Files fetched and decrypted ahead of the tar " +
+            "archive writer at once (default: 4).", paramLabel = "count")
+    private int tarThreads_ = 4; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--journal"}, description = "Append a line of JSON per file (action, path, bytes, " +
+            "time taken and result) to this file; the log then only samples the files.", paramLabel = "file")
+    private File journalFile_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--min-workers"}, description = "Files restored at once to start with and at " +
+            "least (default: 1, 64 with --virtual-threads).", paramLabel = "count")
+    private Integer minWorkers_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--max-workers"}, description = "Files restored at once at most (default: 8, 1024 " +
+            "with --virtual-threads); the number in between follows the measured throughput.", paramLabel = "count")
+    private Integer maxWorkers_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Option(names = {"--virtual-threads"}, description = "Copy each file on a virtual thread, with " +
+            "compression and encryption held to one file per processor; for destinations with high latency (NFS, " +
+            "SMB, ...) where many copies must be in flight.")
+    private boolean virtualThreads_ = false; // Assigned by picocli dynamically...
+
     @CommandLine.Parameters(paramLabel="backup_set_files", description =
             "Backup set file(s) used to run restore from backups.",
             arity = "1..*")
     List<File> setFiles_;
 
+    private Long asOfTime_ = null;
+    private TarExport tar_ = null;
+    private PrintStream report_ = System.out;
     private final Logger log_ = LogManager.getRootLogger();
-    private int restoredFiles_ = 0;
+    private final AtomicInteger restoredFiles_ = new AtomicInteger(); // Counted by the workers.
     private int skippedFiles_ = 0;
+    private int linkedFiles_ = 0;
     private int totalFiles_ = 0;
-    private int erroredFiles_ = 0;
+    private final AtomicInteger erroredFiles_ = new AtomicInteger();
+    private WorkerPool workers_ = null;
+    private AuditJournal journal_ = null;
+    private CompressionDictionary dictionary_ = null;
+
+    private static final int TAR_BUFFER_SIZE = 1024 * 1024;
 }
@@ -0,0 +1,98 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The path prefix, size and modification time filters of do-query and do-diff. Shards that cannot hold a requested
+ * prefix are skipped without being read.
+ */
+class EntryFilter {
+    /**
+     * @param prefixes Folders to limit the entries to (all entries when empty).
+     * @param minSize Smallest size to accept ("1G", "512k", ...) or null.
+     * @param maxSize Largest size to accept or null.
+     * @param newerThan Accept only files modified at or after this time ("2021-06-01", "2021-06-01T18:00",
+     *                  "2021-06-01T18:00:00Z") or null.
+     * @param olderThan Accept only files modified before this time or null.
+     * @throws IllegalArgumentException When a size or time cannot be parsed.
+     */
+    EntryFilter(List<File> prefixes, String minSize, String maxSize, String newerThan, String olderThan) {
+        for(File prefix: prefixes)
+            prefixes_.add(prefix.getAbsolutePath());
+        minSize_ = (minSize == null) ? Long.MIN_VALUE : parseSize(minSize);
+        maxSize_ = (maxSize == null) ? Long.MAX_VALUE : parseSize(maxSize);
+        newerThan_ = (newerThan == null) ? Long.MIN_VALUE : parseTime(newerThan);
+        olderThan_ = (olderThan == null) ? Long.MAX_VALUE : parseTime(olderThan);
+    }
+
+    boolean acceptsShard(String folder) {
+        if(prefixes_.isEmpty())
+            return true;
+        for(String prefix: prefixes_)
+            if(BackupIndex.isUnder(folder, prefix) || BackupIndex.isUnder(prefix, folder))
+                return true;
+        return false;
+    }
+
+    boolean accepts(String path, BackupIndexEntry entry) {
+        if(entry.getLastSize() < minSize_ || entry.getLastSize() > maxSize_)
+            return false;
+        if(entry.getLastModifiedTs() < newerThan_ || entry.getLastModifiedTs() >= olderThan_)
+            return false;
+        if(prefixes_.isEmpty())
+            return true;
+        for(String prefix: prefixes_)
+            if(BackupIndex.isUnder(path, prefix))
+                return true;
+        return false;
+    }
+
+    // Bytes with an optional K, M, G or T suffix (powers of 1024)...
+    static long parseSize(String text) {
+        String value = text.trim().toUpperCase(Locale.ROOT);
+        if(value.endsWith("B"))
+            value = value.substring(0, value.length() - 1);
+        long multiplier = 1L;
+        int unit = value.isEmpty() ? -1 : "KMGT".indexOf(value.charAt(value.length() - 1));
+        if(unit >= 0) {
+            multiplier = 1L << (10 * (unit + 1));
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value.trim()) * multiplier;
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Bad size: " + text);
+        }
+    }
+
+    // Milliseconds since the epoch; dates and times without a zone are local...
+    static long parseTime(String text) {
+        try {
+            if(text.endsWith("Z") || text.matches(".*[+-]\\d\\d:\\d\\d$"))
+                return Instant.parse(text).toEpochMilli();
+            if(text.contains("T"))
+                return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch(DateTimeParseException e) {
+            throw new IllegalArgumentException("Bad time: " + text);
+        }
+    }
+
+    private final List<String> prefixes_ = new ArrayList<>();
+    private final long minSize_;
+    private final long maxSize_;
+    private final long newerThan_;
+    private final long olderThan_;
+}
@@ -0,0 +1,207 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "migrate-layout",
+        description = "Move the encrypted files of existing backup sets into a new destination layout.",
+        mixinStandardHelpOptions = true)
+public class MigrateLayout implements Callable<Integer> {
+    @Override
+    public Integer call() throws Exception {
+        long start = Instant.now().getEpochSecond();
+        try {
+            if(fanOutLevels_ != null && (fanOutLevels_ < 0 || fanOutLevels_ > BlobLayout.MAX_LEVELS))
+                throw new IllegalArgumentException(String.format("Fan-out levels must be 0 to %d!",
+                        BlobLayout.MAX_LEVELS));
+            for (int i = 0; i < setFiles_.size(); i++) {
+                File setFile = setFiles_.get(i);
+                if(!setFile.exists())
+                    throw new IllegalArgumentException("Command line specified a missing backup set!");
+                setFiles_.set(i, setFile.getAbsoluteFile());
+            }
+            int rv = 0;
+            for(File setFile: setFiles_) {
+                if(!migrateSet(setFile)) {
+                    rv = 3;
+                    log_.warn("*** Finished migrating set with error: {}", setFile.getCanonicalPath());
+                } else
+                    log_.info("*** Finished migrating set OK: {}", setFile.getCanonicalPath());
+            }
+            printReport(Instant.now().getEpochSecond() - start);
+            return rv;
+        } catch(IllegalArgumentException e) {
+            log_.error(e.getMessage());
+            return 2;
+        }
+    }
+
+    // Safe to re-run after an interruption: files already at their new location are skipped and an index only
+    // switches to the new layout once every file has been moved. Every destination keeps its own index, so each one
+    // is migrated on its own and the set file only changes once all of them use the new layout...
+    private boolean migrateSet(File setFile) {
+        try {
+            BackupSet set = newGson().fromJson(Files.readString(setFile.toPath(), StandardCharsets.UTF_8),
+                    BackupSet.class);
+            BlobLayout target = (fanOutLevels_ == null) ? set.getLayout() : new BlobLayout(fanOutLevels_);
+            System.out.println("\n==========================================================================================");
+            System.out.printf("====  %s  ====\n", set.getName());
+            boolean ok = true;
+            for(String destination: set.getDestinations()) {
+                int moved = movedFiles_;
+                int alreadyMoved = alreadyMovedFiles_;
+                int missing = missingFiles_;
+                int errored = erroredFiles_;
+                System.out.printf("---- %s\n", destination);
+                try (StorageBackend storage = set.openStorage(destination)) {
+                    ok = migrateDestination(set, storage, target) && ok;
+                } catch(IOException e) {
+                    log_.error("Failed to migrate destination:\n    {}!", destination);
+                    log_.catching(Level.DEBUG, e);
+                    ok = false;
+                    continue;
+                }
+                System.out.printf("Moved %d files (%d already moved, %d missing, %d errored).\n",
+                        movedFiles_ - moved, alreadyMovedFiles_ - alreadyMoved, missingFiles_ - missing,
+                        erroredFiles_ - errored);
+            }
+            if(!ok)
+                return false;
+            if(target.getFanOutLevels() != set.fanOutLevels_ && !dryRun_) {
+                set.fanOutLevels_ = target.getFanOutLevels();
+                Files.writeString(setFile.toPath(), newGson().toJson(set));
+            }
+            return true;
+        } catch(IOException e) {
+            log_.fatal("Migration failed!");
+            log_.catching(Level.DEBUG, e);
+            return false;
+        }
+    }
+
+    private boolean migrateDestination(BackupSet set, StorageBackend storage, BlobLayout target) throws IOException {
+        BackupSetIndexFactory factory = new BackupSetIndexFactory(set, storage, dryRun_);
+        BackupIndex index = factory.loadOnly(set.getKeyFile());
+        BlobLayout source = index.getLayout();
+        log_.info("*** Migrating backup set '{}' from a {} to a {} layout", set.getName(), source, target);
+        if(source.equals(target))
+            return true;
+        boolean ok = true;
+        for(Map.Entry<String,Set<Integer>> stored: storedVersions(factory, index, set.getKeyFile()).entrySet()) {
+            for(int version: stored.getValue()) {
+                String from = source.relativePath(stored.getKey(), version, index.getExtension());
+                String to = target.relativePath(stored.getKey(), version, index.getExtension());
+                ok = moveFile(storage, from, to) && ok;
+            }
+        }
+        if(!ok) {
+            log_.error("Not all files were moved; the index keeps the {} layout, re-run to finish.", source);
+            return false;
+        }
+        index.setLayout(target);
+        if(!dryRun_)
+            index.saveIndex(storage, set.getIndexKey(), set.getKeyFile());
+        return true;
+    }
+
+    // Every version any snapshot still references moves, not just the current ones...
+    private Map<String,Set<Integer>> storedVersions(BackupSetIndexFactory factory, BackupIndex index, File keyFile)
+            throws IOException {
+        Map<String,Set<Integer>> versions = new HashMap<>();
+        addVersions(index, versions);
+        for(long generation: factory.listSnapshots())
+            addVersions(factory.loadSnapshot(index, generation, keyFile), versions);
+        return versions;
+    }
+
+    private static void addVersions(BackupIndex snapshot, Map<String,Set<Integer>> versions) throws IOException {
+        for(BackupIndexEntry entry: snapshot.entries()) {
+            if(!entry.isLink() && entry.getInline() == null) // Hard links and inlined files have no file of their own.
+                versions.computeIfAbsent(entry.getId(), (id) -> new TreeSet<>()).add(entry.getVersion());
+        }
+    }
+
+    private boolean moveFile(StorageBackend storage, String from, String to) {
+        try {
+            if(!storage.exists(from)) {
+                if(storage.exists(to)) {
+                    alreadyMovedFiles_ += 1;
+                    return true;
+                }
+                log_.warn("Missing encrypted file (never backed up?):\n    {}", storage.describe(from));
+                missingFiles_ += 1;
+                return true;
+            }
+            log_.debug("Moving:\n    {}\n    {}", storage.describe(from), storage.describe(to));
+            if(!dryRun_)
+                storage.rename(from, to);
+            movedFiles_ += 1;
+            return true;
+        } catch(IOException e) {
+            log_.error("Failed to move file:\n    {}!", storage.describe(from));
+            log_.catching(Level.DEBUG, e);
+            erroredFiles_ += 1;
+            return false;
+        }
+    }
+
+    private void printReport(long seconds) {
+        System.out.println();
+        if(dryRun_)
+            System.out.println("*** DRY RUN ONLY");
+        System.out.print ("+----------------------------------------+\n");
+        System.out.printf("| Moved files:              %12d |\n", movedFiles_);
+        System.out.printf("| Already moved files:      %12d |\n", alreadyMovedFiles_);
+        System.out.printf("| Missing files:            %12d |\n", missingFiles_);
+        System.out.printf("| Errored files:            %12d |\n", erroredFiles_);
+        System.out.print ("+----------------------------------------+\n");
+        System.out.printf("| Total Time (m:ss):        %9d:%02d |\n", seconds / 60, seconds % 60);
+        System.out.print ("+----------------------------------------+\n");
+    }
+
+    private Gson newGson() {
+        GsonBuilder builder = new GsonBuilder();
+        builder.registerTypeAdapter(BackupSet.class, BackupSet.getGSonAdapter());
+        builder.registerTypeAdapter(KeyData.class, KeyData.getGSonAdapter());
+        builder.registerTypeAdapter(BackupIndex.class, BackupIndex.getGSonAdapter());
+        return builder.create();
+    }
+
+    @CommandLine.Option(names = {"--dry-run"}, description = "Attempt everything except actually moving files.")
+    private boolean dryRun_ = false; // Assigned by picocli dynamically...
+    @CommandLine.Option(names = {"--fan-out-levels"}, paramLabel = "levels", description = "Target levels of " +
+            "hashed sub-folders, 0 for flat (default: the value in the backup set file). The set file is updated.")
+    private Integer fanOutLevels_ = null; // Assigned by picocli dynamically...
+
+    @CommandLine.Parameters(paramLabel="backup_set_files", description = "Backup set file(s) to migrate.",
+            arity = "1..*")
+    List<File> setFiles_;
+
+    private final Logger log_ = LogManager.getRootLogger();
+    private int movedFiles_ = 0;
+    private int alreadyMovedFiles_ = 0;
+    private int missingFiles_ = 0;
+    private int erroredFiles_ = 0;
+}
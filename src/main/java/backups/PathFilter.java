@@ -0,0 +1,153 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include/exclude glob patterns compiled into single regular expressions so a path is tested with at most two
+ * matches no matter how many patterns the backup set has. Patterns without a '/' match any single file or folder
+ * name (e.g. "node_modules" or "*.tmp"), patterns with a '/' match the path relative to the source folder (e.g.
+ * ".git/objects" or "build/**"). Excludes always win over includes and only excludes prune folders.
+ */
+class PathFilter {
+    PathFilter(List<String> includes, List<String> excludes) {
+        List<String> names = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        split(includes, names, paths);
+        includeNames_ = compile(names);
+        includePaths_ = compile(paths);
+        names.clear();
+        paths.clear();
+        split(excludes, names, paths);
+        excludeNames_ = compile(names);
+        excludePaths_ = compile(paths);
+    }
+
+    // Called with a folder relative to its source folder; true means the whole subtree is skipped...
+    boolean excludesFolder(Path relative) {
+        return isExcluded(relative);
+    }
+
+    // Called with a file relative to its source folder...
+    boolean acceptsFile(Path relative) {
+        if(isExcluded(relative))
+            return false;
+        if(includeNames_ == null && includePaths_ == null)
+            return true;
+        return matches(includeNames_, includePaths_, relative);
+    }
+
+    // Called with a file relative to its source folder: whether a walk gets to it, none of its folders being
+    // excluded...
+    boolean reaches(Path relative) {
+        for(int i = 1; i < relative.getNameCount(); i++)
+            if(excludesFolder(relative.subpath(0, i)))
+                return false;
+        return acceptsFile(relative);
+    }
+
+    // No include or exclude patterns, every path is accepted...
+    boolean isEmpty() {
+        return includeNames_ == null && includePaths_ == null && excludeNames_ == null && excludePaths_ == null;
+    }
+
+    private boolean isExcluded(Path relative) {
+        return matches(excludeNames_, excludePaths_, relative);
+    }
+
+    private static boolean matches(Pattern names, Pattern paths, Path relative) {
+        if(relative.getNameCount() == 0 || relative.toString().isEmpty())
+            return false;
+        if(names != null && names.matcher(relative.getFileName().toString()).matches())
+            return true;
+        return paths != null && paths.matcher(toSlashes(relative)).matches();
+    }
+
+    private static String toSlashes(Path relative) {
+        String separator = relative.getFileSystem().getSeparator();
+        String value = relative.toString();
+        return separator.equals("/") ? value : value.replace(separator, "/");
+    }
+
+    private static void split(List<String> patterns, List<String> names, List<String> paths) {
+        if(patterns == null)
+            return;
+        for(String pattern: patterns) {
+            if(pattern == null || pattern.isBlank())
+                continue;
+            String glob = pattern.strip();
+            while(glob.length() > 1 && glob.endsWith("/"))
+                glob = glob.substring(0, glob.length() - 1);
+            if(glob.startsWith("/"))
+                paths.add(glob.substring(1)); // Anchored at the source folder.
+            else if(glob.contains("/"))
+                paths.add(glob);
+            else
+                names.add(glob);
+        }
+    }
+
+    private static Pattern compile(List<String> globs) {
+        if(globs.isEmpty())
+            return null;
+        StringBuilder regex = new StringBuilder();
+        for(String glob: globs) {
+            if(regex.length() > 0)
+                regex.append('|');
+            regex.append("(?:").append(globToRegex(glob)).append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while(i < glob.length()) {
+            char c = glob.charAt(i);
+            if(c == '/' && i + 3 == glob.length() && glob.endsWith("/**")) {
+                regex.append("(?:/.*)?"); // "folder/**" also matches the folder itself so it is pruned early.
+                break;
+            } else if(c == '*') {
+                if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    if(i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                        regex.append("(?:.*/)?");
+                        i += 3;
+                    } else {
+                        regex.append(".*");
+                        i += 2;
+                    }
+                    continue;
+                }
+                regex.append("[^/]*");
+            } else if(c == '?') {
+                regex.append("[^/]");
+            } else if(c == '[') {
+                int end = glob.indexOf(']', i + 1);
+                if(end < 0)
+                    throw new IllegalArgumentException("Unterminated '[' in pattern: " + glob);
+                String set = glob.substring(i + 1, end);
+                if(set.startsWith("!"))
+                    set = "^" + set.substring(1);
+                regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                i = end;
+            } else if("\\.^$+{}()|".indexOf(c) >= 0) {
+                regex.append('\\').append(c);
+            } else {
+                regex.append(c);
+            }
+            i++;
+        }
+        return regex.toString();
+    }
+
+    private final Pattern includeNames_;
+    private final Pattern includePaths_;
+    private final Pattern excludeNames_;
+    private final Pattern excludePaths_;
+}
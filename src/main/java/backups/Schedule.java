@@ -0,0 +1,42 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.util.Comparator;
+
+/**
+ * The order do-backup starts its copies in, from the sizes and times the scan collected. Starting the largest files
+ * first lets the small ones fill in around them on the other workers, so one huge file picked up late does not
+ * stretch the run.
+ */
+enum Schedule {
+    Path(null),
+    LargestFirst(Comparator.comparingLong(BackupIndexEntry::getScannedSize).reversed()),
+    SmallestFirst(Comparator.comparingLong(BackupIndexEntry::getScannedSize)),
+    NewestFirst(Comparator.comparingLong(BackupIndexEntry::getScannedModified).reversed());
+
+    Schedule(Comparator<BackupIndexEntry> order) {
+        order_ = order;
+    }
+
+    /**
+     * Case-insensitive lookup by name, with or without dashes.
+     *
+     * @param name The schedule name (e.g. "largest-first" or "path").
+     * @return The matching schedule.
+     * @throws IllegalArgumentException When the name is not a known schedule.
+     */
+    static Schedule fromString(String name) {
+        for(Schedule schedule: values())
+            if(schedule.name().equalsIgnoreCase(name.replace("-", "")))
+                return schedule;
+        throw new IllegalArgumentException("Unknown schedule: " + name);
+    }
+
+    // Null to keep the index (path) order...
+    Comparator<BackupIndexEntry> order() { return order_; }
+
+    private final Comparator<BackupIndexEntry> order_;
+}
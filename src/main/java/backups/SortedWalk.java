@@ -0,0 +1,99 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Walks a folder tree depth first with every folder listing sorted by name, so files come out in
+ * {@link BackupIndex#PATH_ORDER}. Only the listings of the folders on the current path are held in memory.
+ */
+class SortedWalk {
+    /**
+     * @param root The source folder the filter's relative paths start from.
+     * @param start The folder to walk (the root or a folder below it).
+     * @param filter The set's include/exclude filter.
+     * @param descend false to only return the files directly in start and collect its folders for
+     *                {@link #getFolders()}.
+     * @param otherDevice Folders on another device, not walked with --one-file-system (see {@link Devices}).
+     */
+    SortedWalk(Path root, Path start, PathFilter filter, boolean descend, Predicate<Path> otherDevice) {
+        root_ = root;
+        filter_ = filter;
+        descend_ = descend;
+        otherDevice_ = otherDevice;
+        stack_.push(list(start).iterator());
+    }
+
+    /**
+     * @return The next file or null when the walk is done.
+     */
+    Path next() {
+        while(!stack_.isEmpty()) {
+            Iterator<Path> top = stack_.peek();
+            if(!top.hasNext()) {
+                stack_.pop();
+                continue;
+            }
+            Path path = top.next();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch(IOException e) {
+                log_.warn("Failed to check file:\n    {}!", path);
+                continue;
+            }
+            Path relative = root_.relativize(path);
+            if(attributes.isDirectory()) {
+                if(filter_.excludesFolder(relative)) {
+                    log_.debug("Excluded folder:\n    {}", path);
+                    excluded_ += 1;
+                } else if(otherDevice_.test(path)) {
+                    log_.debug("Not crossing into another file system:\n    {}", path);
+                    excluded_ += 1;
+                } else if(descend_)
+                    stack_.push(list(path).iterator());
+                else
+                    folders_.add(path);
+            } else if(filter_.acceptsFile(relative))
+                return path;
+            else
+                excluded_ += 1;
+        }
+        return null;
+    }
+
+    // Sub-folders of the start folder when not descending, in walk order...
+    List<Path> getFolders() { return folders_; }
+    int getExcluded() { return excluded_; }
+
+    private List<Path> list(Path folder) {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for(Path child: stream)
+                children.add(child);
+        } catch(IOException | DirectoryIteratorException e) {
+            log_.warn("Failed to check file:\n    {}!", folder);
+        }
+        children.sort(Comparator.comparing((child) -> child.getFileName().toString()));
+        return children;
+    }
+
+    private final Path root_;
+    private final PathFilter filter_;
+    private final boolean descend_;
+    private final Predicate<Path> otherDevice_;
+    private final Deque<Iterator<Path>> stack_ = new ArrayDeque<>();
+    private final List<Path> folders_ = new ArrayList<>();
+    private int excluded_ = 0;
+    private final Logger log_ = LogManager.getRootLogger();
+}
@@ -0,0 +1,127 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+/**
+ * A named source in a backup set that is not a file: the standard output of a command (a database dump, ...) or
+ * the standard input of do-backup. Its data is compressed and encrypted as it is read, so it never touches a
+ * scratch disk. In the index it is the file "/.streams/&lt;name&gt;", and each run stores it whole as one blob
+ * version (it is not split into chunks that could be resumed or shared between versions).
+ */
+class StreamSource {
+    StreamSource(String name, String command) {
+        name_ = name;
+        command_ = (command == null || command.isBlank()) ? null : command;
+    }
+
+    static void checkName(String name) {
+        if(name == null || name.isBlank() || name.contains("/") || name.contains(File.separator) ||
+                name.equals(".") || name.equals(".."))
+            throw new IllegalArgumentException(String.format("Bad stream source name '%s'!", name));
+    }
+
+    /**
+     * Start the command (or take standard input). The size and hash of the data read are counted as it is read.
+     *
+     * @return The data; closing it does not close standard input.
+     */
+    InputStream open() throws IOException {
+        InputStream raw = System.in;
+        if(command_ != null) {
+            ProcessBuilder builder = new ProcessBuilder(SHELL, "-c", command_);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            builder.redirectInput(ProcessBuilder.Redirect.from(new File(NULL_DEVICE)));
+            process_ = builder.start();
+            raw = process_.getInputStream();
+        }
+        try {
+            digest_ = MessageDigest.getInstance("SHA-256");
+        } catch(GeneralSecurityException e) {
+            throw new IOException("SHA-256 is not available!", e);
+        }
+        size_ = 0L;
+        return new FilterInputStream(new DigestInputStream(raw, digest_)) {
+            @Override public int read() throws IOException {
+                int b = super.read();
+                if(b >= 0)
+                    size_ += 1;
+                return b;
+            }
+
+            @Override public int read(byte[] bytes, int off, int len) throws IOException {
+                int count = super.read(bytes, off, len);
+                if(count > 0)
+                    size_ += count;
+                return count;
+            }
+
+            @Override public void close() throws IOException {
+                if(command_ != null)
+                    super.close();
+            }
+        };
+    }
+
+    /**
+     * Wait for the command to end.
+     *
+     * @param completed false when reading the data failed; the command is stopped.
+     * @throws IOException When the command failed, its data is not a complete dump.
+     */
+    void finish(boolean completed) throws IOException {
+        if(process_ == null)
+            return;
+        try {
+            if(!completed)
+                process_.destroy();
+            int exitCode = process_.waitFor();
+            if(completed && exitCode != 0)
+                throw new IOException(String.format("Stream source command exited with %d: %s", exitCode,
+                        command_));
+        } catch(InterruptedException e) {
+            process_.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the stream source command!", e);
+        } finally {
+            process_ = null;
+        }
+    }
+
+    // Where the index keeps it...
+    File getIndexFile() { return new File(FOLDER, name_).getAbsoluteFile(); }
+
+    // Of the data read since open()...
+    long getSize() { return size_; }
+    String getHash() { return HexFormat.of().formatHex(digest_.digest()); }
+
+    String getName() { return name_; }
+    String getCommand() { return command_; }
+    boolean isStdin() { return command_ == null; }
+
+    static boolean isStream(BackupIndexEntry entry) {
+        return BackupIndex.isUnder(entry.getFile().getPath(), getFolder());
+    }
+
+    static String getFolder() { return new File(FOLDER).getAbsolutePath(); }
+
+    private final String name_;
+    private final String command_; // Run with "sh -c"; null reads standard input.
+    private Process process_ = null;
+    private MessageDigest digest_ = null;
+    private long size_ = 0L;
+
+    static final String FOLDER = File.separator + ".streams";
+    private static final String SHELL = "/bin/sh";
+    private static final String NULL_DEVICE = "/dev/null";
+}
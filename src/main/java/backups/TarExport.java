@@ -0,0 +1,186 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.crypto.CompressionDictionary;
+import com.amonson.crypto.Copier;
+import com.amonson.crypto.KeyData;
+import com.amonson.storage.StorageBackend;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams backed up files into a tar archive instead of the file system. A pool of workers fetches and decrypts
+ * the files ahead of the writer (small ones into memory) while the writer adds them strictly in index order, so
+ * the archive is built as fast as the storage delivers. Larger files are decrypted straight into the archive by
+ * the writer; remote storage still fetches those with parallel ranged reads. Closing it closes the archive stream.
+ */
+class TarExport implements AutoCloseable {
+    TarExport(OutputStream out, int threads, AuditJournal journal) {
+        out_ = out;
+        tar_ = new TarStream(out);
+        journal_ = journal;
+        threads_ = Math.max(1, threads);
+        pool_ = Executors.newFixedThreadPool(threads_, (runnable) -> {
+            Thread thread = new Thread(runnable, "tar-decrypt");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add entries of one index to the archive. Hard links follow the files and become tar hard links when the
+     * file they link to is in the archive, otherwise a copy of its data.
+     */
+    void export(StorageBackend storage, BackupIndex index, List<BackupIndexEntry> entries, KeyData key,
+                CompressionDictionary dictionary) throws IOException {
+        List<BackupIndexEntry> links = new ArrayList<>();
+        Deque<Future<Decrypted>> window = new ArrayDeque<>();
+        int next = 0;
+        while(next < entries.size() || !window.isEmpty()) {
+            while(next < entries.size() && window.size() < threads_ * 2) {
+                BackupIndexEntry entry = entries.get(next++);
+                if(entry.isLink())
+                    links.add(entry);
+                else
+                    window.add(pool_.submit(() -> decrypt(storage, index, entry, entry, key, dictionary)));
+            }
+            if(!window.isEmpty())
+                write(storage, index, window.poll(), key, dictionary);
+        }
+        for(BackupIndexEntry entry: links) {
+            String path = entry.getFile().toString();
+            if(members_.contains(entry.getLinkTo())) {
+                tar_.writeLink(path, entry.getLinkTo(), entry.getLastModifiedTs());
+                journal_.record("link", path, -1L, 0L, "ok");
+                members_.add(path);
+                linkedFiles_ += 1;
+                continue;
+            }
+            BackupIndexEntry primary = index.getEntry(entry.getLinkTo());
+            if(primary == null) {
+                log_.error("Hard link to a file missing from the index:\n    {}!", path);
+                journal_.record("link", path, -1L, 0L, "failed");
+                erroredFiles_ += 1;
+            } else
+                write(storage, index, pool_.submit(() -> decrypt(storage, index, primary, entry, key, dictionary)),
+                        key, dictionary);
+        }
+    }
+
+    // Ends the archive; the output stream is flushed but left open...
+    void finish() throws IOException {
+        tar_.finish();
+    }
+
+    @Override public void close() throws IOException {
+        pool_.shutdownNow();
+        out_.close();
+    }
+
+    int getExportedFiles() { return exportedFiles_; }
+    int getLinkedFiles() { return linkedFiles_; }
+    int getErroredFiles() { return erroredFiles_; }
+
+    // The data of a hard link is the file it links to...
+    private Decrypted decrypt(StorageBackend storage, BackupIndex index, BackupIndexEntry source,
+                              BackupIndexEntry entry, KeyData key, CompressionDictionary dictionary) {
+        if(entry.getLastSize() > IN_MEMORY_LIMIT)
+            return new Decrypted(entry, index, source, null, null); // Streamed by the writer.
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream((int)Math.max(0L, entry.getLastSize()));
+            Copier.decrypt(index.openBlob(storage, source), data, key, dictionary);
+            return new Decrypted(entry, index, source, data.toByteArray(), null);
+        } catch(IOException | RuntimeException e) {
+            return new Decrypted(entry, index, source, null, e);
+        }
+    }
+
+    private void write(StorageBackend storage, BackupIndex index, Future<Decrypted> pending, KeyData key,
+                       CompressionDictionary dictionary) throws IOException {
+        Decrypted decrypted;
+        try {
+            decrypted = pending.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing the tar archive!");
+        } catch(ExecutionException e) {
+            throw new IOException("Decrypting for the tar archive failed!", e.getCause());
+        }
+        BackupIndexEntry entry = decrypted.entry();
+        String path = entry.getFile().toString();
+        if(decrypted.error() != null) {
+            log_.error("Failed to restore file:\n    {}!", decrypted.index().describeBlob(storage,
+                    decrypted.source()));
+            log_.catching(Level.DEBUG, decrypted.error());
+            journal_.record("restore", path, entry.getLastSize(), 0L, "failed");
+            erroredFiles_ += 1;
+            return;
+        }
+        if(journal_.logEach())
+            log_.info("Restoring file:\n    {}\n    {}", decrypted.index().describeBlob(storage, decrypted.source()),
+                    path);
+        if(decrypted.data() != null)
+            tar_.writeFile(path, entry.getLastModifiedTs(), decrypted.data());
+        else {
+            OutputStream out = tar_.beginFile(path, entry.getLastSize(), entry.getLastModifiedTs());
+            try {
+                Copier.decrypt(decrypted.index().openBlob(storage, decrypted.source()), out, key, dictionary);
+            } catch(IOException e) {
+                // The header is already written; the member is padded out so the rest of the archive is intact...
+                log_.error("Failed to restore file (zero filled in the archive):\n    {}!", path);
+                log_.catching(Level.DEBUG, e);
+                journal_.record("restore", path, entry.getLastSize(), 0L, "failed");
+                erroredFiles_ += 1;
+                tar_.endFile();
+                members_.add(path);
+                return;
+            }
+            if(!tar_.endFile()) {
+                log_.error("Backed up file is not the size in the index (cut or zero filled in the archive):" +
+                        "\n    {}!", path);
+                journal_.record("restore", path, entry.getLastSize(), 0L, "failed");
+                erroredFiles_ += 1;
+                members_.add(path);
+                return;
+            }
+        }
+        members_.add(path);
+        journal_.record("restore", path, entry.getLastSize(), 0L, "ok");
+        exportedFiles_ += 1;
+    }
+
+    private record Decrypted(BackupIndexEntry entry, BackupIndex index, BackupIndexEntry source, byte[] data,
+                             Exception error) {}
+
+    private final OutputStream out_;
+    private final TarStream tar_;
+    private final AuditJournal journal_;
+    private final int threads_;
+    private final ExecutorService pool_;
+    private final Set<String> members_ = new HashSet<>();
+    private int exportedFiles_ = 0;
+    private int linkedFiles_ = 0;
+    private int erroredFiles_ = 0;
+    private final Logger log_ = LogManager.getRootLogger();
+
+    private static final long IN_MEMORY_LIMIT = 4L * 1024L * 1024L;
+}
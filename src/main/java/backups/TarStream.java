@@ -0,0 +1,200 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes a POSIX (ustar) tar archive. Names too long for the ustar fields and files of 8 GB or more get a PAX
+ * extended header first, as GNU and BSD tar expect.
+ */
+class TarStream {
+    TarStream(OutputStream out) {
+        out_ = out;
+    }
+
+    void writeFile(String path, long mtimeMillis, byte[] data) throws IOException {
+        writeHeader(path, FILE, data.length, mtimeMillis, null);
+        out_.write(data);
+        pad(data.length);
+    }
+
+    /**
+     * Start a file whose contents are streamed. The size is promised in the header so {@link #endFile()} pads a
+     * short file with zeros and extra bytes are dropped, either way the archive stays readable.
+     *
+     * @return The stream to write the file contents to (do not close it).
+     */
+    OutputStream beginFile(String path, long size, long mtimeMillis) throws IOException {
+        writeHeader(path, FILE, size, mtimeMillis, null);
+        expected_ = size;
+        written_ = 0L;
+        return new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            @Override public void write(byte[] bytes, int off, int len) throws IOException {
+                int count = (int)Math.min(len, expected_ - Math.min(written_, expected_));
+                if(count > 0)
+                    out_.write(bytes, off, count);
+                written_ += len;
+            }
+        };
+    }
+
+    // False when the streamed file did not have the promised size...
+    boolean endFile() throws IOException {
+        for(long left = expected_ - written_; left > 0L; left -= ZEROS.length)
+            out_.write(ZEROS, 0, (int)Math.min(left, ZEROS.length));
+        pad(expected_);
+        return written_ == expected_;
+    }
+
+    void writeLink(String path, String target, long mtimeMillis) throws IOException {
+        writeHeader(path, HARD_LINK, 0L, mtimeMillis, target);
+    }
+
+    // Two zero blocks end the archive...
+    void finish() throws IOException {
+        out_.write(ZEROS, 0, BLOCK * 2);
+        out_.flush();
+    }
+
+    // Archive members are relative: "/home/a/b" is stored as "home/a/b"...
+    static String memberName(String path) {
+        String name = path.replace('\\', '/');
+        while(name.startsWith("/"))
+            name = name.substring(1);
+        return name;
+    }
+
+    private void writeHeader(String path, byte type, long size, long mtimeMillis, String linkTarget)
+            throws IOException {
+        String name = memberName(path);
+        String link = (linkTarget == null) ? "" : memberName(linkTarget);
+        Map<String,String> pax = new LinkedHashMap<>();
+        String prefix = "";
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if(nameBytes.length > NAME_LENGTH) {
+            int split = splitPoint(name);
+            if(split < 0)
+                pax.put("path", name);
+            else {
+                prefix = name.substring(0, split);
+                name = name.substring(split + 1);
+            }
+        }
+        if(link.getBytes(StandardCharsets.UTF_8).length > NAME_LENGTH)
+            pax.put("linkpath", link);
+        if(size > MAX_OCTAL_SIZE)
+            pax.put("size", Long.toString(size));
+        if(!pax.isEmpty())
+            writePax(nameBytes, pax, mtimeMillis);
+
+        byte[] header = new byte[BLOCK];
+        // With a PAX path the ustar name is only a fallback for old readers...
+        put(header, 0, NAME_LENGTH, pax.containsKey("path") ? name.substring(name.length() - 50) : name);
+        octal(header, 100, 8, 0644); // The index does not keep permissions.
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, (size > MAX_OCTAL_SIZE) ? 0L : size);
+        octal(header, 136, 12, Math.max(0L, mtimeMillis / 1000L));
+        header[156] = type;
+        put(header, 157, NAME_LENGTH, pax.containsKey("linkpath") ? "" : link);
+        put(header, 257, 6, "ustar");
+        put(header, 263, 2, "00");
+        put(header, 345, 155, prefix);
+        checksum(header);
+        out_.write(header);
+    }
+
+    private void writePax(byte[] nameBytes, Map<String,String> records, long mtimeMillis) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for(Map.Entry<String,String> record: records.entrySet()) {
+            String text = " " + record.getKey() + "=" + record.getValue() + "\n";
+            int length = text.getBytes(StandardCharsets.UTF_8).length;
+            int total = length + Integer.toString(length).length();
+            if(Integer.toString(total).length() != Integer.toString(length).length())
+                total += 1; // The length counts its own digits.
+            body.append(total).append(text);
+        }
+        byte[] data = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[BLOCK];
+        String paxName = "PaxHeaders/" + new String(nameBytes, 0, Math.min(nameBytes.length, 80),
+                StandardCharsets.UTF_8);
+        put(header, 0, NAME_LENGTH, paxName);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, data.length);
+        octal(header, 136, 12, Math.max(0L, mtimeMillis / 1000L));
+        header[156] = PAX;
+        put(header, 257, 6, "ustar");
+        put(header, 263, 2, "00");
+        checksum(header);
+        out_.write(header);
+        out_.write(data);
+        pad(data.length);
+    }
+
+    // Where to split a long name into the ustar prefix and name fields, or -1 if it cannot be...
+    private static int splitPoint(String name) {
+        for(int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1)) {
+            if(name.substring(0, i).getBytes(StandardCharsets.UTF_8).length > PREFIX_LENGTH)
+                return -1;
+            if(name.substring(i + 1).getBytes(StandardCharsets.UTF_8).length <= NAME_LENGTH)
+                return (i == 0) ? -1 : i;
+        }
+        return -1;
+    }
+
+    private void pad(long length) throws IOException {
+        int rest = (int)(length % BLOCK);
+        if(rest != 0)
+            out_.write(ZEROS, 0, BLOCK - rest);
+    }
+
+    private static void put(byte[] header, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        String padded = "0".repeat(Math.max(0, length - 1 - digits.length())) + digits;
+        put(header, offset, length - 1, padded);
+        header[offset + length - 1] = 0;
+    }
+
+    private static void checksum(byte[] header) {
+        Arrays.fill(header, 148, 156, (byte)' ');
+        long sum = 0L;
+        for(byte b: header)
+            sum += b & 0xff;
+        String digits = String.format("%06o", sum);
+        put(header, 148, 6, digits);
+        header[154] = 0;
+        header[155] = ' ';
+    }
+
+    private final OutputStream out_;
+    private long expected_ = 0L;
+    private long written_ = 0L;
+
+    private static final int BLOCK = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final byte FILE = '0';
+    private static final byte HARD_LINK = '1';
+    private static final byte PAX = 'x';
+    private static final byte[] ZEROS = new byte[BLOCK * 16];
+}
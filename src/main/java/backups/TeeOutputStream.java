@@ -0,0 +1,189 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import com.amonson.storage.StorageBackend;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the same data to several outputs, each from its own thread fed through a small queue, so the destinations
+ * are written in parallel and a slow one only holds the others back once its queue is full. An output that fails is
+ * dropped and the others carry on; writing only fails once every output has failed. A single output is written
+ * directly.
+ */
+class TeeOutputStream extends OutputStream implements StorageBackend.Abortable {
+    TeeOutputStream(List<OutputStream> outputs) {
+        for(OutputStream output: outputs)
+            branches_.add(new Branch(output));
+        if(branches_.size() > 1)
+            for(Branch branch: branches_)
+                branch.future_ = POOL.submit(branch::drain);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        while(len > 0) {
+            int count = Math.min(len, buffer_.length - used_);
+            System.arraycopy(bytes, off, buffer_, used_, count);
+            used_ += count;
+            off += count;
+            len -= count;
+            if(used_ == buffer_.length)
+                dispatch();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed_)
+            return;
+        closed_ = true;
+        if(used_ > 0)
+            dispatch();
+        for(Branch branch: branches_) {
+            if(branch.future_ == null)
+                branch.finish();
+            else {
+                put(branch, END);
+                try {
+                    branch.future_.get();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted writing to a destination!");
+                } catch(ExecutionException e) {
+                    branch.error_ = new IOException("Writing to a destination failed!", e.getCause());
+                }
+            }
+        }
+        checkLive();
+    }
+
+    // Every output that can be aborted is; they are still closed by close()...
+    @Override
+    public void abort() {
+        for(Branch branch: branches_)
+            if(branch.output_ instanceof StorageBackend.Abortable abortable)
+                abortable.abort();
+    }
+
+    /**
+     * @param output The index of the output in the list given to the constructor.
+     * @return Why writing the output failed or null when all of the data was written to it and it was closed.
+     */
+    IOException getError(int output) {
+        return branches_.get(output).error_;
+    }
+
+    private void dispatch() throws IOException {
+        byte[] chunk = (used_ == buffer_.length) ? buffer_ : Arrays.copyOf(buffer_, used_);
+        for(Branch branch: branches_) {
+            if(branch.error_ != null)
+                continue;
+            if(branch.future_ == null)
+                branch.write(chunk);
+            else
+                put(branch, chunk);
+        }
+        buffer_ = new byte[CHUNK_SIZE]; // The queued chunk is owned by the branches now.
+        used_ = 0;
+        checkLive();
+    }
+
+    private void put(Branch branch, byte[] chunk) throws IOException {
+        try {
+            branch.queue_.put(chunk);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing to a destination!");
+        }
+    }
+
+    private void checkLive() throws IOException {
+        IOException first = null;
+        for(Branch branch: branches_) {
+            if(branch.error_ == null)
+                return;
+            if(first == null)
+                first = branch.error_;
+        }
+        if(first != null)
+            throw first;
+    }
+
+    private static final class Branch {
+        Branch(OutputStream output) {
+            output_ = output;
+        }
+
+        // A failed branch keeps taking chunks so the writer never blocks on it...
+        void drain() {
+            try {
+                for(byte[] chunk = queue_.take(); chunk != END; chunk = queue_.take())
+                    write(chunk);
+                finish();
+            } catch(InterruptedException e) {
+                error_ = new InterruptedIOException("Interrupted writing to a destination!");
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void write(byte[] chunk) {
+            if(error_ != null)
+                return;
+            try {
+                output_.write(chunk);
+            } catch(IOException e) {
+                error_ = e;
+            }
+        }
+
+        void finish() {
+            try {
+                output_.close();
+            } catch(IOException e) {
+                if(error_ == null)
+                    error_ = e;
+            }
+        }
+
+        final OutputStream output_;
+        final BlockingQueue<byte[]> queue_ = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+        volatile IOException error_ = null;
+        Future<?> future_ = null; // Null when written directly.
+    }
+
+    private final List<Branch> branches_ = new ArrayList<>();
+    private byte[] buffer_ = new byte[CHUNK_SIZE];
+    private int used_ = 0;
+    private boolean closed_ = false;
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int QUEUE_CHUNKS = 8;
+    private static final byte[] END = new byte[0];
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "tee-" + COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+}
@@ -0,0 +1,246 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs file copies on a pool of threads whose concurrency follows the measured throughput. Every couple of seconds
+ * the bytes per second and the time per byte of the finished copies are compared with the last sample: while
+ * another worker buys more throughput one more is added (additive increase), when throughput falls the workers are
+ * cut by a quarter (multiplicative decrease) and when a worker added nothing but queueing it is taken away again.
+ * So a single disk settles on a few workers and an SSD or object store on many, within the configured bounds.
+ * <p>
+ * Copies name the device they read from and each device is measured and limited on its own, so a slow or remote
+ * mount settles on its few workers without holding back a fast local disk, which gets up to the maximum itself.
+ * <p>
+ * On virtual threads a worker costs next to nothing, so thousands of copies can wait on a high latency destination
+ * (NFS, SMB, ...) at once; their compressing and encrypting is held to one per processor by the {@link CpuLimit}.
+ * The increase then grows with the workers so the pool gets to those numbers in reasonable time.
+ */
+class WorkerPool implements AutoCloseable {
+    WorkerPool(String name, int minWorkers, int maxWorkers, boolean virtual) {
+        if(minWorkers < 1 || maxWorkers < minWorkers)
+            throw new IllegalArgumentException("Workers must be at least 1 and the maximum at least the minimum!");
+        min_ = minWorkers;
+        max_ = maxWorkers;
+        if(virtual) {
+            executor_ = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1L).factory());
+            cpu_ = new CpuLimit(Runtime.getRuntime().availableProcessors());
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            executor_ = Executors.newCachedThreadPool((runnable) -> {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            cpu_ = new CpuLimit(0); // The workers are the limit.
+        }
+    }
+
+    /**
+     * Run a copy once a worker is free (blocks until then).
+     *
+     * @param bytes The size of the copy, for the throughput samples.
+     * @param task The copy; it handles its own errors.
+     * @return The running copy.
+     */
+    Future<?> submit(long bytes, Runnable task) throws IOException {
+        return submit(null, bytes, task);
+    }
+
+    /**
+     * Run a copy once a worker for its device is free (blocks until then).
+     *
+     * @param device The device the copy reads from (see {@link Devices}); null when not known.
+     * @param bytes The size of the copy, for the throughput samples.
+     * @param task The copy; it handles its own errors.
+     * @return The running copy.
+     */
+    Future<?> submit(Object device, long bytes, Runnable task) throws IOException {
+        Lane lane;
+        synchronized(this) {
+            lane = lane(device);
+            try {
+                while(lane.inFlight_ >= lane.limit_)
+                    wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a worker!");
+            }
+            lane.inFlight_ += 1;
+            inFlight_ += 1;
+        }
+        return executor_.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                log_.error("Worker failed: {}", e.toString());
+                throw e;
+            } finally {
+                finished(lane, Math.max(0L, bytes), System.nanoTime() - start);
+            }
+        });
+    }
+
+    // Whether submit() would start a copy on the device right away...
+    synchronized boolean hasWorker(Object device) {
+        Lane lane = lane(device);
+        return lane.inFlight_ < lane.limit_;
+    }
+
+    // Copies finished so far, for awaitFinished()...
+    synchronized long getFinished() { return finished_; }
+
+    // Until another copy finishes after the count was read...
+    synchronized void awaitFinished(long finished) throws IOException {
+        try {
+            while(finished_ == finished && inFlight_ > 0)
+                wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a worker!");
+        }
+    }
+
+    // Until every submitted copy is done...
+    synchronized void awaitIdle() throws IOException {
+        try {
+            while(inFlight_ > 0)
+                wait();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the workers!");
+        }
+    }
+
+    // Copies wrap their streams with it...
+    CpuLimit getCpuLimit() { return cpu_; }
+
+    // Summed over the devices...
+    synchronized int getWorkers() {
+        int workers = 0;
+        for(Lane lane: lanes_.values())
+            workers += lane.limit_;
+        return Math.max(workers, min_);
+    }
+
+    synchronized int getPeakWorkers() { return Math.max(peak_, min_); }
+    synchronized int getDevices() { return Math.max(1, lanes_.size()); }
+
+    @Override
+    public void close() {
+        executor_.shutdown();
+    }
+
+    private Lane lane(Object device) {
+        Lane lane = lanes_.get(device);
+        if(lane == null) {
+            lane = new Lane();
+            lanes_.put(device, lane);
+            peak_ = Math.max(peak_, getWorkers());
+        }
+        return lane;
+    }
+
+    private synchronized void finished(Lane lane, long bytes, long nanos) {
+        lane.inFlight_ -= 1;
+        inFlight_ -= 1;
+        finished_ += 1;
+        if(lane.finished(bytes, nanos))
+            peak_ = Math.max(peak_, getWorkers());
+        notifyAll();
+    }
+
+    // The workers of one device with their own throughput samples; guarded by the pool...
+    private final class Lane {
+        Lane() {
+            limit_ = min_;
+            windowStart_ = System.nanoTime();
+        }
+
+        // True when the limit was sampled...
+        boolean finished(long bytes, long nanos) {
+            windowBytes_ += bytes + FILE_COST;
+            windowNanos_ += nanos;
+            windowFiles_ += 1;
+            long now = System.nanoTime();
+            if(now - windowStart_ < SAMPLE_NANOS || windowFiles_ < limit_)
+                return false;
+            adjust(now);
+            return true;
+        }
+
+        private void adjust(long now) {
+            double throughput = windowBytes_ * 1e9 / (now - windowStart_);
+            double latency = windowNanos_ / (double)windowBytes_; // Per byte, so file sizes do not skew it.
+            int limit = limit_;
+            int step = Math.max(1, limit / 8);
+            if(lastThroughput_ == 0.0)
+                limit += step; // First sample: start probing.
+            else if(throughput < lastThroughput_ * (1.0 - DROP))
+                limit = Math.min(limit - 1, (limit * 3) / 4);
+            else if(throughput > lastThroughput_ * (1.0 + GAIN))
+                limit += step;
+            else if(lastStep_ > 0 || latency > lastLatency_ * (1.0 + LATENCY_RISE)) {
+                limit -= step; // Past the knee: more workers only queue up...
+                hold_ = HOLD_SAMPLES;
+            } else if(hold_ > 0)
+                hold_ -= 1;
+            else
+                limit += step;
+            limit = Math.max(min_, Math.min(max_, limit));
+            if(limit != limit_)
+                log_.debug("Workers {} -> {} ({} KB/s)", limit_, limit, (long)(throughput / 1024.0));
+            lastStep_ = Integer.compare(limit, limit_);
+            limit_ = limit;
+            lastThroughput_ = throughput;
+            lastLatency_ = latency;
+            windowStart_ = now;
+            windowBytes_ = 0L;
+            windowNanos_ = 0L;
+            windowFiles_ = 0;
+        }
+
+        private int limit_;
+        private int inFlight_ = 0;
+        private long windowStart_;
+        private long windowBytes_ = 0L;
+        private long windowNanos_ = 0L;
+        private int windowFiles_ = 0;
+        private double lastThroughput_ = 0.0;
+        private double lastLatency_ = 0.0;
+        private int lastStep_ = 0;
+        private int hold_ = 0;
+    }
+
+    private final int min_;
+    private final int max_;
+    private final ExecutorService executor_;
+    private final CpuLimit cpu_;
+    private final Logger log_ = LogManager.getRootLogger();
+    private final Map<Object,Lane> lanes_ = new HashMap<>();
+    private int inFlight_ = 0;
+    private long finished_ = 0L;
+    private int peak_ = 0;
+
+    private static final long SAMPLE_NANOS = 2_000_000_000L;
+    private static final long FILE_COST = 64 * 1024; // Opening and closing a file costs about as much as this.
+    private static final double GAIN = 0.05;
+    private static final double DROP = 0.10;
+    private static final double LATENCY_RISE = 0.25;
+    private static final int HOLD_SAMPLES = 5; // Before probing for more workers again.
+}
@@ -0,0 +1,73 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Picks the compression for a single file from its extension and a fast trial compression of its first bytes.
+ * Already compressed formats are stored, poorly compressible data uses the fastest deflate level and highly
+ * compressible data uses the best level.
+ */
+final class AdaptiveCompression {
+    private AdaptiveCompression() {}
+
+    /**
+     * Choose the compression for a file.
+     *
+     * @param name The file name (only the extension is used).
+     * @param in The file stream; must support mark/reset for at least {@link #SAMPLE_SIZE} bytes. It is reset to the
+     *           start before returning.
+     * @return The chosen compression, never {@link Copier.Compression#Adaptive}.
+     * @throws IOException When the sample cannot be read.
+     */
+    static Copier.Compression choose(String name, InputStream in) throws IOException {
+        int dot = name.lastIndexOf('.');
+        if(dot >= 0 && STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)))
+            return Copier.Compression.Stored;
+        in.mark(SAMPLE_SIZE);
+        byte[] sample = in.readNBytes(SAMPLE_SIZE);
+        in.reset();
+        if(sample.length < MIN_SAMPLE_SIZE)
+            return Copier.Compression.Default; // Too little to judge, the cost is negligible anyway.
+        double ratio = (double)trialSize(sample) / (double)sample.length;
+        if(ratio >= STORED_RATIO)
+            return Copier.Compression.Stored;
+        if(ratio >= FAST_RATIO)
+            return Copier.Compression.Fast;
+        return Copier.Compression.High;
+    }
+
+    private static long trialSize(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] scratch = new byte[8192];
+            long total = 0L;
+            while(!deflater.finished())
+                total += deflater.deflate(scratch);
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int MIN_SAMPLE_SIZE = 512;
+    private static final double STORED_RATIO = 0.9;
+    private static final double FAST_RATIO = 0.6;
+    private static final Set<String> STORED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif", "jxl",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac", "wma",
+            "mp4", "m4v", "mkv", "mov", "avi", "webm", "wmv", "mpg", "mpeg",
+            "zip", "jar", "war", "ear", "apk", "whl", "gz", "tgz", "bz2", "xz", "txz", "zst", "lz4", "lzma", "7z",
+            "rar", "deb", "rpm", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub",
+            "aes", "gpg", "pgp");
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * The small plain-text header written (inside the encryption) in front of each copied file. It records how the
+ * payload was compressed and, for dictionary compression, the id of the dictionary. Files written before the header
+ * existed start directly with the gzip magic number and are read as {@link Copier.Compression#Default}. Version 2
+ * adds a flags byte (only written when a flag is set so other files stay readable by older versions);
+ * {@link #FLAG_SPARSE} means the payload is in {@link SparseCodec} form.
+ */
+final class BlobHeader {
+    private BlobHeader(Copier.Compression compression, int flags, int dictionaryId) {
+        compression_ = compression;
+        flags_ = flags;
+        dictionaryId_ = dictionaryId;
+    }
+
+    static void write(OutputStream out, Copier.Compression compression, CompressionDictionary dictionary, int flags)
+            throws IOException {
+        if(flags == 0)
+            out.write(new byte[] {MAGIC_0, MAGIC_1, VERSION_1, (byte)compression.id()});
+        else
+            out.write(new byte[] {MAGIC_0, MAGIC_1, VERSION_2, (byte)compression.id(), (byte)flags});
+        if(compression == Copier.Compression.Dictionary) {
+            int id = dictionary.id();
+            out.write(new byte[] {(byte)(id >>> 24), (byte)(id >>> 16), (byte)(id >>> 8), (byte)id});
+        }
+    }
+
+    /**
+     * Reads the header from the decrypted stream.
+     *
+     * @param in The pushback stream (at least 2 bytes of pushback) positioned at the start of the decrypted data.
+     * @return The header.
+     * @throws IOException On IO errors or an unknown header.
+     */
+    static BlobHeader read(PushbackInputStream in) throws IOException {
+        int b0 = in.read();
+        int b1 = in.read();
+        if(b0 < 0 || b1 < 0)
+            throw new EOFException("Encrypted file is too short to contain a header!");
+        if(b0 == GZIP_MAGIC_0 && b1 == GZIP_MAGIC_1) {
+            in.unread(new byte[] {(byte)b0, (byte)b1});
+            return new BlobHeader(Copier.Compression.Default, 0, 0);
+        }
+        if(b0 != MAGIC_0 || b1 != MAGIC_1)
+            throw new IOException("Unknown encrypted file format (bad magic number or wrong key)!");
+        int version = in.read();
+        int id = in.read();
+        if(version != VERSION_1 && version != VERSION_2)
+            throw new IOException("Unsupported encrypted file format version: " + version);
+        int flags = (version == VERSION_2) ? in.read() : 0;
+        if(flags < 0)
+            throw new EOFException("Encrypted file is too short to contain a header!");
+        if((flags & ~FLAG_SPARSE) != 0)
+            throw new IOException(String.format("Unsupported encrypted file flags: %02x", flags));
+        Copier.Compression compression = Copier.Compression.fromId(id);
+        int dictionaryId = (compression == Copier.Compression.Dictionary) ? readDictionaryId(in) : 0;
+        return new BlobHeader(compression, flags, dictionaryId);
+    }
+
+    Copier.Compression compression() { return compression_; }
+    boolean isSparse() { return (flags_ & FLAG_SPARSE) != 0; }
+    int dictionaryId() { return dictionaryId_; }
+
+    // Follows the header when the compression is Copier.Compression.Dictionary...
+    private static int readDictionaryId(InputStream in) throws IOException {
+        byte[] bytes = in.readNBytes(4);
+        if(bytes.length != 4)
+            throw new EOFException("Encrypted file is too short to contain a dictionary id!");
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    private static final byte MAGIC_0 = 'B';
+    private static final byte MAGIC_1 = 'K';
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION_2 = 2;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
+    static final int FLAG_SPARSE = 0x01;
+
+    private final Copier.Compression compression_;
+    private final int flags_;
+    private final int dictionaryId_;
+}
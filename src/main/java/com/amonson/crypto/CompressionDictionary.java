@@ -0,0 +1,116 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * A preset deflate dictionary shared by all small files of a backup set. Files compressed with it record its id
+ * (the Adler-32 of the dictionary bytes) so a file is never decompressed with the wrong dictionary.
+ */
+public final class CompressionDictionary {
+    /**
+     * Wrap existing dictionary bytes.
+     *
+     * @param bytes The dictionary contents (at most {@link #MAX_SIZE} bytes are useful to deflate).
+     */
+    public CompressionDictionary(byte[] bytes) {
+        bytes_ = bytes;
+        Adler32 adler = new Adler32();
+        adler.update(bytes);
+        id_ = (int)adler.getValue();
+    }
+
+    /**
+     * Build a dictionary from sample file contents. Lines that occur in more than one sample are kept, the most
+     * common ones last since deflate encodes matches closest to the data most cheaply.
+     *
+     * @param samples The contents of representative small files.
+     * @return The trained dictionary or null if the samples share nothing worth keeping.
+     */
+    public static CompressionDictionary train(List<byte[]> samples) {
+        Map<String,Integer> counts = new HashMap<>();
+        for(byte[] sample: samples) {
+            Set<String> seen = new HashSet<>();
+            for(String line: new String(sample, StandardCharsets.ISO_8859_1).split("\n")) {
+                if(line.length() >= MIN_LINE && line.length() <= MAX_LINE && seen.add(line))
+                    counts.merge(line, 1, Integer::sum);
+            }
+        }
+        List<Map.Entry<String,Integer>> common = new ArrayList<>();
+        for(Map.Entry<String,Integer> entry: counts.entrySet())
+            if(entry.getValue() > 1)
+                common.add(entry);
+        if(common.isEmpty())
+            return null;
+        // Highest value (occurrences times length) first so the dictionary is filled with the best lines...
+        common.sort((a, b) -> Long.compare((long)b.getValue() * b.getKey().length(),
+                (long)a.getValue() * a.getKey().length()));
+        List<String> chosen = new ArrayList<>();
+        int size = 0;
+        for(Map.Entry<String,Integer> entry: common) {
+            if(size + entry.getKey().length() + 1 > MAX_SIZE)
+                continue;
+            chosen.add(entry.getKey());
+            size += entry.getKey().length() + 1;
+        }
+        StringBuilder builder = new StringBuilder(size);
+        for(int i = chosen.size() - 1; i >= 0; i--) // ...then reversed so the best lines end up last.
+            builder.append(chosen.get(i)).append('\n');
+        return new CompressionDictionary(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Load an encrypted dictionary from a stream.
+     *
+     * @param input The encrypted dictionary; it is closed when done.
+     * @param key The decryption key.
+     * @return The dictionary.
+     * @throws IOException On IO or crypto errors.
+     */
+    public static CompressionDictionary load(InputStream input, KeyData key) throws IOException {
+        return new CompressionDictionary(Base64.getDecoder().decode(Copier.readStringDecrypted(input, key).trim()));
+    }
+
+    /**
+     * Save the dictionary encrypted to a stream.
+     *
+     * @param output The stream to write; it is closed when done.
+     * @param key The encryption key.
+     * @throws IOException On IO or crypto errors.
+     */
+    public void save(OutputStream output, KeyData key) throws IOException {
+        Copier.writeStringEncrypted(Base64.getEncoder().encodeToString(bytes_), output, key);
+    }
+
+    /**
+     * @return The id recorded in compressed files.
+     */
+    public int id() { return id_; }
+
+    byte[] bytes() { return bytes_; }
+
+    /** Deflate only looks back 32 KB so larger dictionaries are wasted. */
+    public static final int MAX_SIZE = 32 * 1024;
+    /** Files larger than this gain little from a dictionary and are compressed normally. */
+    public static final long MAX_FILE_SIZE = 32 * 1024;
+
+    private static final int MIN_LINE = 4;
+    private static final int MAX_LINE = 512;
+
+    private final byte[] bytes_;
+    private final int id_;
+}
@@ -12,8 +12,12 @@ import java.nio.file.StandardCopyOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Static class to handle plain or crypto file copies. Uses {@link EncryptedFileInputStream} and
@@ -31,14 +35,151 @@ public final class Copier {
      * @throws IOException For IOExceptions or crypto problems.
      */
     public static void copyFile(File source, File destination, KeyData key, Direction direction) throws IOException {
+        copyFile(source, destination, key, direction, Compression.Default);
+    }
+
+    /**
+     * Copy a source file to a destination file with encryption or decryption if key is not null.
+     *
+     * @param source The source file to copy from.
+     * @param destination The destination file to copy to/over.
+     * @param key The encryption/decryption key or null for a copy with no crypto.
+     * @param direction Whether to encrypt or decrypt the file during copy iff key is not null.
+     * @param compression The compression used when encrypting; decryption reads it from the file's header.
+     * @throws IOException For IOExceptions or crypto problems.
+     */
+    public static void copyFile(File source, File destination, KeyData key, Direction direction,
+                                Compression compression) throws IOException {
+        copyFile(source, destination, key, direction, compression, null);
+    }
+
+    /**
+     * Copy a source file to a destination file with encryption or decryption if key is not null.
+     *
+     * @param source The source file to copy from.
+     * @param destination The destination file to copy to/over.
+     * @param key The encryption/decryption key or null for a copy with no crypto.
+     * @param direction Whether to encrypt or decrypt the file during copy iff key is not null.
+     * @param compression The compression used when encrypting; decryption reads it from the file's header.
+     * @param dictionary When not null, small compressible files are compressed with this preset dictionary and
+     *                   decryption of such files requires it.
+     * @throws IOException For IOExceptions or crypto problems.
+     */
+    public static void copyFile(File source, File destination, KeyData key, Direction direction,
+                                Compression compression, CompressionDictionary dictionary) throws IOException {
         if(key == null)
             plainCopy(source, destination);
         else if(direction == Direction.Encryption)
-            encryptCopy(source, destination, key);
+            encryptCopy(source, destination, key, compression, dictionary);
         else
-            decryptCopy(source, destination, key);
+            decryptCopy(source, destination, key, dictionary);
     }
 
+    /**
+     * Compress and encrypt a stream into another stream.
+     *
+     * @param source The plain data; it is read to its end but not closed.
+     * @param name The source name; only its extension is used by {@link Compression#Adaptive}.
+     * @param length The source length if known (for choosing dictionary compression) or -1.
+     * @param destination Receives the encrypted data and is closed when done.
+     * @param key The encryption key.
+     * @param compression The compression to use.
+     * @param dictionary When not null, small compressible sources are compressed with this preset dictionary.
+     * @throws IOException For IOExceptions or crypto problems.
+     */
+    public static void encrypt(InputStream source, String name, long length, OutputStream destination, KeyData key,
+                               Compression compression, CompressionDictionary dictionary) throws IOException {
+        InputStream in = new BufferedInputStream(source, AdaptiveCompression.SAMPLE_SIZE);
+        try {
+            if(compression == Compression.Adaptive)
+                compression = AdaptiveCompression.choose(name, in);
+            if(dictionary != null && compression != Compression.Stored && length >= 0 &&
+                    length <= CompressionDictionary.MAX_FILE_SIZE)
+                compression = Compression.Dictionary;
+            else if(compression == Compression.Dictionary)
+                compression = Compression.Default; // Dictionary only applies to small files with a dictionary.
+            boolean sparse = length >= SparseCodec.MIN_LENGTH;
+            try (OutputStream encryptStream = new EncryptedFileOutputStream(destination, key)) {
+                BlobHeader.write(encryptStream, compression, dictionary, sparse ? BlobHeader.FLAG_SPARSE : 0);
+                try (OutputStream compressStream = compression.wrap(encryptStream, dictionary)) {
+                    if(sparse)
+                        SparseCodec.encode(in, compressStream);
+                    else
+                        in.transferTo(compressStream);
+                }
+            }
+        } catch(InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException |
+                NoSuchPaddingException e) {
+            destination.close();
+            throw new IOException("Encryption error occurred!", e);
+        }
+    }
+
+    /**
+     * Decrypt and decompress a stream into another stream.
+     *
+     * @param source The encrypted data; it is closed when done.
+     * @param destination Receives the plain data; it is not closed. Holes in sparse files are skipped rather than
+     *                    written when it is a {@link FileOutputStream}.
+     * @param key The decryption key.
+     * @param dictionary The set's compression dictionary or null if it has none.
+     * @throws IOException For IOExceptions or crypto problems.
+     */
+    public static void decrypt(InputStream source, OutputStream destination, KeyData key,
+                               CompressionDictionary dictionary) throws IOException {
+        Payload payload = openPayload(source, key, dictionary);
+        try (InputStream decompressStream = payload.data()) {
+            if(payload.header().isSparse())
+                SparseCodec.decode(decompressStream, destination);
+            else
+                decompressStream.transferTo(destination);
+        }
+    }
+
+    /**
+     * Open a stream that decrypts and decompresses as it is read, for readers that only want part of the data or
+     * want it at their own pace.
+     *
+     * @param source The encrypted data; it is closed with the returned stream.
+     * @param key The decryption key.
+     * @param dictionary The set's compression dictionary or null if it has none.
+     * @return The plain data; holes of sparse files read as zeros.
+     * @throws IOException For IOExceptions or crypto problems.
+     */
+    public static InputStream openDecrypting(InputStream source, KeyData key, CompressionDictionary dictionary)
+            throws IOException {
+        Payload payload = openPayload(source, key, dictionary);
+        return payload.header().isSparse() ? SparseCodec.decoding(payload.data()) : payload.data();
+    }
+
+    // Decrypts and reads the header; the data is still compressed (or in sparse form)...
+    private static Payload openPayload(InputStream source, KeyData key, CompressionDictionary dictionary)
+            throws IOException {
+        PushbackInputStream decryptStream;
+        try {
+            decryptStream = new PushbackInputStream(new EncryptedFileInputStream(source, key), 2);
+        } catch(InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException |
+                NoSuchPaddingException e) {
+            source.close();
+            throw new IOException("Decryption error occurred!", e);
+        }
+        try {
+            BlobHeader header = BlobHeader.read(decryptStream);
+            Compression compression = header.compression();
+            if(compression == Compression.Dictionary) {
+                if(dictionary == null || dictionary.id() != header.dictionaryId())
+                    throw new IOException(String.format("Missing or wrong compression dictionary (needs id %08x)!",
+                            header.dictionaryId()));
+            }
+            return new Payload(header, compression.wrap(decryptStream, dictionary));
+        } catch(IOException | RuntimeException e) {
+            decryptStream.close();
+            throw e;
+        }
+    }
+
+    private record Payload(BlobHeader header, InputStream data) {}
+
     /**
      * Write a string to a file and encrypt it.
      *
@@ -48,14 +189,38 @@ public final class Copier {
      * @throws IOException On IO or crypto errors.
      */
     public static void writeStringEncrypted(String data, File outputFile, KeyData key) throws IOException {
-        try (InputStream fileStream = new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8))) {
-            try (OutputStream encryptStream = new EncryptedFileOutputStream(outputFile, key)) {
-                try (OutputStream gzipStream = new GZIPOutputStream(encryptStream)) {
-                    fileStream.transferTo(gzipStream);
-                }
-            }
+        writeStringEncrypted(data, new FileOutputStream(outputFile), key);
+    }
+
+    /**
+     * Write a string to a stream and encrypt it.
+     *
+     * @param data The string to write.
+     * @param output The stream to write to; it is closed when done.
+     * @param key The encryption key.
+     * @throws IOException On IO or crypto errors.
+     */
+    public static void writeStringEncrypted(String data, OutputStream output, KeyData key) throws IOException {
+        try (OutputStream gzipStream = openEncrypted(output, key)) {
+            gzipStream.write(data.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Open a stream that compresses and encrypts text in the same format as {@link #writeStringEncrypted} (for
+     * content too large to hold as one string).
+     *
+     * @param output The stream to write to; it is closed with the returned stream.
+     * @param key The encryption key.
+     * @return The stream to write the plain text to.
+     * @throws IOException On IO or crypto errors.
+     */
+    public static OutputStream openEncrypted(OutputStream output, KeyData key) throws IOException {
+        try {
+            return new GZIPOutputStream(new EncryptedFileOutputStream(output, key), BUFFER_SIZE);
         } catch(InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException |
                 NoSuchPaddingException e) {
+            output.close();
             throw new IOException("Encryption error occurred!", e);
         }
     }
@@ -69,42 +234,55 @@ public final class Copier {
      * @throws IOException On IO or crypto errors.
      */
     public static String readStringDecrypted(File inputFile, KeyData key) throws IOException {
-        try (InputStream decryptStream = new EncryptedFileInputStream(inputFile, key)) {
-            try (ByteArrayOutputStream fileStream = new ByteArrayOutputStream()) {
-                try (InputStream gzipStream = new GZIPInputStream(decryptStream)) {
-                    gzipStream.transferTo(fileStream);
-                    return fileStream.toString(StandardCharsets.UTF_8);
-                }
-            }
+        return readStringDecrypted(new FileInputStream(inputFile), key);
+    }
+
+    /**
+     * Read a string from a stream and decrypting it.
+     *
+     * @param input Stream to read encrypted data from; it is closed when done.
+     * @param key The decryption key.
+     * @return The decrypted string.
+     * @throws IOException On IO or crypto errors.
+     */
+    public static String readStringDecrypted(InputStream input, KeyData key) throws IOException {
+        try (InputStream gzipStream = openDecrypted(input, key)) {
+            return new String(gzipStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Open a stream over text written by {@link #writeStringEncrypted} or {@link #openEncrypted} without reading it
+     * all into memory.
+     *
+     * @param input Stream to read encrypted data from; it is closed with the returned stream.
+     * @param key The decryption key.
+     * @return The decrypted plain text.
+     * @throws IOException On IO or crypto errors.
+     */
+    public static InputStream openDecrypted(InputStream input, KeyData key) throws IOException {
+        try {
+            return new GZIPInputStream(new EncryptedFileInputStream(input, key), BUFFER_SIZE);
         } catch(InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException |
                 NoSuchPaddingException e) {
+            input.close();
             throw new IOException("Decryption error occurred!", e);
         }
     }
 
-    private static void encryptCopy(File source, File destination, KeyData key) throws IOException {
+    private static void encryptCopy(File source, File destination, KeyData key, Compression compression,
+                                    CompressionDictionary dictionary) throws IOException {
         try (InputStream fileStream = new FileInputStream(source)) {
-            try (OutputStream encryptStream = new EncryptedFileOutputStream(destination, key)) {
-                try (OutputStream gzipStream = new GZIPOutputStream(encryptStream)) {
-                    fileStream.transferTo(gzipStream);
-                }
-            }
-        } catch(InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException |
-                NoSuchPaddingException e) {
-            throw new IOException("Encryption error occurred!", e);
+            encrypt(fileStream, source.getName(), source.length(), new FileOutputStream(destination), key,
+                    compression, dictionary);
         }
     }
 
-    private static void decryptCopy(File source, File destination, KeyData key) throws IOException {
-        try (InputStream decryptStream = new EncryptedFileInputStream(source, key)) {
-            try (OutputStream fileStream = new FileOutputStream(destination)) {
-                try (InputStream gzipStream = new GZIPInputStream(decryptStream)) {
-                    gzipStream.transferTo(fileStream);
-                }
-            }
-        } catch(InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException |
-                NoSuchPaddingException e) {
-            throw new IOException("Decryption error occurred!", e);
+    private static void decryptCopy(File source, File destination, KeyData key, CompressionDictionary dictionary)
+            throws IOException {
+        InputStream encrypted = new FileInputStream(source);
+        try (OutputStream fileStream = new FileOutputStream(destination)) {
+            decrypt(encrypted, fileStream, key, dictionary);
         }
     }
 
@@ -117,4 +295,83 @@ public final class Copier {
         Encryption,
         Decryption
     }
+
+    /**
+     * How file contents are compressed before encryption. The choice is recorded in each encrypted file so
+     * decryption never needs to be told. {@link #Adaptive} picks one of the others per file.
+     */
+    public enum Compression {
+        Adaptive(-1, Deflater.DEFAULT_COMPRESSION),
+        Stored(0, Deflater.NO_COMPRESSION),
+        Fast(1, Deflater.BEST_SPEED),
+        Default(2, Deflater.DEFAULT_COMPRESSION),
+        High(3, Deflater.BEST_COMPRESSION),
+        /** Raw deflate with a preset {@link CompressionDictionary}; chosen automatically for small files. */
+        Dictionary(4, Deflater.DEFAULT_COMPRESSION);
+
+        Compression(int id, int level) {
+            id_ = id;
+            level_ = level;
+        }
+
+        /**
+         * Case-insensitive lookup by name.
+         *
+         * @param name The compression name (e.g. "adaptive" or "stored").
+         * @return The matching compression.
+         * @throws IllegalArgumentException When the name is not a known compression.
+         */
+        public static Compression fromString(String name) {
+            for(Compression compression: values())
+                if(compression.name().equalsIgnoreCase(name))
+                    return compression;
+            throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+
+        static Compression fromId(int id) throws IOException {
+            for(Compression compression: values())
+                if(compression.id_ == id && compression != Adaptive)
+                    return compression;
+            throw new IOException("Unknown compression id in encrypted file: " + id);
+        }
+
+        int id() { return id_; }
+
+        OutputStream wrap(OutputStream out, CompressionDictionary dictionary) throws IOException {
+            if(this == Stored)
+                return out;
+            if(this == Dictionary) {
+                Deflater deflater = new Deflater(level_, true);
+                deflater.setDictionary(dictionary.bytes());
+                return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                    @Override public void close() throws IOException {
+                        try { super.close(); } finally { deflater.end(); }
+                    }
+                };
+            }
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                { def.setLevel(level_); }
+            };
+        }
+
+        InputStream wrap(InputStream in, CompressionDictionary dictionary) throws IOException {
+            if(this == Stored)
+                return in;
+            if(this == Dictionary) {
+                Inflater inflater = new Inflater(true);
+                inflater.setDictionary(dictionary.bytes());
+                return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                    @Override public void close() throws IOException {
+                        try { super.close(); } finally { inflater.end(); }
+                    }
+                };
+            }
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+
+        private final int id_;
+        private final int level_;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
 }
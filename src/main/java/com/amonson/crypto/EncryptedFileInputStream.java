@@ -52,6 +52,22 @@ public class EncryptedFileInputStream extends InputStream {
         init(file);
     }
 
+    /**
+     * Wrap any input stream (e.g. a storage backend object) with AES decryption.
+     * @param in Stream of encrypted bytes; it is closed with this stream.
+     * @param key Key object for crypto.
+     * @throws InvalidAlgorithmParameterException When the AES/CBC is not supported.
+     * @throws NoSuchAlgorithmException When the AES algorithm is not supported.
+     * @throws InvalidKeyException When a bad key is used, usually the wrong bit length.
+     * @throws NoSuchPaddingException When the AES/CBC/PKCS5PADDING is not supported.
+     */
+    public EncryptedFileInputStream(InputStream in, KeyData key) throws InvalidAlgorithmParameterException,
+            NoSuchAlgorithmException, InvalidKeyException, NoSuchPaddingException {
+        super();
+        key_ = key;
+        init(in);
+    }
+
     /**
      * Read a byte.
      * @return The byte read.
@@ -98,11 +114,16 @@ public class EncryptedFileInputStream extends InputStream {
 
     private void init(File file) throws NoSuchPaddingException, NoSuchAlgorithmException,
             InvalidAlgorithmParameterException, InvalidKeyException, FileNotFoundException {
+        init(new FileInputStream(file));
+    }
+
+    private void init(InputStream in) throws NoSuchPaddingException, NoSuchAlgorithmException,
+            InvalidAlgorithmParameterException, InvalidKeyException {
         IvParameterSpec ivSpec = new IvParameterSpec(key_.IVAsBytes());
         SecretKeySpec keySpec = new SecretKeySpec(key_.keyAsBytes(), "AES");
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
         cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-        in_ = new CipherInputStream(new FileInputStream(file), cipher);
+        in_ = new CipherInputStream(in, cipher);
     }
 
     private final KeyData key_;
@@ -51,6 +51,22 @@ public class EncryptedFileOutputStream extends OutputStream {
         init(file);
     }
 
+    /**
+     * Wrap any output stream (e.g. a storage backend object) with AES encryption.
+     * @param out Stream to write the encrypted bytes to; it is closed with this stream.
+     * @param key Key object for crypto.
+     * @throws InvalidAlgorithmParameterException When the AES/CBC is not supported.
+     * @throws NoSuchAlgorithmException When the AES algorithm is not supported.
+     * @throws InvalidKeyException When a bad key is used, usually the wrong bit length.
+     * @throws NoSuchPaddingException When the AES/CBC/PKCS5PADDING is not supported.
+     */
+    public EncryptedFileOutputStream(OutputStream out, KeyData key) throws NoSuchPaddingException,
+            NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+        super();
+        key_ = key;
+        init(out);
+    }
+
     /**
      * Write a byte to the stream.
      * @param n The byte to write.
@@ -105,11 +121,16 @@ public class EncryptedFileOutputStream extends OutputStream {
 
     private void init(File file) throws NoSuchPaddingException, NoSuchAlgorithmException,
             InvalidAlgorithmParameterException, InvalidKeyException, FileNotFoundException {
+        init(new FileOutputStream(file));
+    }
+
+    private void init(OutputStream out) throws NoSuchPaddingException, NoSuchAlgorithmException,
+            InvalidAlgorithmParameterException, InvalidKeyException {
         IvParameterSpec ivSpec = new IvParameterSpec(key_.IVAsBytes());
         SecretKeySpec keySpec = new SecretKeySpec(key_.keyAsBytes(), "AES");
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
         cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-        out_ = new CipherOutputStream(new FileOutputStream(file), cipher);
+        out_ = new CipherOutputStream(out, cipher);
     }
 
     private final KeyData key_;
@@ -0,0 +1,166 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.crypto;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Encodes a file as extents so runs of zero blocks (holes in VM images, database files, ...) are neither compressed
+ * nor written back on restore. The encoded form is a sequence of records, each a hole length (long) followed by a
+ * data length (int) and that many bytes of data; the last record has a data length of -1 and its hole length is the
+ * trailing hole.
+ */
+final class SparseCodec {
+    private SparseCodec() {}
+
+    static void encode(InputStream in, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        byte[] run = new byte[MAX_RUN];
+        int used = 0;
+        long hole = 0L;
+        while(true) {
+            int count = in.readNBytes(run, used, BLOCK_SIZE);
+            if(count == 0)
+                break;
+            if(Arrays.mismatch(run, used, used + count, ZEROS, 0, count) == -1) {
+                if(used > 0) {
+                    writeRecord(data, hole, run, used);
+                    hole = 0L;
+                    used = 0;
+                }
+                hole += count;
+            } else {
+                used += count;
+                if(used + BLOCK_SIZE > run.length) {
+                    writeRecord(data, hole, run, used);
+                    hole = 0L;
+                    used = 0;
+                }
+            }
+            if(count < BLOCK_SIZE)
+                break;
+        }
+        if(used > 0) {
+            writeRecord(data, hole, run, used);
+            hole = 0L;
+        }
+        data.writeLong(hole);
+        data.writeInt(-1);
+        data.flush();
+    }
+
+    static void decode(InputStream in, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        FileChannel channel = (out instanceof FileOutputStream file) ? file.getChannel() : null;
+        byte[] buffer = new byte[MAX_RUN];
+        while(true) {
+            long hole = data.readLong();
+            int length = data.readInt();
+            if(length > MAX_RUN || hole < 0L)
+                throw new IOException("Corrupt sparse file extents!");
+            if(length < 0) {
+                skipHole(channel, out, hole, true);
+                break;
+            }
+            skipHole(channel, out, hole, false);
+            data.readFully(buffer, 0, length);
+            out.write(buffer, 0, length);
+        }
+        if(data.read() != -1)
+            throw new IOException("Unexpected data after the sparse file extents!");
+    }
+
+    // The decoded data as a stream; holes read as zeros...
+    static InputStream decoding(InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+        return new InputStream() {
+            @Override public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            @Override public int read(byte[] bytes, int off, int len) throws IOException {
+                if(len == 0)
+                    return 0;
+                while(hole_ == 0L && left_ == 0) {
+                    if(last_) {
+                        if(!checked_ && data.read() != -1)
+                            throw new IOException("Unexpected data after the sparse file extents!");
+                        checked_ = true;
+                        return -1;
+                    }
+                    hole_ = data.readLong();
+                    left_ = data.readInt();
+                    if(left_ > MAX_RUN || hole_ < 0L)
+                        throw new IOException("Corrupt sparse file extents!");
+                    if(left_ < 0) {
+                        left_ = 0;
+                        last_ = true;
+                    }
+                }
+                if(hole_ > 0L) {
+                    int count = (int)Math.min(len, hole_);
+                    Arrays.fill(bytes, off, off + count, (byte)0);
+                    hole_ -= count;
+                    return count;
+                }
+                int count = data.read(bytes, off, Math.min(len, left_));
+                if(count < 0)
+                    throw new EOFException("Sparse file extents are cut short!");
+                left_ -= count;
+                return count;
+            }
+
+            @Override public void close() throws IOException {
+                data.close();
+            }
+
+            private long hole_ = 0L;
+            private int left_ = 0;
+            private boolean last_ = false;
+            private boolean checked_ = false;
+        };
+    }
+
+    // Seeking past the end of a file leaves a hole; a trailing hole still needs its last byte written to set the
+    // file length...
+    private static void skipHole(FileChannel channel, OutputStream out, long hole, boolean last) throws IOException {
+        if(hole == 0L)
+            return;
+        if(channel == null) {
+            for(long left = hole; left > 0L; left -= Math.min(left, ZEROS.length))
+                out.write(ZEROS, 0, (int)Math.min(left, ZEROS.length));
+            return;
+        }
+        out.flush();
+        if(last) {
+            channel.position(channel.position() + hole - 1L);
+            if(channel.write(ByteBuffer.wrap(ZEROS, 0, 1)) != 1)
+                throw new EOFException("Failed to extend the sparse file!");
+        } else
+            channel.position(channel.position() + hole);
+    }
+
+    private static void writeRecord(DataOutputStream data, long hole, byte[] run, int used) throws IOException {
+        data.writeLong(hole);
+        data.writeInt(used);
+        data.write(run, 0, used);
+    }
+
+    static final long MIN_LENGTH = 1024L * 1024L; // Smaller files gain little from extents.
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_RUN = 256 * BLOCK_SIZE;
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+}
@@ -0,0 +1,268 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Stores objects as files below a root folder; key "ab/cd/x.aes" is the file "root/ab/cd/x.aes". An object is
+ * written under a temporary name and renamed over its key once complete, so a crash or kill never leaves a
+ * truncated object behind. Written objects are forced to disk in groups (see {@link #sync()}) instead of one fsync
+ * per file.
+ */
+public class LocalStorageBackend implements StorageBackend {
+    /**
+     * @param root The folder holding the objects; it is created on the first write.
+     */
+    public LocalStorageBackend(File root) {
+        root_ = root.getAbsoluteFile();
+    }
+
+    /**
+     * @param key The object key.
+     * @return The file that holds the object.
+     */
+    public File toFile(String key) {
+        return new File(root_, key.replace('/', File.separatorChar));
+    }
+
+    @Override
+    public OutputStream put(String key) throws IOException {
+        File file = toFile(key);
+        if(root_.exists() && !root_.isDirectory())
+            throw new IOException("Destination path exists and is not a folder: " + root_);
+        Files.createDirectories(file.getParentFile().toPath());
+        File partial = new File(file.getParentFile(), file.getName() + "." +
+                Long.toHexString(ThreadLocalRandom.current().nextLong()) + PARTIAL);
+        return new PartialOutputStream(partial, file);
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        return new FileInputStream(toFile(key));
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(toFile(key).toPath(), StandardOpenOption.READ);
+        channel.position(offset);
+        return new FilterInputStream(Channels.newInputStream(channel)) {
+            @Override public int read() throws IOException {
+                if(remaining_ <= 0)
+                    return -1;
+                int b = super.read();
+                if(b >= 0)
+                    remaining_--;
+                return b;
+            }
+            @Override public int read(byte[] bytes, int off, int len) throws IOException {
+                if(remaining_ <= 0)
+                    return -1;
+                int count = super.read(bytes, off, (int)Math.min(len, remaining_));
+                if(count > 0)
+                    remaining_ -= count;
+                return count;
+            }
+            private long remaining_ = length;
+        };
+    }
+
+    @Override
+    public long size(String key) {
+        File file = toFile(key);
+        return file.isFile() ? file.length() : -1L;
+    }
+
+    @Override
+    public List<String> list(String prefix) throws IOException {
+        List<String> keys = new ArrayList<>();
+        if(!root_.isDirectory())
+            return keys;
+        Path root = root_.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile).forEach((path) -> {
+                String key = root.relativize(path).toString().replace(File.separatorChar, '/');
+                if(key.startsWith(prefix))
+                    keys.add(key);
+            });
+        }
+        return keys;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        File file = toFile(key);
+        Files.deleteIfExists(file.toPath());
+        removeEmptyParents(file);
+    }
+
+    @Override
+    public void rename(String from, String to) throws IOException {
+        File source = toFile(from);
+        File target = toFile(to);
+        Files.createDirectories(target.getParentFile().toPath());
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        removeEmptyParents(source);
+        unsynced(target, source.getParentFile());
+    }
+
+    /**
+     * Force the objects written or renamed since the last group to disk, then their folders so the renames are
+     * durable too. Also reports a failure to force an earlier group.
+     *
+     * @throws IOException When forcing failed; objects written since the last successful sync may be lost.
+     */
+    @Override
+    public void sync() throws IOException {
+        forcing_.lock();
+        try {
+            force();
+        } finally {
+            forcing_.unlock();
+        }
+        IOException error = syncError_;
+        syncError_ = null;
+        if(error != null)
+            throw error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+    }
+
+    @Override
+    public String describe(String key) {
+        return toFile(key).toString();
+    }
+
+    // Drop sub-folders left empty (delete() fails harmlessly on folders that are not)...
+    private void removeEmptyParents(File file) {
+        for(File parent = file.getParentFile(); parent != null && !parent.equals(root_) && parent.delete();)
+            parent = parent.getParentFile();
+    }
+
+    // The writer that fills a group forces it unless another group is being forced; sync() forces the rest...
+    private void unsynced(File file, File folder) {
+        int count;
+        synchronized(unsyncedFiles_) {
+            unsyncedFiles_.add(file);
+            if(folder != null)
+                unsyncedFolders_.add(folder);
+            count = unsyncedFiles_.size();
+        }
+        if(count >= GROUP_COMMIT && forcing_.tryLock()) {
+            try {
+                force();
+            } catch(IOException e) {
+                syncError_ = e; // Reported by the next sync() so the index is not written.
+            } finally {
+                forcing_.unlock();
+            }
+        }
+    }
+
+    // Called holding forcing_ so sync() waits for a group another thread is forcing...
+    private void force() throws IOException {
+        List<File> files;
+        Set<File> folders;
+        synchronized(unsyncedFiles_) {
+            files = new ArrayList<>(unsyncedFiles_);
+            folders = new LinkedHashSet<>(unsyncedFolders_);
+            unsyncedFiles_.clear();
+            unsyncedFolders_.clear();
+        }
+        for(File file: files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch(NoSuchFileException e) {
+                continue; // Replaced or deleted since.
+            }
+            folders.add(file.getParentFile());
+        }
+        if(File.separatorChar == '\\')
+            return; // Windows cannot open a folder to force it; its renames are as durable as they get.
+        for(File folder: folders) {
+            try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch(NoSuchFileException e) {
+                // Removed once empty.
+            }
+        }
+    }
+
+    // Written to its temporary file, renamed over the object by a close() after no failed write...
+    private final class PartialOutputStream extends FilterOutputStream implements Abortable {
+        PartialOutputStream(File partial, File target) throws IOException {
+            super(new FileOutputStream(partial));
+            partial_ = partial;
+            target_ = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch(IOException e) {
+                failed_ = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                out.write(bytes, offset, length);
+            } catch(IOException e) {
+                failed_ = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void abort() {
+            failed_ = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed_)
+                return;
+            closed_ = true;
+            try {
+                out.close();
+                if(!failed_)
+                    Files.move(partial_.toPath(), target_.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(partial_.toPath()); // Only still there when the write failed.
+            }
+            if(!failed_)
+                unsynced(target_, null);
+        }
+
+        private final File partial_;
+        private final File target_;
+        private volatile boolean failed_ = false; // Also set by abort() from the thread feeding a tee.
+        private boolean closed_ = false;
+    }
+
+    private final File root_;
+    private final List<File> unsyncedFiles_ = new ArrayList<>();
+    private final Set<File> unsyncedFolders_ = new LinkedHashSet<>();
+    private final ReentrantLock forcing_ = new ReentrantLock();
+    private volatile IOException syncError_ = null;
+
+    private static final int GROUP_COMMIT = 1024; // Files forced together.
+}
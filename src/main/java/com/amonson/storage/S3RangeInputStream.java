@@ -0,0 +1,95 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a large object as consecutive part sized ranges fetched in parallel (up to the backend's concurrency ahead
+ * of the reader) and returned in order.
+ */
+class S3RangeInputStream extends InputStream {
+    S3RangeInputStream(S3StorageBackend backend, String key, long size) {
+        backend_ = backend;
+        key_ = key;
+        size_ = size;
+        fill();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int count = read(one, 0, 1);
+        return (count < 0) ? -1 : (one[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+        while(current_ == null || position_ == current_.length) {
+            if(pending_.isEmpty())
+                return -1;
+            current_ = take(pending_.poll());
+            position_ = 0;
+            fill();
+        }
+        int count = Math.min(len, current_.length - position_);
+        System.arraycopy(current_, position_, bytes, off, count);
+        position_ += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        for(Future<byte[]> future: pending_)
+            future.cancel(true);
+        pending_.clear();
+        current_ = null;
+    }
+
+    private void fill() {
+        while(pending_.size() < backend_.concurrency() && nextOffset_ < size_) {
+            long offset = nextOffset_;
+            long length = Math.min(backend_.partSize(), size_ - offset);
+            nextOffset_ += length;
+            pending_.add(backend_.executor().submit(() -> {
+                try (InputStream in = backend_.getRange(key_, offset, length)) {
+                    byte[] data = in.readAllBytes();
+                    if(data.length != length)
+                        throw new IOException(String.format("Short range read of %s at %d (%d of %d bytes)!",
+                                backend_.describe(key_), offset, data.length, length));
+                    return data;
+                }
+            }));
+        }
+    }
+
+    private byte[] take(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + backend_.describe(key_));
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException io)
+                throw io;
+            throw new IOException("Failed to read " + backend_.describe(key_), e.getCause());
+        }
+    }
+
+    private final S3StorageBackend backend_;
+    private final String key_;
+    private final long size_;
+    private final ArrayDeque<Future<byte[]>> pending_ = new ArrayDeque<>();
+    private long nextOffset_ = 0L;
+    private byte[] current_ = null;
+    private int position_ = 0;
+}
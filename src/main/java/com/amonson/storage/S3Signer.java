@@ -0,0 +1,152 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * AWS Signature Version 4 request signing for the S3 API (also accepted by MinIO, Ceph and most S3-compatible
+ * stores).
+ */
+final class S3Signer {
+    S3Signer(String accessKey, String secretKey, String sessionToken, String region) {
+        accessKey_ = accessKey;
+        secretKey_ = secretKey;
+        sessionToken_ = sessionToken;
+        region_ = region;
+    }
+
+    /**
+     * Add the signing headers to a request builder.
+     *
+     * @param builder The request builder (URI and method set by the caller).
+     * @param method The HTTP method.
+     * @param uri The full request URI (query parameters must already be encoded with {@link #encode}).
+     * @param extraHeaders Additional headers to send and sign (lower-case names).
+     * @param payloadHash The hex SHA-256 of the body.
+     */
+    void sign(HttpRequest.Builder builder, String method, URI uri, Map<String,String> extraHeaders,
+              String payloadHash) {
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        String amzDate = now.format(AMZ_DATE);
+        String date = amzDate.substring(0, 8);
+        TreeMap<String,String> headers = new TreeMap<>(extraHeaders);
+        headers.put("host", hostHeader(uri));
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        if(sessionToken_ != null)
+            headers.put("x-amz-security-token", sessionToken_);
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaders = new StringBuilder();
+        for(Map.Entry<String,String> header: headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().strip()).append('\n');
+            if(signedHeaders.length() > 0)
+                signedHeaders.append(';');
+            signedHeaders.append(header.getKey());
+        }
+        String canonicalRequest = method + "\n" + uri.getRawPath() + "\n" + canonicalQuery(uri.getRawQuery()) +
+                "\n" + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+        String scope = date + "/" + region_ + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" +
+                sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8));
+        byte[] key = hmac(("AWS4" + secretKey_).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region_);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(key, stringToSign));
+
+        for(Map.Entry<String,String> header: headers.entrySet())
+            if(!header.getKey().equals("host")) // Set by the HTTP client itself.
+                builder.header(header.getKey(), header.getValue());
+        builder.header("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey_ + "/" + scope +
+                ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    }
+
+    /**
+     * RFC 3986 encoding as S3 expects it; '/' is kept when encoding a key for a path.
+     *
+     * @param value The value to encode.
+     * @param keepSlash true to leave '/' unencoded.
+     * @return The encoded value.
+     */
+    static String encode(String value, boolean keepSlash) {
+        String encoded = URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20")
+                .replace("*", "%2A").replace("%7E", "~");
+        return keepSlash ? encoded.replace("%2F", "/") : encoded;
+    }
+
+    static String sha256Hex(byte[] data) {
+        return sha256Hex(data, 0, data.length);
+    }
+
+    static String sha256Hex(byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+    }
+
+    private static String canonicalQuery(String rawQuery) {
+        if(rawQuery == null || rawQuery.isEmpty())
+            return "";
+        TreeMap<String,String> sorted = new TreeMap<>();
+        for(String pair: rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if(eq < 0)
+                sorted.put(pair, "");
+            else
+                sorted.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        StringBuilder builder = new StringBuilder();
+        for(Map.Entry<String,String> entry: sorted.entrySet()) {
+            if(builder.length() > 0)
+                builder.append('&');
+            builder.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    private static String hostHeader(URI uri) {
+        int port = uri.getPort();
+        boolean defaultPort = port < 0 || (port == 80 && "http".equals(uri.getScheme())) ||
+                (port == 443 && "https".equals(uri.getScheme()));
+        return defaultPort ? uri.getHost() : uri.getHost() + ":" + port;
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available!", e);
+        }
+    }
+
+    static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final String accessKey_;
+    private final String secretKey_;
+    private final String sessionToken_;
+    private final String region_;
+}
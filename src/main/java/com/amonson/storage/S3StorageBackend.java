@@ -0,0 +1,284 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores objects in an S3-compatible object store (AWS S3, MinIO, Ceph RGW, ...). Large objects are uploaded as
+ * parallel multipart uploads and read back with parallel ranged GETs so a single stream is not limited by one
+ * connection's throughput.
+ */
+public class S3StorageBackend implements StorageBackend {
+    /**
+     * Create the backend.
+     *
+     * @param endpoint The service endpoint, e.g. "https://s3.us-east-1.amazonaws.com" or "http://localhost:9000".
+     * @param region The signing region (e.g. "us-east-1"; MinIO accepts any).
+     * @param bucket The bucket name.
+     * @param prefix The key prefix for all objects ("" or ending with '/').
+     * @param accessKey The access key id.
+     * @param secretKey The secret access key.
+     * @param sessionToken The session token for temporary credentials or null.
+     * @param partSize The multipart part and ranged GET size in bytes (at least 5 MB).
+     * @param concurrency The maximum parallel part uploads or ranged GETs per stream.
+     */
+    public S3StorageBackend(URI endpoint, String region, String bucket, String prefix, String accessKey,
+                            String secretKey, String sessionToken, int partSize, int concurrency) {
+        if(partSize < MIN_PART_SIZE)
+            throw new IllegalArgumentException("The S3 part size must be at least 5 MB!");
+        String base = endpoint.toString();
+        endpoint_ = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        bucket_ = bucket;
+        prefix_ = (prefix == null) ? "" : prefix;
+        signer_ = new S3Signer(accessKey, secretKey, sessionToken, region);
+        partSize_ = partSize;
+        concurrency_ = Math.max(1, concurrency);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = (runnable) -> {
+            Thread thread = new Thread(runnable, "s3-transfer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor_ = Executors.newCachedThreadPool(factory);
+        client_ = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).executor(executor_).build();
+    }
+
+    /**
+     * Create the backend from an "s3://bucket/prefix" location and options. Credentials come from the
+     * AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY and AWS_SESSION_TOKEN environment variables so they never end up in
+     * a backup set file.
+     *
+     * @param location The "s3://bucket/optional/prefix" location.
+     * @param options "s3-endpoint", "s3-region", "s3-part-size-mb" and "s3-concurrency" (all optional).
+     * @return The new backend.
+     * @throws IOException When the location or credentials are missing or invalid.
+     */
+    public static S3StorageBackend fromLocation(String location, Map<String,String> options) throws IOException {
+        URI uri = URI.create(location);
+        String bucket = uri.getHost();
+        if(!"s3".equals(uri.getScheme()) || bucket == null)
+            throw new IOException("Not an s3://bucket/prefix location: " + location);
+        String prefix = (uri.getPath() == null) ? "" : uri.getPath().replaceAll("^/+", "");
+        if(!prefix.isEmpty() && !prefix.endsWith("/"))
+            prefix += "/";
+        String region = options.getOrDefault("s3-region", System.getenv().getOrDefault("AWS_REGION", "us-east-1"));
+        String endpoint = options.getOrDefault("s3-endpoint", "https://s3." + region + ".amazonaws.com");
+        String accessKey = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if(accessKey == null || secretKey == null)
+            throw new IOException("AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY must be set for " + location);
+        int partSize = Integer.parseInt(options.getOrDefault("s3-part-size-mb", "16")) * 1024 * 1024;
+        int concurrency = Integer.parseInt(options.getOrDefault("s3-concurrency", "8"));
+        return new S3StorageBackend(URI.create(endpoint), region, bucket, prefix, accessKey, secretKey,
+                System.getenv("AWS_SESSION_TOKEN"), partSize, concurrency);
+    }
+
+    @Override
+    public OutputStream put(String key) {
+        return new S3UploadOutputStream(this, key);
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        long size = size(key);
+        if(size < 0)
+            throw new FileNotFoundException("Missing object: " + describe(key));
+        if(size <= partSize_)
+            return getRange(key, 0L, size);
+        return new S3RangeInputStream(this, key, size);
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        if(length <= 0)
+            return InputStream.nullInputStream();
+        HttpResponse<InputStream> response = send("GET", objectUri(key, null),
+                Map.of("range", "bytes=" + offset + "-" + (offset + length - 1)), null,
+                HttpResponse.BodyHandlers.ofInputStream());
+        if(response.statusCode() == 404) {
+            response.body().close();
+            throw new FileNotFoundException("Missing object: " + describe(key));
+        }
+        if(response.statusCode() == 416) { // Range starts past the end of the object.
+            response.body().close();
+            return InputStream.nullInputStream();
+        }
+        check(response.statusCode(), "GET", key, response.body());
+        return response.body();
+    }
+
+    @Override
+    public long size(String key) throws IOException {
+        HttpResponse<Void> response = send("HEAD", objectUri(key, null), Map.of(), null,
+                HttpResponse.BodyHandlers.discarding());
+        if(response.statusCode() == 404)
+            return -1L;
+        check(response.statusCode(), "HEAD", key, null);
+        return response.headers().firstValueAsLong("content-length").orElse(0L);
+    }
+
+    @Override
+    public List<String> list(String prefix) throws IOException {
+        List<String> keys = new ArrayList<>();
+        String token = null;
+        do {
+            String query = "list-type=2&prefix=" + S3Signer.encode(prefix_ + prefix, false);
+            if(token != null)
+                query += "&continuation-token=" + S3Signer.encode(token, false);
+            HttpResponse<byte[]> response = send("GET", URI.create(bucketUrl() + "/?" + query), Map.of(), null,
+                    HttpResponse.BodyHandlers.ofByteArray());
+            check(response.statusCode(), "LIST", prefix, new ByteArrayInputStream(response.body()));
+            Document document = parseXml(response.body());
+            NodeList contents = document.getElementsByTagName("Contents");
+            for(int i = 0; i < contents.getLength(); i++) {
+                String key = childText((Element)contents.item(i), "Key");
+                if(key != null)
+                    keys.add(key.substring(prefix_.length()));
+            }
+            token = "true".equals(childText(document.getDocumentElement(), "IsTruncated")) ?
+                    childText(document.getDocumentElement(), "NextContinuationToken") : null;
+        } while(token != null);
+        return keys;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        HttpResponse<InputStream> response = send("DELETE", objectUri(key, null), Map.of(), null,
+                HttpResponse.BodyHandlers.ofInputStream());
+        if(response.statusCode() != 404)
+            check(response.statusCode(), "DELETE", key, response.body());
+    }
+
+    // Server side copy for anything a single CopyObject accepts...
+    @Override
+    public void rename(String from, String to) throws IOException {
+        if(size(from) > MAX_COPY_SIZE) {
+            StorageBackend.super.rename(from, to);
+            return;
+        }
+        String source = "/" + bucket_ + "/" + S3Signer.encode(prefix_ + from, true);
+        HttpResponse<byte[]> response = send("PUT", objectUri(to, null), Map.of("x-amz-copy-source", source), null,
+                HttpResponse.BodyHandlers.ofByteArray());
+        check(response.statusCode(), "COPY", from, new ByteArrayInputStream(response.body()));
+        if(new String(response.body(), StandardCharsets.UTF_8).contains("<Error>"))
+            throw new IOException("S3 COPY failed for " + describe(from));
+        delete(from);
+    }
+
+    @Override
+    public String describe(String key) {
+        return "s3://" + bucket_ + "/" + prefix_ + key;
+    }
+
+    @Override
+    public void close() {
+        executor_.shutdownNow();
+    }
+
+    int partSize() { return partSize_; }
+    int concurrency() { return concurrency_; }
+    ExecutorService executor() { return executor_; }
+
+    URI objectUri(String key, String query) {
+        String uri = bucketUrl() + "/" + S3Signer.encode(prefix_ + key, true);
+        return URI.create((query == null) ? uri : uri + "?" + query);
+    }
+
+    <T> HttpResponse<T> send(String method, URI uri, Map<String,String> headers, byte[] body,
+                             HttpResponse.BodyHandler<T> handler) throws IOException {
+        String payloadHash = (body == null) ? S3Signer.EMPTY_SHA256 : S3Signer.sha256Hex(body);
+        IOException last = null;
+        for(int attempt = 0; attempt < RETRIES; attempt++) {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(10));
+            builder.method(method, (body == null) ? HttpRequest.BodyPublishers.noBody() :
+                    HttpRequest.BodyPublishers.ofByteArray(body));
+            signer_.sign(builder, method, uri, headers, payloadHash);
+            try {
+                HttpResponse<T> response = client_.send(builder.build(), handler);
+                if(response.statusCode() < 500 || attempt == RETRIES - 1)
+                    return response;
+                if(response.body() instanceof Closeable closeable)
+                    closeable.close();
+                last = new IOException("S3 " + method + " returned " + response.statusCode() + " for " + uri);
+            } catch(IOException e) {
+                last = e;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during S3 " + method + " of " + uri);
+            }
+            try {
+                Thread.sleep(200L << attempt);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during S3 " + method + " of " + uri);
+            }
+        }
+        throw last;
+    }
+
+    void check(int status, String operation, String key, InputStream body) throws IOException {
+        if(status >= 200 && status < 300)
+            return;
+        String details = "";
+        if(body != null) {
+            try (body) {
+                details = new String(body.readNBytes(4096), StandardCharsets.UTF_8);
+            }
+        }
+        throw new IOException(String.format("S3 %s failed for %s with HTTP %d: %s", operation, describe(key),
+                status, details));
+    }
+
+    static Document parseXml(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch(Exception e) {
+            throw new IOException("Bad XML response from S3!", e);
+        }
+    }
+
+    static String childText(Element parent, String name) {
+        NodeList nodes = parent.getElementsByTagName(name);
+        return (nodes.getLength() == 0) ? null : nodes.item(0).getTextContent();
+    }
+
+    private String bucketUrl() {
+        return endpoint_ + "/" + bucket_; // Path style works with AWS and every S3-compatible store.
+    }
+
+    private final String endpoint_;
+    private final String bucket_;
+    private final String prefix_;
+    private final S3Signer signer_;
+    private final int partSize_;
+    private final int concurrency_;
+    private final ExecutorService executor_;
+    private final HttpClient client_;
+
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final long MAX_COPY_SIZE = 5L * 1024L * 1024L * 1024L;
+    private static final int RETRIES = 4;
+}
@@ -0,0 +1,185 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Buffers an object in part sized chunks. Objects smaller than one part are sent with a single PUT; larger ones
+ * become a multipart upload with up to the backend's concurrency of parts in flight (which also bounds the memory
+ * used to parts in flight plus the one being filled). The buffer starts small and doubles up to a part as it fills,
+ * so the many small objects of a backup do not each hold a whole part.
+ */
+class S3UploadOutputStream extends OutputStream implements StorageBackend.Abortable {
+    S3UploadOutputStream(S3StorageBackend backend, String key) {
+        backend_ = backend;
+        key_ = key;
+        buffer_ = new byte[Math.min(INITIAL_BUFFER, backend.partSize())];
+        inFlight_ = new Semaphore(backend.concurrency());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        if(closed_)
+            throw new IOException("Stream is closed: " + backend_.describe(key_));
+        if(aborted_)
+            return; // What is still written (the end of the encryption) is discarded.
+        while(len > 0) {
+            if(used_ == buffer_.length)
+                buffer_ = Arrays.copyOf(buffer_, Math.min(buffer_.length * 2, backend_.partSize()));
+            int count = Math.min(len, buffer_.length - used_);
+            System.arraycopy(bytes, off, buffer_, used_, count);
+            used_ += count;
+            off += count;
+            len -= count;
+            if(used_ == backend_.partSize())
+                sendPart();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed_)
+            return;
+        closed_ = true;
+        try {
+            if(aborted_) {
+                abortUpload();
+                return;
+            }
+            if(uploadId_ == null) {
+                byte[] body = new byte[used_];
+                System.arraycopy(buffer_, 0, body, 0, used_);
+                HttpResponse<byte[]> response = backend_.send("PUT", backend_.objectUri(key_, null), Map.of(), body,
+                        HttpResponse.BodyHandlers.ofByteArray());
+                backend_.check(response.statusCode(), "PUT", key_, new ByteArrayInputStream(response.body()));
+                return;
+            }
+            if(used_ > 0)
+                sendPart();
+            List<String> etags = new ArrayList<>();
+            for(Future<String> part: parts_)
+                etags.add(part.get());
+            complete(etags);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortUpload();
+            throw new InterruptedIOException("Interrupted uploading " + backend_.describe(key_));
+        } catch(ExecutionException e) {
+            abortUpload();
+            throw new IOException("Failed to upload a part of " + backend_.describe(key_), e.getCause());
+        } catch(IOException | RuntimeException e) {
+            abortUpload();
+            throw e;
+        }
+    }
+
+    private void sendPart() throws IOException {
+        if(uploadId_ == null)
+            uploadId_ = initiate();
+        byte[] body = buffer_;
+        int length = used_;
+        int partNumber = parts_.size() + 1;
+        try {
+            inFlight_.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted uploading " + backend_.describe(key_));
+        }
+        parts_.add(backend_.executor().submit(() -> {
+            try {
+                byte[] part = (length == body.length) ? body : Arrays.copyOf(body, length);
+                String query = "partNumber=" + partNumber + "&uploadId=" + S3Signer.encode(uploadId_, false);
+                HttpResponse<byte[]> response = backend_.send("PUT", backend_.objectUri(key_, query), Map.of(),
+                        part, HttpResponse.BodyHandlers.ofByteArray());
+                backend_.check(response.statusCode(), "PUT part " + partNumber, key_,
+                        new ByteArrayInputStream(response.body()));
+                return response.headers().firstValue("etag").orElseThrow(() ->
+                        new IOException("No ETag for part " + partNumber + " of " + backend_.describe(key_)));
+            } finally {
+                inFlight_.release();
+            }
+        }));
+        buffer_ = new byte[Math.min(INITIAL_BUFFER, backend_.partSize())]; // The old one belongs to the upload.
+        used_ = 0;
+    }
+
+    private String initiate() throws IOException {
+        HttpResponse<byte[]> response = backend_.send("POST", backend_.objectUri(key_, "uploads="), Map.of(), null,
+                HttpResponse.BodyHandlers.ofByteArray());
+        backend_.check(response.statusCode(), "CreateMultipartUpload", key_,
+                new ByteArrayInputStream(response.body()));
+        String id = S3StorageBackend.childText(S3StorageBackend.parseXml(response.body()).getDocumentElement(),
+                "UploadId");
+        if(id == null)
+            throw new IOException("No UploadId returned for " + backend_.describe(key_));
+        return id;
+    }
+
+    private void complete(List<String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for(int i = 0; i < etags.size(); i++)
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(etags.get(i))
+                    .append("</ETag></Part>");
+        xml.append("</CompleteMultipartUpload>");
+        String query = "uploadId=" + S3Signer.encode(uploadId_, false);
+        HttpResponse<byte[]> response = backend_.send("POST", backend_.objectUri(key_, query), Map.of(),
+                xml.toString().getBytes(StandardCharsets.UTF_8), HttpResponse.BodyHandlers.ofByteArray());
+        backend_.check(response.statusCode(), "CompleteMultipartUpload", key_,
+                new ByteArrayInputStream(response.body()));
+        // S3 may report a failed completion with HTTP 200 and an error document...
+        if(new String(response.body(), StandardCharsets.UTF_8).contains("<Error>"))
+            throw new IOException("CompleteMultipartUpload failed for " + backend_.describe(key_));
+    }
+
+    // Nothing more is uploaded; close() aborts a multipart upload already started instead of completing it...
+    @Override
+    public void abort() {
+        aborted_ = true;
+    }
+
+    private void abortUpload() {
+        if(uploadId_ == null)
+            return;
+        for(Future<String> part: parts_)
+            part.cancel(true);
+        try {
+            String query = "uploadId=" + S3Signer.encode(uploadId_, false);
+            backend_.send("DELETE", backend_.objectUri(key_, query), Map.of(), null,
+                    HttpResponse.BodyHandlers.discarding());
+        } catch(IOException e) {
+            // Best effort, a bucket lifecycle rule should clean up abandoned uploads.
+        }
+    }
+
+    private final S3StorageBackend backend_;
+    private final String key_;
+    private final Semaphore inFlight_;
+    private final List<Future<String>> parts_ = new ArrayList<>();
+    private byte[] buffer_;
+    private int used_ = 0;
+    private String uploadId_ = null;
+    private boolean closed_ = false;
+    private volatile boolean aborted_ = false;
+
+    private static final int INITIAL_BUFFER = 64 * 1024;
+}
@@ -0,0 +1,134 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Where backed up (encrypted) files are stored. Keys are relative, '/' separated names such as
+ * "ab/cd/&lt;id&gt;.aes"; each backend maps them onto its own namespace (a folder, a bucket prefix, ...).
+ */
+public interface StorageBackend extends Closeable {
+    /**
+     * Open a stream that stores an object. The object replaces any existing object of the same key once the stream
+     * is closed without error, unless it was {@link Abortable#abort() aborted} first.
+     *
+     * @param key The object key.
+     * @return The stream to write the object contents to.
+     * @throws IOException On IO errors.
+     */
+    OutputStream put(String key) throws IOException;
+
+    /**
+     * Implemented by the streams of {@link #put}. A writer whose source failed part way aborts the stream before it
+     * is closed (closing may still write a valid looking end to it), so the truncated object is never stored.
+     */
+    interface Abortable {
+        /**
+         * Discard the object; closing the stream afterwards leaves the key as it was.
+         */
+        void abort();
+    }
+
+    /**
+     * Open a stream over an entire object.
+     *
+     * @param key The object key.
+     * @return The object's contents.
+     * @throws java.io.FileNotFoundException When the object does not exist.
+     * @throws IOException On other IO errors.
+     */
+    InputStream get(String key) throws IOException;
+
+    /**
+     * Open a stream over part of an object.
+     *
+     * @param key The object key.
+     * @param offset The first byte to read.
+     * @param length The count of bytes to read (fewer are returned at the end of the object).
+     * @return The requested bytes of the object.
+     * @throws java.io.FileNotFoundException When the object does not exist.
+     * @throws IOException On other IO errors.
+     */
+    InputStream getRange(String key, long offset, long length) throws IOException;
+
+    /**
+     * @param key The object key.
+     * @return The object size in bytes or -1 if it does not exist.
+     * @throws IOException On IO errors.
+     */
+    long size(String key) throws IOException;
+
+    /**
+     * @param key The object key.
+     * @return true if the object exists.
+     * @throws IOException On IO errors.
+     */
+    default boolean exists(String key) throws IOException {
+        return size(key) >= 0L;
+    }
+
+    /**
+     * List the keys starting with a prefix.
+     *
+     * @param prefix The key prefix or "" for all keys.
+     * @return The matching keys in no particular order.
+     * @throws IOException On IO errors.
+     */
+    List<String> list(String prefix) throws IOException;
+
+    /**
+     * Delete an object; missing objects are ignored.
+     *
+     * @param key The object key.
+     * @throws IOException On IO errors.
+     */
+    void delete(String key) throws IOException;
+
+    /**
+     * Move an object to a new key, replacing an existing object there.
+     *
+     * @param from The current key.
+     * @param to The new key.
+     * @throws IOException On IO errors.
+     */
+    default void rename(String from, String to) throws IOException {
+        try (InputStream in = get(from); OutputStream out = put(to)) {
+            in.transferTo(out);
+        }
+        delete(from);
+    }
+
+    /**
+     * Make the objects written (and renamed) so far durable. Called before an index that references them is written,
+     * so a crash never leaves an index pointing at data that was lost. The default does nothing for backends whose
+     * objects are durable once {@link #put} is closed.
+     *
+     * @throws IOException On IO errors.
+     */
+    default void sync() throws IOException {}
+
+    /**
+     * @param key The object key.
+     * @return A human-readable location of the object for logs and errors.
+     */
+    String describe(String key);
+
+    /**
+     * Release resources (thread pools, connections); the default does nothing.
+     *
+     * @throws IOException On IO errors.
+     */
+    @Override default void close() throws IOException {}
+
+    /**
+     * Key suffix of objects still being written; one is only left behind by a crash and is safe to delete.
+     */
+    String PARTIAL = ".partial";
+}
@@ -0,0 +1,38 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Creates the {@link StorageBackend} for a destination location.
+ */
+public final class StorageBackends {
+    private StorageBackends() {}
+
+    /**
+     * Open a backend.
+     *
+     * @param location A local folder or an "s3://bucket/prefix" location.
+     * @param options Backend specific options (see {@link S3StorageBackend#fromLocation}).
+     * @return The backend for the location.
+     * @throws IOException When the location cannot be used.
+     */
+    public static StorageBackend open(String location, Map<String,String> options) throws IOException {
+        if(isRemote(location))
+            return S3StorageBackend.fromLocation(location, options);
+        return new LocalStorageBackend(new File(location));
+    }
+
+    /**
+     * @param location The destination location.
+     * @return true if the location is not a local folder.
+     */
+    public static boolean isRemote(String location) {
+        return location.startsWith("s3://");
+    }
+}
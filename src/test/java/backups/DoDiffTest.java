@@ -0,0 +1,95 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoDiffTest {
+    @BeforeEach
+    void createSource() throws IOException {
+        source_ = Files.createDirectories(folder_.resolve("source"));
+    }
+
+    @Test
+    void deletedFileIsReported() throws Exception {
+        File keep = source_.resolve("keep.txt").toFile();
+        File tiny = source_.resolve("tiny.txt").toFile();
+        Files.writeString(keep.toPath(), "keep");
+        Files.writeString(tiny.toPath(), "tiny");
+        File set = createSet();
+        assertEquals(0, run(new DoBackup(), set.toString()));
+        assertTrue(tiny.delete());
+        assertEquals(0, run(new DoBackup(), set.toString()));
+
+        String diff = output(new DoDiff(), set.toString());
+        assertTrue(diff.lines().anyMatch((line) -> line.startsWith("D ") && line.endsWith(tiny.getPath())), diff);
+        assertFalse(diff.contains(keep.getPath()), diff);
+        assertFalse(output(new DoQuery(), set.toString()).contains(tiny.getPath()));
+        assertTrue(output(new DoQuery(), "--deleted", set.toString()).contains(tiny.getPath()));
+    }
+
+    @Test
+    void deletedFileIsReportedByLowMemoryBackup() throws Exception {
+        Files.createDirectories(source_.resolve("sub"));
+        File tiny = source_.resolve("sub").resolve("tiny.txt").toFile();
+        Files.writeString(source_.resolve("sub").resolve("keep.txt"), "keep");
+        Files.writeString(tiny.toPath(), "tiny");
+        File set = createSet();
+        assertEquals(0, run(new DoBackup(), "--low-memory", set.toString()));
+        assertTrue(tiny.delete());
+        assertEquals(0, run(new DoBackup(), "--low-memory", set.toString()));
+
+        String diff = output(new DoDiff(), set.toString());
+        assertTrue(diff.lines().anyMatch((line) -> line.startsWith("D ") && line.endsWith(tiny.getPath())), diff);
+
+        Files.writeString(tiny.toPath(), "back");
+        assertEquals(0, run(new DoBackup(), set.toString()));
+        diff = output(new DoDiff(), set.toString());
+        assertTrue(diff.lines().anyMatch((line) -> line.startsWith("A ") && line.endsWith(tiny.getPath())), diff);
+    }
+
+    private File createSet() throws Exception {
+        File key = folder_.resolve("test.key").toFile();
+        File set = folder_.resolve("test.set").toFile();
+        Path destination = Files.createDirectories(folder_.resolve("destination"));
+        assertEquals(0, run(new GenerateKey(), key.toString()));
+        assertEquals(0, run(new CreateBackupSet(), "--name", "test", "--destination", destination.toString(),
+                "--key-file", key.toString(), "--set-file", set.toString(), source_.toString()));
+        return set;
+    }
+
+    private static int run(Object command, String... args) {
+        return new CommandLine(command).execute(args);
+    }
+
+    private static String output(Object command, String... args) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            assertEquals(0, run(command, args));
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    @TempDir
+    Path folder_;
+    private Path source_;
+}
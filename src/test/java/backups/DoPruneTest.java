@@ -0,0 +1,77 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoPruneTest {
+    @BeforeEach
+    void createSource() throws IOException {
+        source_ = Files.createDirectories(folder_.resolve("source"));
+        destination_ = Files.createDirectories(folder_.resolve("destination"));
+    }
+
+    @Test
+    void keepingOneSnapshotKeepsTheCurrentVersionsRestorable() throws Exception {
+        Files.writeString(source_.resolve("same.txt"), "x".repeat(5000));
+        Files.writeString(source_.resolve("edited.txt"), "first ".repeat(1000));
+        Files.writeString(source_.resolve("gone.txt"), "gone ".repeat(1000));
+        File set = createSet();
+        assertEquals(0, run(new DoBackup(), set.toString()));
+        Files.writeString(source_.resolve("edited.txt"), "second ".repeat(1000));
+        Files.delete(source_.resolve("gone.txt"));
+        assertEquals(0, run(new DoBackup(), set.toString()));
+        assertEquals(4, blobs()); // Both versions of edited.txt.
+
+        assertEquals(0, run(new DoPrune(), "--keep-snapshots", "1", set.toString()));
+        assertEquals(2, blobs()); // The first edited.txt and gone.txt are collected.
+        Path restored = folder_.resolve("restored");
+        assertEquals(0, run(new DoRestore(), "--chroot", restored.toString(), set.toString()));
+        Path files = restored.resolve(source_.toString().substring(1));
+        assertEquals("x".repeat(5000), Files.readString(files.resolve("same.txt")));
+        assertEquals("second ".repeat(1000), Files.readString(files.resolve("edited.txt")));
+        assertFalse(Files.exists(files.resolve("gone.txt")));
+
+        assertEquals(0, run(new DoPrune(), "--keep-snapshots", "1", set.toString()));
+        assertEquals(2, blobs());
+        assertEquals(0, run(new DoBackup(), set.toString()));
+    }
+
+    private long blobs() throws IOException {
+        try (Stream<Path> files = Files.walk(destination_)) {
+            return files.filter((path) -> path.toString().endsWith(".aes") && !path.toString().contains(".index"))
+                    .count();
+        }
+    }
+
+    private File createSet() throws Exception {
+        File key = folder_.resolve("test.key").toFile();
+        File set = folder_.resolve("test.set").toFile();
+        assertEquals(0, run(new GenerateKey(), key.toString()));
+        assertEquals(0, run(new CreateBackupSet(), "--name", "test", "--destination", destination_.toString(),
+                "--key-file", key.toString(), "--set-file", set.toString(), source_.toString()));
+        return set;
+    }
+
+    private static int run(Object command, String... args) {
+        return new CommandLine(command).execute(args);
+    }
+
+    @TempDir
+    Path folder_;
+    private Path source_;
+    private Path destination_;
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package backups;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import picocli.CommandLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DoRestoreTest {
+    @BeforeEach
+    void createSource() throws IOException {
+        source_ = Files.createDirectories(folder_.resolve("source"));
+        restored_ = folder_.resolve("restored");
+    }
+
+    @Test
+    void asOfDoesNotRecreateDeletedFiles() throws Exception {
+        Files.createDirectories(source_.resolve("sub"));
+        Files.writeString(source_.resolve("keep.txt"), "keep");
+        Files.writeString(source_.resolve("gone.txt"), "gone");
+        Files.writeString(source_.resolve("sub").resolve("only.txt"), "only");
+        File set = createSet();
+        assertEquals(0, run(new DoBackup(), set.toString()));
+        Files.delete(source_.resolve("gone.txt"));
+        Files.delete(source_.resolve("sub").resolve("only.txt"));
+        assertEquals(0, run(new DoBackup(), set.toString()));
+
+        assertEquals(0, run(new DoRestore(), "--as-of", Instant.now().plusSeconds(1).toString(), "--chroot",
+                restored_.toString(), set.toString()));
+        assertEquals("keep", Files.readString(restored("keep.txt")));
+        assertFalse(Files.exists(restored("gone.txt")));
+        assertFalse(Files.exists(restored("sub").resolve("only.txt")));
+    }
+
+    @Test
+    void asOfRerunSkipsUnchangedFiles() throws Exception {
+        Files.writeString(source_.resolve("a.txt"), "a");
+        Files.writeString(source_.resolve("b.txt"), "b");
+        File set = createSet();
+        assertEquals(0, run(new DoBackup(), set.toString()));
+        String asOf = Instant.now().plusSeconds(1).toString();
+
+        String first = output(DoRestore::new, "--as-of", asOf, "--chroot", restored_.toString(), set.toString());
+        assertTrue(first.contains("| Restored files:                      2 |"), first);
+        assertEquals(source_.resolve("a.txt").toFile().lastModified(), restored("a.txt").toFile().lastModified());
+        String second = output(DoRestore::new, "--as-of", asOf, "--chroot", restored_.toString(), set.toString());
+        assertTrue(second.contains("| Restored files:                      0 |"), second);
+        assertTrue(second.contains("| Skipped files:                       2 |"), second);
+
+        Files.writeString(restored("b.txt"), "changed after the restore");
+        String third = output(DoRestore::new, "--as-of", asOf, "--chroot", restored_.toString(), set.toString());
+        assertTrue(third.contains("| Restored files:                      1 |"), third);
+        assertEquals("b", Files.readString(restored("b.txt")));
+    }
+
+    private Path restored(String name) {
+        return restored_.resolve(source_.toString().substring(1)).resolve(name);
+    }
+
+    private File createSet() throws Exception {
+        File key = folder_.resolve("test.key").toFile();
+        File set = folder_.resolve("test.set").toFile();
+        Path destination = Files.createDirectories(folder_.resolve("destination"));
+        assertEquals(0, run(new GenerateKey(), key.toString()));
+        assertEquals(0, run(new CreateBackupSet(), "--name", "test", "--destination", destination.toString(),
+                "--key-file", key.toString(), "--set-file", set.toString(), source_.toString()));
+        return set;
+    }
+
+    private static int run(Object command, String... args) {
+        return new CommandLine(command).execute(args);
+    }
+
+    // The command is created once the output is captured, do-restore keeps the stream it reports to...
+    private static String output(Supplier<Object> command, String... args) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            assertEquals(0, run(command.get(), args));
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    @TempDir
+    Path folder_;
+    private Path source_;
+    private Path restored_;
+}
@@ -0,0 +1,343 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory S3 bucket on a local HTTP port. Every request must carry a valid SigV4 signature and payload hash
+ * (checked here independently of {@link S3Signer}) or it is refused with 403. It serves PUT, GET (with ranges), HEAD,
+ * DELETE, CopyObject, ListObjectsV2 (two keys per page to exercise continuation tokens) and multipart uploads.
+ */
+class FakeS3Server implements AutoCloseable {
+    FakeS3Server(String accessKey, String secretKey, String region, String bucket) throws IOException {
+        accessKey_ = accessKey;
+        secretKey_ = secretKey;
+        region_ = region;
+        bucket_ = bucket;
+        server_ = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server_.createContext("/", this::handle);
+        server_.setExecutor(executor_);
+        server_.start();
+    }
+
+    URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server_.getAddress().getPort());
+    }
+
+    // Full keys (with the backend's prefix) to contents...
+    Map<String,byte[]> objects() { return objects_; }
+
+    // "METHOD kind" for every request that passed the signature check, e.g. "PUT part" or "GET range"...
+    List<String> requests() { return requests_; }
+
+    @Override
+    public void close() {
+        server_.stop(0);
+        executor_.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            String method = exchange.getRequestMethod();
+            if(!signatureMatches(exchange, body)) {
+                reply(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if(!path.startsWith("/" + bucket_ + "/")) {
+                reply(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+                return;
+            }
+            String key = path.substring(bucket_.length() + 2);
+            Map<String,String> query = query(exchange.getRequestURI().getRawQuery());
+            if(method.equals("GET") && query.containsKey("list-type"))
+                list(exchange, query);
+            else if(method.equals("POST") && query.containsKey("uploads"))
+                initiate(exchange, key);
+            else if(method.equals("PUT") && query.containsKey("partNumber"))
+                uploadPart(exchange, query, body);
+            else if(method.equals("POST") && query.containsKey("uploadId"))
+                complete(exchange, key, query, body);
+            else if(method.equals("DELETE") && query.containsKey("uploadId")) {
+                requests_.add("DELETE upload");
+                uploads_.remove(query.get("uploadId"));
+                reply(exchange, 204, null);
+            } else if(method.equals("PUT") && exchange.getRequestHeaders().containsKey("x-amz-copy-source"))
+                copy(exchange, key);
+            else if(method.equals("PUT")) {
+                requests_.add("PUT object");
+                objects_.put(key, body);
+                reply(exchange, 200, null);
+            } else if(method.equals("HEAD"))
+                head(exchange, key);
+            else if(method.equals("GET"))
+                get(exchange, key);
+            else if(method.equals("DELETE")) {
+                requests_.add("DELETE object");
+                objects_.remove(key);
+                reply(exchange, 204, null);
+            } else
+                reply(exchange, 405, "<Error><Code>MethodNotAllowed</Code></Error>");
+        }
+    }
+
+    private void list(HttpExchange exchange, Map<String,String> query) throws IOException {
+        requests_.add("GET list");
+        String prefix = query.getOrDefault("prefix", "");
+        String after = query.getOrDefault("continuation-token", "");
+        List<String> keys = new ArrayList<>(new TreeSet<>(objects_.keySet()).tailSet(after, false));
+        keys.removeIf((key) -> !key.startsWith(prefix));
+        boolean truncated = keys.size() > PAGE_SIZE;
+        StringBuilder xml = new StringBuilder("<ListBucketResult>");
+        for(String key: keys.subList(0, Math.min(PAGE_SIZE, keys.size())))
+            xml.append("<Contents><Key>").append(escape(key)).append("</Key></Contents>");
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if(truncated)
+            xml.append("<NextContinuationToken>").append(escape(keys.get(PAGE_SIZE - 1)))
+                    .append("</NextContinuationToken>");
+        reply(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private void initiate(HttpExchange exchange, String key) throws IOException {
+        requests_.add("POST initiate");
+        String uploadId = "upload-" + uploadCount_.incrementAndGet();
+        uploads_.put(uploadId, new ConcurrentHashMap<>());
+        reply(exchange, 200, "<InitiateMultipartUploadResult><Key>" + escape(key) + "</Key><UploadId>" + uploadId +
+                "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, Map<String,String> query, byte[] body) throws IOException {
+        requests_.add("PUT part");
+        Map<Integer,byte[]> parts = uploads_.get(query.get("uploadId"));
+        if(parts == null) {
+            reply(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            return;
+        }
+        parts.put(Integer.parseInt(query.get("partNumber")), body);
+        exchange.getResponseHeaders().set("ETag", etag(body));
+        reply(exchange, 200, null);
+    }
+
+    private void complete(HttpExchange exchange, String key, Map<String,String> query, byte[] body)
+            throws IOException {
+        requests_.add("POST complete");
+        Map<Integer,byte[]> parts = uploads_.remove(query.get("uploadId"));
+        if(parts == null) {
+            reply(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            return;
+        }
+        Matcher matcher = PART.matcher(new String(body, StandardCharsets.UTF_8));
+        ByteArrayBuilder object = new ByteArrayBuilder();
+        int expected = 1;
+        while(matcher.find()) {
+            byte[] part = parts.get(Integer.parseInt(matcher.group(1)));
+            if(part == null || expected++ != Integer.parseInt(matcher.group(1)) ||
+                    !etag(part).equals(matcher.group(2))) {
+                reply(exchange, 400, "<Error><Code>InvalidPart</Code></Error>");
+                return;
+            }
+            object.append(part);
+        }
+        objects_.put(key, object.toByteArray());
+        reply(exchange, 200, "<CompleteMultipartUploadResult><Key>" + escape(key) +
+                "</Key></CompleteMultipartUploadResult>");
+    }
+
+    private void copy(HttpExchange exchange, String key) throws IOException {
+        requests_.add("PUT copy");
+        String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source")
+                .replace("+", "%2B"), StandardCharsets.UTF_8);
+        byte[] contents = objects_.get(source.substring(bucket_.length() + 2));
+        if(contents == null) {
+            reply(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+            return;
+        }
+        objects_.put(key, contents);
+        reply(exchange, 200, "<CopyObjectResult></CopyObjectResult>");
+    }
+
+    private void head(HttpExchange exchange, String key) throws IOException {
+        requests_.add("HEAD object");
+        byte[] contents = objects_.get(key);
+        if(contents != null)
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(contents.length));
+        exchange.sendResponseHeaders((contents == null) ? 404 : 200, -1);
+    }
+
+    private void get(HttpExchange exchange, String key) throws IOException {
+        byte[] contents = objects_.get(key);
+        if(contents == null) {
+            requests_.add("GET object");
+            reply(exchange, 404, "<Error><Code>NoSuchKey</Code></Error>");
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("range");
+        if(range == null) {
+            requests_.add("GET object");
+            send(exchange, 200, contents);
+            return;
+        }
+        requests_.add("GET range");
+        Matcher matcher = RANGE.matcher(range);
+        if(!matcher.matches()) {
+            reply(exchange, 400, "<Error><Code>InvalidArgument</Code></Error>");
+            return;
+        }
+        long first = Long.parseLong(matcher.group(1));
+        long last = Math.min(Long.parseLong(matcher.group(2)), contents.length - 1);
+        if(first >= contents.length) {
+            reply(exchange, 416, "<Error><Code>InvalidRange</Code></Error>");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + contents.length);
+        send(exchange, 206, Arrays.copyOfRange(contents, (int)first, (int)last + 1));
+    }
+
+    // Rebuilds the canonical request from what actually arrived and compares signatures...
+    private boolean signatureMatches(HttpExchange exchange, byte[] body) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String payloadHash = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        String amzDate = exchange.getRequestHeaders().getFirst("x-amz-date");
+        if(authorization == null || payloadHash == null || amzDate == null)
+            return false;
+        Matcher matcher = AUTHORIZATION.matcher(authorization);
+        if(!matcher.matches() || !matcher.group(1).equals(accessKey_) ||
+                !matcher.group(2).equals(amzDate.substring(0, 8)) || !matcher.group(3).equals(region_))
+            return false;
+        if(!payloadHash.equals(hex(sha256(body))))
+            return false;
+        List<String> signed = List.of(matcher.group(4).split(";"));
+        if(!signed.contains("host") || !signed.contains("x-amz-date") || !signed.contains("x-amz-content-sha256"))
+            return false;
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for(String name: signed) {
+            String value = exchange.getRequestHeaders().getFirst(name);
+            if(value == null)
+                return false;
+            canonicalHeaders.append(name).append(':').append(value.strip()).append('\n');
+        }
+        URI uri = exchange.getRequestURI();
+        String canonicalRequest = exchange.getRequestMethod() + "\n" + uri.getRawPath() + "\n" +
+                canonicalQuery(uri.getRawQuery()) + "\n" + canonicalHeaders + "\n" + matcher.group(4) + "\n" +
+                payloadHash;
+        String scope = matcher.group(2) + "/" + region_ + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" +
+                hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] key = hmac(("AWS4" + secretKey_).getBytes(StandardCharsets.UTF_8), matcher.group(2));
+        for(String part: List.of(region_, "s3", "aws4_request"))
+            key = hmac(key, part);
+        return hex(hmac(key, stringToSign)).equals(matcher.group(5));
+    }
+
+    private static String canonicalQuery(String rawQuery) {
+        if(rawQuery == null || rawQuery.isEmpty())
+            return "";
+        List<String> pairs = new ArrayList<>();
+        for(String pair: rawQuery.split("&"))
+            pairs.add(pair.contains("=") ? pair : pair + "=");
+        Collections.sort(pairs);
+        return String.join("&", pairs);
+    }
+
+    private static Map<String,String> query(String rawQuery) {
+        Map<String,String> query = new HashMap<>();
+        if(rawQuery != null)
+            for(String pair: rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                String name = (eq < 0) ? pair : pair.substring(0, eq);
+                String value = (eq < 0) ? "" : pair.substring(eq + 1);
+                query.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8));
+            }
+        return query;
+    }
+
+    private static void reply(HttpExchange exchange, int status, String xml) throws IOException {
+        send(exchange, status, (xml == null) ? new byte[0] : xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+        if(body.length > 0)
+            exchange.getResponseBody().write(body);
+    }
+
+    private static String etag(byte[] data) {
+        try {
+            return "\"" + hex(MessageDigest.getInstance("MD5").digest(data)) + "\"";
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] data) {
+        return HexFormat.of().formatHex(data);
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static final class ByteArrayBuilder extends java.io.ByteArrayOutputStream {
+        void append(byte[] data) { write(data, 0, data.length); }
+    }
+
+    private final String accessKey_;
+    private final String secretKey_;
+    private final String region_;
+    private final String bucket_;
+    private final HttpServer server_;
+    private final ExecutorService executor_ = Executors.newCachedThreadPool();
+    private final Map<String,byte[]> objects_ = new ConcurrentHashMap<>();
+    private final Map<String,Map<Integer,byte[]>> uploads_ = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadCount_ = new AtomicInteger();
+    private final List<String> requests_ = new CopyOnWriteArrayList<>();
+
+    private static final int PAGE_SIZE = 2;
+    private static final Pattern AUTHORIZATION = Pattern.compile("AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/" +
+            "([^/]+)/s3/aws4_request, SignedHeaders=([a-z0-9;-]+), Signature=([0-9a-f]{64})");
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]+)</ETag>");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+}
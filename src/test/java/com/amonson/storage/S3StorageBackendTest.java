@@ -0,0 +1,146 @@
+// Copyright (C) 2021 Paul Amonson
+//
+// SPDX-License-Identifier: Apache-2.0
+//
+package com.amonson.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3StorageBackendTest {
+    @BeforeEach
+    void start() throws IOException {
+        server_ = new FakeS3Server(ACCESS_KEY, SECRET_KEY, REGION, BUCKET);
+        backend_ = newBackend(SECRET_KEY);
+    }
+
+    @AfterEach
+    void stop() {
+        backend_.close();
+        server_.close();
+    }
+
+    @Test
+    void smallObjectIsOnePut() throws IOException {
+        byte[] data = "small object".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = backend_.put("dir/small file.aes")) {
+            out.write(data);
+        }
+        assertArrayEquals(data, server_.objects().get("prefix/dir/small file.aes"));
+        assertEquals(1, count("PUT object"));
+        assertEquals(0, count("POST initiate"));
+        assertEquals(data.length, backend_.size("dir/small file.aes"));
+        try (InputStream in = backend_.get("dir/small file.aes")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (InputStream in = backend_.getRange("dir/small file.aes", 6, 100)) {
+            assertArrayEquals("object".getBytes(StandardCharsets.UTF_8), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void largeObjectIsMultipartAndReadWithRangedGets() throws IOException {
+        byte[] data = new byte[2 * PART_SIZE + 12345];
+        new Random(42).nextBytes(data);
+        try (OutputStream out = backend_.put("large.aes")) {
+            for(int offset = 0; offset < data.length; offset += 100_000) // Smaller writes grow the buffer.
+                out.write(data, offset, Math.min(100_000, data.length - offset));
+        }
+        assertEquals(1, count("POST initiate"));
+        assertEquals(3, count("PUT part"));
+        assertEquals(1, count("POST complete"));
+        assertEquals(0, count("PUT object"));
+        assertArrayEquals(data, server_.objects().get("prefix/large.aes"));
+
+        try (InputStream in = backend_.get("large.aes")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        assertEquals(3, count("GET range"));
+        assertEquals(0, count("GET object"));
+    }
+
+    @Test
+    void abortedPutsStoreNothing() throws IOException {
+        try (OutputStream out = backend_.put("small.aes")) {
+            out.write(1);
+            ((StorageBackend.Abortable)out).abort();
+        }
+        byte[] data = new byte[PART_SIZE + 1];
+        try (OutputStream out = backend_.put("large.aes")) {
+            out.write(data);
+            ((StorageBackend.Abortable)out).abort();
+            out.write(data); // Ignored once aborted.
+        }
+        assertTrue(server_.objects().isEmpty());
+        assertEquals(1, count("POST initiate"));
+        assertEquals(1, count("DELETE upload"));
+        assertEquals(0, count("POST complete"));
+        assertEquals(0, count("PUT object"));
+    }
+
+    @Test
+    void listRenameAndDelete() throws IOException {
+        for(String key: List.of("a.aes", "b.aes", "c.aes", "d/e.aes", "f.aes.partial"))
+            try (OutputStream out = backend_.put(key)) {
+                out.write(key.getBytes(StandardCharsets.UTF_8));
+            }
+        assertEquals(List.of("a.aes", "b.aes", "c.aes", "d/e.aes", "f.aes.partial"), backend_.list(""));
+        assertEquals(3, count("GET list")); // Two keys per page.
+        assertEquals(List.of("d/e.aes"), backend_.list("d/"));
+
+        backend_.rename("f.aes.partial", "f.aes");
+        assertEquals(1, count("PUT copy"));
+        assertEquals(-1L, backend_.size("f.aes.partial"));
+        try (InputStream in = backend_.get("f.aes")) {
+            assertArrayEquals("f.aes.partial".getBytes(StandardCharsets.UTF_8), in.readAllBytes());
+        }
+
+        backend_.delete("a.aes");
+        backend_.delete("a.aes"); // Already gone is not an error.
+        assertFalse(backend_.exists("a.aes"));
+        assertThrows(IOException.class, () -> backend_.get("a.aes"));
+    }
+
+    @Test
+    void wrongSecretIsRefused() throws IOException {
+        try (S3StorageBackend backend = newBackend("not the secret")) {
+            IOException e = assertThrows(IOException.class, () -> {
+                try (OutputStream out = backend.put("x.aes")) {
+                    out.write(1);
+                }
+            });
+            assertTrue(e.getMessage().contains("403"), e.getMessage());
+            assertThrows(IOException.class, () -> backend.list(""));
+        }
+        assertTrue(server_.objects().isEmpty());
+        assertTrue(server_.requests().isEmpty());
+    }
+
+    private S3StorageBackend newBackend(String secretKey) {
+        return new S3StorageBackend(server_.endpoint(), REGION, BUCKET, "prefix/", ACCESS_KEY, secretKey, null,
+                PART_SIZE, 2);
+    }
+
+    private long count(String request) {
+        return server_.requests().stream().filter(request::equals).count();
+    }
+
+    private FakeS3Server server_;
+    private S3StorageBackend backend_;
+
+    private static final String ACCESS_KEY = "AKIDEXAMPLE";
+    private static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String REGION = "us-east-1";
+    private static final String BUCKET = "bucket";
+    private static final int PART_SIZE = S3StorageBackend.MIN_PART_SIZE;
+}